@@ -55,6 +55,11 @@ public class TestDb extends AndroidTestCase {
         final HashSet<String> tableNameHashSet = new HashSet<String>();
         tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
         tableNameHashSet.add(WeatherContract.WeatherEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.ArchiveEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.RollupEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.HourlyEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.SyncMetricsEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.StagingEntry.TABLE_NAME);
 
         mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
         SQLiteDatabase db = new WeatherDbHelper(
@@ -177,6 +182,63 @@ public class TestDb extends AndroidTestCase {
     }
 
 
+    /*
+        Upgrades from version 4 on migrate the schema in place, so the archive, which can't be
+        fetched again, has to survive one.  Here the database is taken back to version 10 by
+        dropping the table version 11 added and the column version 12 added.
+     */
+    public void testUpgradeKeepsArchive() {
+        long locationRowId = insertLocation();
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues archiveValues = TestUtilities.createWeatherValues(locationRowId);
+        assertTrue(db.insert(WeatherContract.ArchiveEntry.TABLE_NAME, null, archiveValues) != -1);
+        db.execSQL("DROP TABLE " + WeatherContract.StagingEntry.TABLE_NAME);
+        // SQLite can't drop a column, so copy the location table without it
+        db.execSQL("CREATE TABLE location_v10 AS SELECT " +
+                WeatherContract.LocationEntry._ID + ", " +
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                WeatherContract.LocationEntry.COLUMN_CITY_NAME + ", " +
+                WeatherContract.LocationEntry.COLUMN_COORD_LAT + ", " +
+                WeatherContract.LocationEntry.COLUMN_COORD_LONG + ", " +
+                WeatherContract.LocationEntry.COLUMN_GRID_CELL + ", " +
+                WeatherContract.LocationEntry.COLUMN_CITY_KEY + ", " +
+                WeatherContract.LocationEntry.COLUMN_CANONICAL_ID + ", " +
+                WeatherContract.LocationEntry.COLUMN_FORECAST_VERSION +
+                " FROM " + WeatherContract.LocationEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE " + WeatherContract.LocationEntry.TABLE_NAME);
+        db.execSQL("ALTER TABLE location_v10 RENAME TO " +
+                WeatherContract.LocationEntry.TABLE_NAME);
+        db.setVersion(10);
+        dbHelper.close();
+
+        dbHelper = new WeatherDbHelper(mContext);
+        db = dbHelper.getWritableDatabase();
+        Cursor archiveCursor = db.query(WeatherContract.ArchiveEntry.TABLE_NAME,
+                null, null, null, null, null, null);
+        assertTrue("Error: The upgrade lost the archive", archiveCursor.moveToFirst());
+        TestUtilities.validateCurrentRecord("Error: The archived day changed in the upgrade",
+                archiveCursor, archiveValues);
+        archiveCursor.close();
+
+        Cursor stagingCursor = db.query(WeatherContract.StagingEntry.TABLE_NAME,
+                null, null, null, null, null, null);
+        assertEquals("Error: The upgrade didn't create the staging table",
+                0, stagingCursor.getCount());
+        stagingCursor.close();
+
+        Cursor locationCursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_SEEDED},
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationRowId)}, null, null, null);
+        assertTrue("Error: The upgrade lost the location", locationCursor.moveToFirst());
+        assertEquals("Error: A stored location came out of the upgrade seeded",
+                0, locationCursor.getInt(0));
+        locationCursor.close();
+        dbHelper.close();
+    }
+
     /*
         Students: This is a helper method for the testWeatherTable quiz. You can move your
         code from testLocationTable to here so that you can call this code from both
@@ -16,19 +16,28 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.gcm.ForecastDeltaApplier;
+import com.example.android.sunshine.app.sync.LocationRegistry;
 
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
@@ -61,6 +70,16 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                WeatherContract.HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
+        mContext.getContentResolver().delete(
+                WeatherContract.SyncMetricsEntry.CONTENT_URI,
+                null,
+                null
+        );
 
         Cursor cursor = mContext.getContentResolver().query(
                 WeatherEntry.CONTENT_URI,
@@ -512,4 +531,937 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    // Writing one location's weather should only wake observers of that location, so that
+    // a list showing another location isn't requeried.
+    public void testBulkInsertNotifiesOnlyItsLocation() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        assertTrue(locationRowId != -1);
+
+        TestUtilities.TestContentObserver ownObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true, ownObserver);
+        TestUtilities.TestContentObserver otherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation("94043"), true, otherObserver);
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+
+        ownObserver.waitForNotificationOrFail();
+        otherObserver.assertNoNotification();
+        mContext.getContentResolver().unregisterContentObserver(ownObserver);
+        mContext.getContentResolver().unregisterContentObserver(otherObserver);
+    }
+
+    // A sync writes its location, its weather and its cleanup with one applyBatch.  Observers
+    // should hear about it exactly once, after the transaction commits.
+    public void testApplyBatchNotifiesOnce() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        for (ContentValues weatherValues : createBulkInsertWeatherValues(0)) {
+            weatherValues.remove(WeatherEntry.COLUMN_LOC_KEY);
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(weatherValues)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_DATE + " < ?",
+                        new String[]{Long.toString(TestUtilities.TEST_DATE)})
+                .build());
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, operations);
+
+        weatherObserver.assertNotificationCount(1);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        // Everything landed, with the weather pointing at the location inserted in the batch
+        assertEquals(operations.size(), results.length);
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+    }
+
+    // Queries that only project weather columns skip the location join and look the location
+    // up in the provider's cache instead.  Make sure they see the same rows, and that the
+    // cache follows changes to the location table.
+    public void testWeatherOnlyProjectionQuery() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+
+        String[] weatherOnly = {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP};
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                weatherOnly, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE),
+                weatherOnly, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Renaming the location must not leave the old setting pointing at its weather
+        ContentValues renamed = new ContentValues();
+        renamed.put(LocationEntry.COLUMN_LOCATION_SETTING, "renamed");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, renamed,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationRowId)});
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                weatherOnly, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation("renamed"),
+                weatherOnly, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+    }
+
+    // Several syncs for the same new location can run at once.  Every one of them should get
+    // the same row back from the provider's get-or-insert, and only one row should be added.
+    public void testConcurrentGetOrInsertLocation() throws Exception {
+        if ( Build.VERSION.SDK_INT < 11 ) return;
+
+        final int threadCount = 8;
+        final ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        final Bundle extras = new Bundle();
+        extras.putString(LocationEntry.COLUMN_CITY_NAME,
+                locationValues.getAsString(LocationEntry.COLUMN_CITY_NAME));
+        extras.putDouble(LocationEntry.COLUMN_COORD_LAT,
+                locationValues.getAsDouble(LocationEntry.COLUMN_COORD_LAT));
+        extras.putDouble(LocationEntry.COLUMN_COORD_LONG,
+                locationValues.getAsDouble(LocationEntry.COLUMN_COORD_LONG));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] locationIds = new long[threadCount];
+        final Throwable[] errors = new Throwable[threadCount];
+        Thread[] threads = new Thread[threadCount];
+        for ( int i = 0; i < threadCount; i++ ) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Bundle result = mContext.getContentResolver().call(
+                                LocationEntry.CONTENT_URI, LocationEntry.METHOD_GET_OR_INSERT,
+                                TestUtilities.TEST_LOCATION, extras);
+                        locationIds[index] = result.getLong(LocationEntry._ID);
+                    } catch (Throwable t) {
+                        errors[index] = t;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for ( Thread thread : threads ) {
+            thread.join(5000);
+        }
+
+        for ( int i = 0; i < threadCount; i++ ) {
+            assertNull("Error: get-or-insert failed on thread " + i, errors[i]);
+            assertTrue("Error: No location id on thread " + i, locationIds[i] > 0);
+            assertEquals("Error: Threads got different rows for the same location",
+                    locationIds[0], locationIds[i]);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: The location was inserted more than once", 1, cursor.getCount());
+        cursor.close();
+    }
+
+    // A steady-state sync's lookup shouldn't write or notify anything, and the registry should
+    // answer it from its cache until the provider's location generation moves on.
+    public void testGetOrInsertUnchangedLocation() {
+        if ( Build.VERSION.SDK_INT < 11 ) return;
+
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        String cityName = locationValues.getAsString(LocationEntry.COLUMN_CITY_NAME);
+        double lat = locationValues.getAsDouble(LocationEntry.COLUMN_COORD_LAT);
+        double lon = locationValues.getAsDouble(LocationEntry.COLUMN_COORD_LONG);
+        Bundle extras = new Bundle();
+        extras.putString(LocationEntry.COLUMN_CITY_NAME, cityName);
+        extras.putDouble(LocationEntry.COLUMN_COORD_LAT, lat);
+        extras.putDouble(LocationEntry.COLUMN_COORD_LONG, lon);
+
+        Bundle first = mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_GET_OR_INSERT, TestUtilities.TEST_LOCATION, extras);
+        long locationRowId = first.getLong(LocationEntry._ID);
+
+        TestUtilities.TestContentObserver locationObserver =
+                TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true,
+                locationObserver);
+        Bundle second = mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_GET_OR_INSERT, TestUtilities.TEST_LOCATION, extras);
+        locationObserver.assertNoNotification();
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+        assertEquals(locationRowId, second.getLong(LocationEntry._ID));
+        assertEquals("Error: An unchanged location moved the generation on",
+                first.getInt(LocationEntry.EXTRA_GENERATION),
+                second.getInt(LocationEntry.EXTRA_GENERATION));
+        assertEquals(second.getInt(LocationEntry.EXTRA_GENERATION),
+                mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                        LocationEntry.METHOD_GET_GENERATION, null, null)
+                        .getInt(LocationEntry.EXTRA_GENERATION));
+
+        assertEquals(locationRowId, LocationRegistry.getLocationId(mContext,
+                TestUtilities.TEST_LOCATION, cityName, lat, lon));
+
+        // Once the location is gone, the registry mustn't hand out its old row
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationRowId)});
+        long newRowId = LocationRegistry.getLocationId(mContext, TestUtilities.TEST_LOCATION,
+                cityName, lat, lon);
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_LOCATION_SETTING},
+                LocationEntry._ID + " = ?", new String[]{Long.toString(newRowId)}, null);
+        assertTrue("Error: The registry returned a deleted location", cursor.moveToFirst());
+        assertEquals(TestUtilities.TEST_LOCATION, cursor.getString(0));
+        cursor.close();
+    }
+
+    // The Bundle snapshots are cached in the provider; make sure they match the data and are
+    // refreshed by the next write.
+    public void testWeatherSnapshots() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        // The snapshots start from today, so move the test days there
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(locationRowId);
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        for ( int i = 0; i < weatherValues.length; i++ ) {
+            weatherValues[i].put(WeatherEntry.COLUMN_DATE, today + i * 1000L * 60 * 60 * 24);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        Bundle todaySnapshot = WeatherSnapshots.getToday(mContext, TestUtilities.TEST_LOCATION);
+        assertNotNull(todaySnapshot);
+        assertEquals(today, todaySnapshot.getLong(WeatherEntry.COLUMN_DATE));
+        assertEquals(weatherValues[0].getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                todaySnapshot.getDouble(WeatherEntry.COLUMN_MAX_TEMP));
+
+        Bundle summary = WeatherSnapshots.getSummary(mContext, TestUtilities.TEST_LOCATION, 3);
+        assertEquals(3, WeatherSnapshots.getDayCount(summary));
+        assertEquals(weatherValues[2].getAsDouble(WeatherEntry.COLUMN_MIN_TEMP),
+                summary.getDoubleArray(WeatherEntry.COLUMN_MIN_TEMP)[2]);
+
+        // A caller writing into its copy's arrays mustn't reach the cached snapshot
+        summary.getDoubleArray(WeatherEntry.COLUMN_MIN_TEMP)[2] = -99.0;
+        summary = WeatherSnapshots.getSummary(mContext, TestUtilities.TEST_LOCATION, 3);
+        assertEquals("Error: The cached summary shares its arrays with callers",
+                weatherValues[2].getAsDouble(WeatherEntry.COLUMN_MIN_TEMP),
+                summary.getDoubleArray(WeatherEntry.COLUMN_MIN_TEMP)[2]);
+
+        // Replace today's weather; the cached snapshot has to go
+        weatherValues[0].put(WeatherEntry.COLUMN_MAX_TEMP, 99.0);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues[0]);
+        todaySnapshot = WeatherSnapshots.getToday(mContext, TestUtilities.TEST_LOCATION);
+        assertEquals(99.0, todaySnapshot.getDouble(WeatherEntry.COLUMN_MAX_TEMP));
+
+        assertNull(WeatherSnapshots.getToday(mContext, "nowhere"));
+    }
+
+    // Repeating a location query between writes should be answered from the provider's cache,
+    // and a write to that location should send the next query back to the database.
+    public void testQueryResultCache() {
+        if ( Build.VERSION.SDK_INT < 11 ) return;
+
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        Uri weatherUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        Bundle before = getQueryCacheStats();
+        Cursor cursor = mContext.getContentResolver().query(weatherUri, null, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        cursor.close();
+        cursor = mContext.getContentResolver().query(weatherUri, null, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        TestUtilities.validateCurrentRecord("testQueryResultCache. Error validating cached row",
+                cursor, weatherValues[0]);
+        cursor.close();
+        Bundle after = getQueryCacheStats();
+        assertEquals(1, after.getInt(WeatherContract.EXTRA_CACHE_HITS)
+                - before.getInt(WeatherContract.EXTRA_CACHE_HITS));
+        assertEquals(1, after.getInt(WeatherContract.EXTRA_CACHE_MISSES)
+                - before.getInt(WeatherContract.EXTRA_CACHE_MISSES));
+
+        // Rewrite the first day; the cached result for the location must not be served again
+        weatherValues[0].put(WeatherEntry.COLUMN_MAX_TEMP, 99.0);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues[0]);
+        cursor = mContext.getContentResolver().query(weatherUri, null, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        cursor.moveToFirst();
+        assertEquals(99.0, cursor.getDouble(cursor.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP)));
+        cursor.close();
+        assertEquals(after.getInt(WeatherContract.EXTRA_CACHE_HITS),
+                getQueryCacheStats().getInt(WeatherContract.EXTRA_CACHE_HITS));
+    }
+
+    // The first compaction should switch the database over to incremental auto-vacuum, and
+    // later ones should leave it there.
+    public void testCompact() {
+        if ( Build.VERSION.SDK_INT < 11 ) return;
+
+        mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_COMPACT, null, null);
+        mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_COMPACT, null, null);
+
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        assertEquals("Error: the database isn't using incremental auto-vacuum",
+                2, DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+        db.close();
+    }
+
+    // Archiving should move old days out of the weather table in bounded batches, without
+    // losing them from range queries, and roll them up by week and month.
+    public void testArchiveAndRollups() {
+        if ( Build.VERSION.SDK_INT < 11 ) return;
+
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        db.delete(WeatherContract.ArchiveEntry.TABLE_NAME, null, null);
+        db.delete(WeatherContract.RollupEntry.TABLE_NAME, null, null);
+        db.close();
+
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        // Every test day is long past, so three batches of four move all ten
+        Bundle extras = new Bundle();
+        extras.putInt(WeatherEntry.EXTRA_LIMIT, 4);
+        String cutoff = Long.toString(WeatherContract.normalizeDate(System.currentTimeMillis()));
+        int moved = 0;
+        for (int i = 0; i < 3; i++) {
+            Bundle result = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                    WeatherEntry.METHOD_ARCHIVE, cutoff, extras);
+            assertTrue("Error: archived more than the limit",
+                    result.getInt(WeatherEntry.EXTRA_COUNT) <= 4);
+            moved += result.getInt(WeatherEntry.EXTRA_COUNT);
+        }
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, moved);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: archived weather is still in the weather table", 0, cursor.getCount());
+        cursor.close();
+
+        long firstDate = weatherValues[0].getAsLong(WeatherEntry.COLUMN_DATE);
+        long lastDate = weatherValues[BULK_INSERT_RECORDS_TO_INSERT - 1]
+                .getAsLong(WeatherEntry.COLUMN_DATE);
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithRange(TestUtilities.TEST_LOCATION,
+                        firstDate, lastDate),
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToLast();
+        assertEquals("Error: archived weather doesn't match",
+                weatherValues[BULK_INSERT_RECORDS_TO_INSERT - 1]
+                        .getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                cursor.getDouble(cursor.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP)));
+        cursor.close();
+
+        // The test data falls in one month, and every day is in exactly one week
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithRollups(TestUtilities.TEST_LOCATION,
+                        WeatherContract.RollupEntry.PERIOD_MONTH, firstDate, lastDate),
+                null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getInt(
+                cursor.getColumnIndex(WeatherContract.RollupEntry.COLUMN_DAY_COUNT)));
+        assertEquals(weatherValues[BULK_INSERT_RECORDS_TO_INSERT - 1]
+                        .getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                cursor.getDouble(cursor.getColumnIndex(WeatherContract.RollupEntry.COLUMN_MAX_TEMP)));
+        assertEquals(weatherValues[BULK_INSERT_RECORDS_TO_INSERT - 1]
+                        .getAsDouble(WeatherEntry.COLUMN_MIN_TEMP),
+                cursor.getDouble(cursor.getColumnIndex(WeatherContract.RollupEntry.COLUMN_MIN_TEMP)));
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithRollups(TestUtilities.TEST_LOCATION,
+                        WeatherContract.RollupEntry.PERIOD_WEEK, firstDate, lastDate),
+                null, null, null, null);
+        int days = 0;
+        while (cursor.moveToNext()) {
+            days += cursor.getInt(
+                    cursor.getColumnIndex(WeatherContract.RollupEntry.COLUMN_DAY_COUNT));
+        }
+        cursor.close();
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, days);
+
+        // The days are long past the cutoff too, so pruning deletes them and their rollups
+        int pruned = 0;
+        int batch;
+        do {
+            Bundle result = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                    WeatherEntry.METHOD_PRUNE_ARCHIVE, cutoff, extras);
+            batch = result.getInt(WeatherEntry.EXTRA_COUNT);
+            assertTrue("Error: pruned more than the limit", batch <= 4);
+            pruned += batch;
+        } while (batch == 4);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, pruned);
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithRange(TestUtilities.TEST_LOCATION,
+                        firstDate, lastDate),
+                null, null, null, null);
+        assertEquals("Error: pruned days are still in the archive", 0, cursor.getCount());
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithRollups(TestUtilities.TEST_LOCATION,
+                        WeatherContract.RollupEntry.PERIOD_MONTH, firstDate, lastDate),
+                null, null, null, null);
+        assertEquals("Error: the rollups of pruned days were kept", 0, cursor.getCount());
+        cursor.close();
+    }
+
+    // A day's hourly uri should return just that day's hours for the location, in time order.
+    public void testHourlyForecastQuery() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        long day = WeatherContract.normalizeDate(System.currentTimeMillis());
+        long firstHour = WeatherContract.HourlyEntry.getHour(day);
+
+        // Two days of 3-hour steps, inserted newest first
+        ContentValues[] hours = new ContentValues[16];
+        for (int i = 0; i < hours.length; i++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+            values.put(WeatherContract.HourlyEntry.COLUMN_HOUR, firstHour + 3 * (hours.length - 1 - i));
+            values.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID, 800);
+            values.put(WeatherContract.HourlyEntry.COLUMN_TEMP, 10.0 + i);
+            values.put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY, 50.0);
+            values.put(WeatherContract.HourlyEntry.COLUMN_PRESSURE, 1013.0);
+            values.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED, 2.0);
+            values.put(WeatherContract.HourlyEntry.COLUMN_DEGREES, 90.0);
+            hours[i] = values;
+        }
+
+        TestUtilities.TestContentObserver hourlyObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherContract.HourlyEntry.CONTENT_URI, true, hourlyObserver);
+        assertEquals(hours.length, mContext.getContentResolver().bulkInsert(
+                WeatherContract.HourlyEntry.CONTENT_URI, hours));
+        hourlyObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(hourlyObserver);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.HourlyEntry.buildHourlyLocationWithDate(
+                        TestUtilities.TEST_LOCATION, day),
+                null, null, null, null);
+        assertEquals("Error: expected one day of 3-hour steps", 8, cursor.getCount());
+        long previousHour = firstHour - 1;
+        while (cursor.moveToNext()) {
+            long hour = cursor.getLong(
+                    cursor.getColumnIndex(WeatherContract.HourlyEntry.COLUMN_HOUR));
+            assertTrue("Error: hours out of order or outside the day",
+                    hour > previousHour && hour < firstHour + 24);
+            previousHour = hour;
+        }
+        cursor.close();
+    }
+
+    // The sync metrics table should keep only its newest MAX_ROWS rows, in insertion order.
+    public void testSyncMetricsRingBuffer() {
+        int extra = 10;
+        ContentValues[] phases = new ContentValues[WeatherContract.SyncMetricsEntry.MAX_ROWS + extra];
+        for (int i = 0; i < phases.length; i++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherContract.SyncMetricsEntry.COLUMN_SYNC_START, 1000L + i / 5);
+            values.put(WeatherContract.SyncMetricsEntry.COLUMN_PHASE, "phase" + (i % 5));
+            values.put(WeatherContract.SyncMetricsEntry.COLUMN_DURATION, i);
+            values.put(WeatherContract.SyncMetricsEntry.COLUMN_BYTES, -1);
+            phases[i] = values;
+        }
+
+        TestUtilities.TestContentObserver metricsObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherContract.SyncMetricsEntry.CONTENT_URI, true, metricsObserver);
+        assertEquals(phases.length, mContext.getContentResolver().bulkInsert(
+                WeatherContract.SyncMetricsEntry.CONTENT_URI, phases));
+        metricsObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(metricsObserver);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.SyncMetricsEntry.CONTENT_URI,
+                new String[]{WeatherContract.SyncMetricsEntry.COLUMN_DURATION},
+                null, null, WeatherContract.SyncMetricsEntry._ID + " ASC");
+        assertEquals("Error: the ring buffer wasn't trimmed",
+                WeatherContract.SyncMetricsEntry.MAX_ROWS, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the oldest rows should have gone first", extra, cursor.getLong(0));
+        assertTrue(cursor.moveToLast());
+        assertEquals(phases.length - 1, cursor.getLong(0));
+        cursor.close();
+    }
+
+    // A pushed delta should only write the days that changed, and only on top of the version it
+    // was made from; otherwise it should ask for a sync and leave the version to that sync.
+    public void testForecastDelta() throws Exception {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues version = new ContentValues();
+        version.put(LocationEntry.COLUMN_FORECAST_VERSION, 1);
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, version,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationRowId)});
+
+        ForecastDeltaApplier.Result result = ForecastDeltaApplier.apply(mContext,
+                buildDelta(1, 2, "[16800, 800, 20.0, 10.0, 60, 1013.0, 3.0, 270, \"Clear\"],"
+                        + "[16801, 500, 15.0, 8.0, 80, 1005.0, 6.0, 180, \"Rain\"]"));
+        assertEquals(2, result.written);
+        assertTrue(result.stale.isEmpty());
+
+        // The first day is the same as stored; only the second is written
+        result = ForecastDeltaApplier.apply(mContext,
+                buildDelta(2, 3, "[16800, 800, 20.0, 10.0, 60, 1013.0, 3.0, 270, \"Clear\"],"
+                        + "[16801, 500, 17.5, 8.0, 80, 1005.0, 6.0, 180, \"Rain\"]"));
+        assertEquals(1, result.written);
+        assertEquals(1, result.unchanged);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP}, WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationRowId)}, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToLast());
+        assertEquals(17.5, cursor.getDouble(0));
+        cursor.close();
+
+        // Made from a version this device never had
+        result = ForecastDeltaApplier.apply(mContext,
+                buildDelta(7, 8, "[16801, 200, 12.0, 6.0, 90, 1000.0, 9.0, 90, \"Storm\"]"));
+        assertEquals(0, result.written);
+        assertEquals(1, result.stale.size());
+        assertEquals(Long.valueOf(8), result.stale.get(TestUtilities.TEST_LOCATION));
+        assertEquals("Error: A delta that didn't fit moved the stored version",
+                3, getForecastVersion(locationRowId));
+
+        // Until the sync has stored a forecast, a repeat still doesn't fit
+        result = ForecastDeltaApplier.apply(mContext,
+                buildDelta(7, 8, "[16801, 200, 12.0, 6.0, 90, 1000.0, 9.0, 90, \"Storm\"]"));
+        assertEquals(1, result.stale.size());
+
+        // The sync records version 8 with the forecast it fetched, so a repeat is ignored
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ForecastDeltaApplier.buildVersionUpdate(locationRowId, 8));
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        assertEquals(8, getForecastVersion(locationRowId));
+        result = ForecastDeltaApplier.apply(mContext,
+                buildDelta(7, 8, "[16801, 200, 12.0, 6.0, 90, 1000.0, 9.0, 90, \"Storm\"]"));
+        assertEquals(0, result.written);
+        assertTrue(result.stale.isEmpty());
+
+        // A sync asked for by an older delta doesn't take the version back
+        operations.clear();
+        operations.add(ForecastDeltaApplier.buildVersionUpdate(locationRowId, 5));
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        assertEquals(8, getForecastVersion(locationRowId));
+    }
+
+    private long getForecastVersion(long locationRowId) {
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_FORECAST_VERSION}, LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationRowId)}, null);
+        assertTrue(cursor.moveToFirst());
+        long version = cursor.getLong(0);
+        cursor.close();
+        return version;
+    }
+
+    private static String buildDelta(long base, long version, String days) {
+        return "{\"deltas\": [{\"loc\": \"" + TestUtilities.TEST_LOCATION + "\", \"base\": "
+                + base + ", \"ver\": " + version + ", \"days\": [" + days + "]}]}";
+    }
+
+    // Location search should match word prefixes of the city name and setting, ignore query
+    // syntax in what's typed, and follow the location table as it changes.
+    public void testLocationSearch() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+
+        assertEquals(1, countSearchResults("nor"));
+        assertEquals(1, countSearchResults("POLE"));
+        assertEquals(1, countSearchResults("north po"));
+        assertEquals(1, countSearchResults(TestUtilities.TEST_LOCATION.substring(0, 2)));
+        assertEquals(1, countSearchResults("\"nor*\""));
+        assertEquals(0, countSearchResults("south"));
+        assertEquals(0, countSearchResults("-"));
+
+        ContentValues updatedValues = new ContentValues();
+        updatedValues.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, updatedValues,
+                LocationEntry._ID + "= ?", new String[]{Long.toString(locationRowId)});
+        assertEquals(0, countSearchResults("nor"));
+        assertEquals(1, countSearchResults("sant"));
+
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        assertEquals(0, countSearchResults("sant"));
+    }
+
+    // The grid lookup should find the same nearest location as checking every one, among
+    // enough locations that reading them all would show up in the timing.
+    public void testNearestLocation() {
+        final int LOCATIONS = 20000;
+        final double RADIUS_KM = 50;
+        java.util.Random random = new java.util.Random(42);
+        double[] lats = new double[LOCATIONS];
+        double[] lons = new double[LOCATIONS];
+
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < LOCATIONS; i++) {
+                // Crowd them into western Europe, and put a few right on the antimeridian
+                lats[i] = i % 100 == 0 ? random.nextDouble() * 10 - 5 : 40 + random.nextDouble() * 20;
+                lons[i] = i % 100 == 0 ? 179.95 + random.nextDouble() * 0.1 : random.nextDouble() * 20 - 5;
+                if (lons[i] > 180) lons[i] -= 360;
+                values.put(LocationEntry.COLUMN_LOCATION_SETTING, "synthetic" + i);
+                values.put(LocationEntry.COLUMN_CITY_NAME, "Synthetic " + i);
+                values.put(LocationEntry.COLUMN_COORD_LAT, lats[i]);
+                values.put(LocationEntry.COLUMN_COORD_LONG, lons[i]);
+                db.insert(LocationEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+
+        double[][] points = {{51.5, 0.0}, {48.85, 2.35}, {45.0, 10.0}, {0.0, 180.0},
+                {0.0, -179.99}, {70.0, 30.0}};
+        long elapsed = 0;
+        for (double[] point : points) {
+            double bestKm = RADIUS_KM;
+            String bestSetting = null;
+            for (int i = 0; i < LOCATIONS; i++) {
+                double km = GeoGrid.getDistanceKm(point[0], point[1], lats[i], lons[i]);
+                if (km <= bestKm) {
+                    bestKm = km;
+                    bestSetting = "synthetic" + i;
+                }
+            }
+
+            long start = System.nanoTime();
+            Cursor cursor = mContext.getContentResolver().query(
+                    LocationEntry.buildNearestLocationUri(point[0], point[1], RADIUS_KM),
+                    new String[]{LocationEntry.COLUMN_LOCATION_SETTING}, null, null, null);
+            elapsed += System.nanoTime() - start;
+            if (null == bestSetting) {
+                assertEquals("Error: found a location outside the radius", 0, cursor.getCount());
+            } else {
+                assertTrue("Error: found no location near " + point[0] + "," + point[1],
+                        cursor.moveToFirst());
+                assertEquals(bestSetting, cursor.getString(0));
+            }
+            cursor.close();
+        }
+        Log.d(LOG_TAG, "Nearest of " + LOCATIONS + " locations: "
+                + elapsed / points.length / 1000 + "us per lookup");
+
+        // Moving a location should move it in the grid too
+        ContentValues moved = new ContentValues();
+        moved.put(LocationEntry.COLUMN_COORD_LAT, -33.87);
+        moved.put(LocationEntry.COLUMN_COORD_LONG, 151.21);
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, moved,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{"synthetic1"});
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.buildNearestLocationUri(-33.8, 151.2, RADIUS_KM),
+                new String[]{LocationEntry.COLUMN_LOCATION_SETTING}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("synthetic1", cursor.getString(0));
+        cursor.close();
+    }
+
+    // Seeding a new location should copy its neighbor's upcoming weather under the new location,
+    // and leave an existing location alone.
+    public void testSeedFromNearestLocation() {
+        if ( Build.VERSION.SDK_INT < 11 ) return;
+
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ContentValues[] weatherValues = new ContentValues[3];
+        for (int i = 0; i < weatherValues.length; i++) {
+            weatherValues[i] = TestUtilities.createWeatherValues(locationRowId);
+            // yesterday, today and tomorrow
+            weatherValues[i].put(WeatherEntry.COLUMN_DATE,
+                    today + (i - 1) * android.text.format.DateUtils.DAY_IN_MILLIS);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        Bundle extras = new Bundle();
+        extras.putDouble(LocationEntry.COLUMN_COORD_LAT, 64.8);
+        extras.putDouble(LocationEntry.COLUMN_COORD_LONG, -147.4);
+        extras.putDouble(LocationEntry.EXTRA_RADIUS_KM, 25);
+        Bundle result = mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_SEED_FROM_NEAREST, "99706", extras);
+        assertNotNull("Error: the location wasn't seeded", result);
+        assertTrue(result.getLong(LocationEntry._ID) != locationRowId);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation("99706"), null, null, null, null);
+        assertEquals("Error: expected today's and tomorrow's weather", 2, cursor.getCount());
+        cursor.close();
+
+        assertNull("Error: an existing location was seeded again",
+                mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                        LocationEntry.METHOD_SEED_FROM_NEAREST, "99706", extras));
+        extras.putDouble(LocationEntry.COLUMN_COORD_LAT, -64.8);
+        assertNull("Error: seeded from a location outside the radius",
+                mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                        LocationEntry.METHOD_SEED_FROM_NEAREST, "south", extras));
+    }
+
+    // Seeding from an alias should copy the weather stored under its city's canonical location.
+    public void testSeedFromNearestAlias() {
+        if ( Build.VERSION.SDK_INT < 11 ) return;
+
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        Bundle extras = new Bundle();
+        extras.putString(LocationEntry.COLUMN_CITY_NAME,
+                locationValues.getAsString(LocationEntry.COLUMN_CITY_NAME));
+        extras.putDouble(LocationEntry.COLUMN_COORD_LAT,
+                locationValues.getAsDouble(LocationEntry.COLUMN_COORD_LAT));
+        extras.putDouble(LocationEntry.COLUMN_COORD_LONG,
+                locationValues.getAsDouble(LocationEntry.COLUMN_COORD_LONG));
+        long locationRowId = mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_GET_OR_INSERT, TestUtilities.TEST_LOCATION, extras)
+                .getLong(LocationEntry._ID);
+
+        // The same city, but closer to where the new location will be seeded
+        extras.putDouble(LocationEntry.COLUMN_COORD_LAT, 64.754);
+        extras.putDouble(LocationEntry.COLUMN_COORD_LONG, -147.354);
+        assertEquals("Error: the alias didn't get the city's location",
+                locationRowId, mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                        LocationEntry.METHOD_GET_OR_INSERT, "north pole,us", extras)
+                        .getLong(LocationEntry._ID));
+
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ContentValues[] weatherValues = new ContentValues[2];
+        for (int i = 0; i < weatherValues.length; i++) {
+            weatherValues[i] = TestUtilities.createWeatherValues(locationRowId);
+            weatherValues[i].put(WeatherEntry.COLUMN_DATE,
+                    today + i * android.text.format.DateUtils.DAY_IN_MILLIS);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        extras = new Bundle();
+        extras.putDouble(LocationEntry.COLUMN_COORD_LAT, 64.8);
+        extras.putDouble(LocationEntry.COLUMN_COORD_LONG, -147.4);
+        extras.putDouble(LocationEntry.EXTRA_RADIUS_KM, 25);
+        assertNotNull("Error: the location wasn't seeded",
+                mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                        LocationEntry.METHOD_SEED_FROM_NEAREST, "99706", extras));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation("99706"), null, null, null, null);
+        assertEquals("Error: the alias's weather wasn't copied",
+                weatherValues.length, cursor.getCount());
+        cursor.close();
+    }
+
+    // A seeded location should stay marked until the server confirms it, and a failed sync
+    // should be able to take it and its borrowed weather away again.
+    public void testDropSeededLocation() {
+        if ( Build.VERSION.SDK_INT < 11 ) return;
+
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        weatherValues.put(WeatherEntry.COLUMN_DATE,
+                WeatherContract.normalizeDate(System.currentTimeMillis()));
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        Bundle extras = new Bundle();
+        extras.putDouble(LocationEntry.COLUMN_COORD_LAT, 64.8);
+        extras.putDouble(LocationEntry.COLUMN_COORD_LONG, -147.4);
+        extras.putDouble(LocationEntry.EXTRA_RADIUS_KM, 25);
+        for (String setting : new String[]{"99706", "99707"}) {
+            assertNotNull(mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                    LocationEntry.METHOD_SEED_FROM_NEAREST, setting, extras));
+        }
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_SEEDED},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{"99706"}, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the seeded location isn't marked", 1, cursor.getInt(0));
+        cursor.close();
+
+        // The server confirms one of them
+        extras.putString(LocationEntry.COLUMN_CITY_NAME, "Fairbanks");
+        mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_GET_OR_INSERT, "99707", extras);
+        assertEquals("Error: a confirmed location was dropped", 0,
+                mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                        LocationEntry.METHOD_DROP_SEEDED, "99707", null)
+                        .getInt(WeatherEntry.EXTRA_COUNT));
+
+        assertEquals("Error: the seeded location wasn't dropped", 1,
+                mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                        LocationEntry.METHOD_DROP_SEEDED, "99706", null)
+                        .getInt(WeatherEntry.EXTRA_COUNT));
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation("99706"), null, null, null, null);
+        assertEquals("Error: the borrowed weather was left behind", 0, cursor.getCount());
+        cursor.close();
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), null, null, null, null);
+        assertEquals("Error: the neighbor's weather was dropped too", 1, cursor.getCount());
+        cursor.close();
+    }
+
+    // A forecast staged for a setting should become that setting's weather when promoted, taking
+    // everything else staged with it; an expired one shouldn't be promoted at all.
+    public void testPromoteStagedForecast() {
+        if ( Build.VERSION.SDK_INT < 11 ) return;
+
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ContentValues[] staged = new ContentValues[4];
+        for (int i = 0; i < staged.length; i++) {
+            // Two days each for the setting that's kept and one the user typed on from
+            staged[i] = createStagedValues(i < 2 ? TestUtilities.TEST_LOCATION : "9970",
+                    today + (i % 2) * android.text.format.DateUtils.DAY_IN_MILLIS,
+                    System.currentTimeMillis());
+        }
+        assertEquals(staged.length, mContext.getContentResolver().bulkInsert(
+                WeatherContract.StagingEntry.CONTENT_URI, staged));
+        // Staging a setting again replaces what it had
+        assertEquals(2, mContext.getContentResolver().bulkInsert(
+                WeatherContract.StagingEntry.CONTENT_URI,
+                new ContentValues[]{staged[0], staged[1]}));
+
+        Bundle result = mContext.getContentResolver().call(WeatherContract.StagingEntry.CONTENT_URI,
+                WeatherContract.StagingEntry.METHOD_PROMOTE, TestUtilities.TEST_LOCATION, null);
+        assertNotNull("Error: the staged forecast wasn't promoted", result);
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals("Error: expected the two staged days", 2, cursor.getCount());
+        cursor.close();
+
+        assertNull("Error: promoting should have emptied the staging table",
+                mContext.getContentResolver().call(WeatherContract.StagingEntry.CONTENT_URI,
+                        WeatherContract.StagingEntry.METHOD_PROMOTE, "9970", null));
+
+        mContext.getContentResolver().bulkInsert(WeatherContract.StagingEntry.CONTENT_URI,
+                new ContentValues[]{createStagedValues("99701", today,
+                        System.currentTimeMillis() - 2 * WeatherContract.StagingEntry.MAX_AGE)});
+        assertNull("Error: an expired forecast was promoted",
+                mContext.getContentResolver().call(WeatherContract.StagingEntry.CONTENT_URI,
+                        WeatherContract.StagingEntry.METHOD_PROMOTE, "99701", null));
+    }
+
+    private static ContentValues createStagedValues(String locationSetting, long date,
+                                                    long stagedAt) {
+        ContentValues values = TestUtilities.createWeatherValues(0);
+        values.remove(WeatherEntry.COLUMN_LOC_KEY);
+        values.put(WeatherEntry.COLUMN_DATE, date);
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        values.put(LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        values.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        values.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        values.put(WeatherContract.StagingEntry.COLUMN_STAGED_AT, stagedAt);
+        return values;
+    }
+
+    // Settings the server resolves to the same city should share one location's weather, and a
+    // write to it should reach every alias.
+    public void testLocationAliases() {
+        if ( Build.VERSION.SDK_INT < 11 ) return;
+
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        Bundle extras = new Bundle();
+        extras.putString(LocationEntry.COLUMN_CITY_NAME,
+                locationValues.getAsString(LocationEntry.COLUMN_CITY_NAME));
+        extras.putDouble(LocationEntry.COLUMN_COORD_LAT,
+                locationValues.getAsDouble(LocationEntry.COLUMN_COORD_LAT));
+        extras.putDouble(LocationEntry.COLUMN_COORD_LONG,
+                locationValues.getAsDouble(LocationEntry.COLUMN_COORD_LONG));
+        long locationRowId = mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_GET_OR_INSERT, TestUtilities.TEST_LOCATION, extras)
+                .getLong(LocationEntry._ID);
+
+        // The same city under another setting, spelled the way the server might send it
+        final String alias = "north pole,us";
+        extras.putString(LocationEntry.COLUMN_CITY_NAME, "NORTH POLE ");
+        assertEquals("Error: the alias didn't get the city's location",
+                locationRowId, mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                        LocationEntry.METHOD_GET_OR_INSERT, alias, extras)
+                        .getLong(LocationEntry._ID));
+
+        TestUtilities.TestContentObserver aliasObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(alias), true, aliasObserver);
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+        aliasObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(aliasObserver);
+
+        // Both with and without the location columns, which take different paths
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(alias), null, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(alias, cursor.getString(
+                cursor.getColumnIndex(LocationEntry.COLUMN_LOCATION_SETTING)));
+        cursor.close();
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(alias),
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+
+        // A different city stays separate
+        extras.putString(LocationEntry.COLUMN_CITY_NAME, "Fairbanks");
+        assertTrue(locationRowId != mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_GET_OR_INSERT, "99701", extras).getLong(LocationEntry._ID));
+
+        // The alias goes with the location holding its weather
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TestUtilities.TEST_LOCATION});
+        cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_LOCATION_SETTING}, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    private int countSearchResults(String prefix) {
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.buildLocationSearchUri(prefix),
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_CITY_NAME}, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private Bundle getQueryCacheStats() {
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_GET_QUERY_CACHE_STATS, null, null);
+    }
 }
@@ -122,6 +122,7 @@ public class TestUtilities extends AndroidTestCase {
     static class TestContentObserver extends ContentObserver {
         final HandlerThread mHT;
         boolean mContentChanged;
+        volatile int mChangeCount;
 
         static TestContentObserver getTestContentObserver() {
             HandlerThread ht = new HandlerThread("ContentObserverThread");
@@ -143,6 +144,7 @@ public class TestUtilities extends AndroidTestCase {
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             mContentChanged = true;
+            mChangeCount++;
         }
 
         public void waitForNotificationOrFail() {
@@ -158,6 +160,23 @@ public class TestUtilities extends AndroidTestCase {
             }.run();
             mHT.quit();
         }
+
+        // Gives a notification the same time waitForNotificationOrFail would to arrive, then
+        // fails if one did.
+        public void assertNoNotification() {
+            assertNotificationCount(0);
+        }
+
+        // Gives any further notifications time to arrive, then checks how many there were in all.
+        public void assertNotificationCount(int expected) {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mHT.quit();
+            assertEquals("Error: Unexpected number of notifications.", expected, mChangeCount);
+        }
     }
 
     static TestContentObserver getTestContentObserver() {
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+/*
+    Walks SyncFailurePolicy through its backoff and its circuit's states.  The policy keeps its
+    state in the default preferences, so each test starts and ends with the circuit closed and
+    no failures recorded.
+ */
+public class TestSyncFailurePolicy extends AndroidTestCase {
+
+    // Failures before the circuit opens, and the bounds on the backoff, in seconds
+    private static final int OPEN_AFTER_FAILURES = 5;
+    private static final long MIN_BACKOFF = 60;
+    private static final long MAX_BACKOFF = 6 * 60 * 60;
+    private static final long OPEN_PERIOD = 60 * 60;
+
+    private void resetPolicy() {
+        // A success closes the circuit and forgets the failures
+        SyncFailurePolicy.onSuccess(mContext);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        resetPolicy();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        resetPolicy();
+        super.tearDown();
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private void recordFailures(int failure, int times) {
+        for (int i = 0; i < times; i++) {
+            SyncFailurePolicy.onFailure(mContext, new SyncResult(), failure);
+        }
+    }
+
+    public void testGetBackoff() {
+        assertEquals(MIN_BACKOFF, SyncFailurePolicy.getBackoff(1));
+        assertEquals("Error: The backoff didn't double",
+                2 * MIN_BACKOFF, SyncFailurePolicy.getBackoff(2));
+        assertEquals(4 * MIN_BACKOFF, SyncFailurePolicy.getBackoff(3));
+        assertEquals("Error: The backoff went past its cap",
+                MAX_BACKOFF, SyncFailurePolicy.getBackoff(10));
+        assertEquals("Error: The backoff overflowed after many failures",
+                MAX_BACKOFF, SyncFailurePolicy.getBackoff(1000));
+    }
+
+    public void testGetFailure() {
+        assertEquals("Error: 429 wasn't treated as the server asking for a break",
+                SyncFailurePolicy.FAILURE_SERVER, SyncFailurePolicy.getFailure(429));
+        assertEquals(SyncFailurePolicy.FAILURE_SERVER, SyncFailurePolicy.getFailure(500));
+        assertEquals(SyncFailurePolicy.FAILURE_SERVER, SyncFailurePolicy.getFailure(503));
+        assertEquals("Error: A rejected API key was retried as if it might start working",
+                SyncFailurePolicy.FAILURE_PARSE, SyncFailurePolicy.getFailure(401));
+        assertEquals(SyncFailurePolicy.FAILURE_PARSE, SyncFailurePolicy.getFailure(400));
+    }
+
+    public void testBackoffIsJittered() {
+        SyncResult syncResult = new SyncResult();
+        long before = now();
+        SyncFailurePolicy.onFailure(mContext, syncResult, SyncFailurePolicy.FAILURE_NETWORK);
+        long after = now();
+        assertEquals("Error: A network failure wasn't a soft error",
+                1, syncResult.stats.numIoExceptions);
+        assertTrue("Error: The first retry came outside its backoff",
+                syncResult.delayUntil >= before + MIN_BACKOFF / 2
+                        && syncResult.delayUntil <= after + MIN_BACKOFF);
+
+        syncResult = new SyncResult();
+        before = now();
+        SyncFailurePolicy.onFailure(mContext, syncResult, SyncFailurePolicy.FAILURE_NETWORK);
+        after = now();
+        assertTrue("Error: The second retry didn't back off further",
+                syncResult.delayUntil >= before + MIN_BACKOFF
+                        && syncResult.delayUntil <= after + 2 * MIN_BACKOFF);
+    }
+
+    public void testParseFailureIsHard() {
+        SyncResult syncResult = new SyncResult();
+        SyncFailurePolicy.onFailure(mContext, syncResult, SyncFailurePolicy.FAILURE_PARSE);
+        assertEquals(1, syncResult.stats.numParseExceptions);
+        assertEquals(0, syncResult.stats.numIoExceptions);
+        assertTrue("Error: A parse failure was treated as a soft error", syncResult.hasHardError());
+    }
+
+    public void testNetworkFailuresKeepCircuitClosed() {
+        recordFailures(SyncFailurePolicy.FAILURE_NETWORK, OPEN_AFTER_FAILURES * 2);
+        assertTrue("Error: Network failures opened the circuit",
+                SyncFailurePolicy.allowSync(mContext, new SyncResult()));
+    }
+
+    public void testServerFailuresOpenCircuit() {
+        recordFailures(SyncFailurePolicy.FAILURE_SERVER, OPEN_AFTER_FAILURES - 1);
+        assertTrue("Error: The circuit opened too soon",
+                SyncFailurePolicy.allowSync(mContext, new SyncResult()));
+
+        // A network failure in between starts the count over
+        recordFailures(SyncFailurePolicy.FAILURE_NETWORK, 1);
+        recordFailures(SyncFailurePolicy.FAILURE_SERVER, OPEN_AFTER_FAILURES - 1);
+        assertTrue("Error: Server failures that weren't consecutive opened the circuit",
+                SyncFailurePolicy.allowSync(mContext, new SyncResult()));
+
+        recordFailures(SyncFailurePolicy.FAILURE_SERVER, 1);
+        SyncResult syncResult = new SyncResult();
+        long before = now();
+        assertFalse("Error: The circuit didn't open",
+                SyncFailurePolicy.allowSync(mContext, syncResult));
+        assertTrue("Error: The open circuit didn't delay the next sync",
+                syncResult.delayUntil >= before + OPEN_PERIOD / 2);
+    }
+
+    public void testHalfOpenProbe() {
+        recordFailures(SyncFailurePolicy.FAILURE_SERVER, OPEN_AFTER_FAILURES);
+        expireOpenPeriod();
+
+        assertTrue("Error: The probe wasn't let through once the circuit's time was up",
+                SyncFailurePolicy.allowSync(mContext, new SyncResult()));
+        assertFalse("Error: A second sync was let through while the probe was running",
+                SyncFailurePolicy.allowSync(mContext, new SyncResult()));
+
+        // A probe that fails at the server opens the circuit straight away
+        recordFailures(SyncFailurePolicy.FAILURE_SERVER, 1);
+        assertFalse("Error: A failed probe didn't open the circuit again",
+                SyncFailurePolicy.allowSync(mContext, new SyncResult()));
+
+        // A probe that doesn't reach the server lets the next one try
+        expireOpenPeriod();
+        assertTrue(SyncFailurePolicy.allowSync(mContext, new SyncResult()));
+        recordFailures(SyncFailurePolicy.FAILURE_NETWORK, 1);
+        assertTrue("Error: A probe that never reached the server blocked the next one",
+                SyncFailurePolicy.allowSync(mContext, new SyncResult()));
+
+        // And a probe that works closes it
+        SyncFailurePolicy.onSuccess(mContext);
+        recordFailures(SyncFailurePolicy.FAILURE_SERVER, 1);
+        assertTrue("Error: The circuit didn't close after the probe succeeded",
+                SyncFailurePolicy.allowSync(mContext, new SyncResult()));
+    }
+
+    private void expireOpenPeriod() {
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putLong(SyncFailurePolicy.PREF_OPEN_UNTIL, 0)
+                .commit();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+
+/*
+    SyncScheduler.decide is a function of its arguments alone, so these tests don't need a
+    device's battery, network or history.  Like the UriMatcher test, this one lives in the same
+    package as the code so it can use the package-private constants.
+ */
+public class TestSyncScheduler extends AndroidTestCase {
+    private static final int HOUR = 60 * 60;
+    // 6:00 in the morning
+    private static final int MORNING = 6 * 60;
+
+    public void testDefaultInterval() {
+        SyncScheduler.Decision decision =
+                SyncScheduler.decide(MORNING, 0.3f, new float[24], true, true);
+        assertEquals("Error: An average forecast didn't keep the old schedule",
+                SyncScheduler.DEFAULT_INTERVAL, decision.intervalSeconds);
+        assertEquals(SyncScheduler.DEFAULT_INTERVAL / 3, decision.flexSeconds);
+        assertEquals(SyncScheduler.REASON_DEFAULT, decision.reason);
+    }
+
+    public void testChangeRate() {
+        SyncScheduler.Decision decision =
+                SyncScheduler.decide(MORNING, 0.6f, new float[24], true, true);
+        assertEquals("Error: A volatile forecast wasn't synced more often",
+                2 * HOUR, decision.intervalSeconds);
+        assertEquals(SyncScheduler.REASON_VOLATILE, decision.reason);
+
+        decision = SyncScheduler.decide(MORNING, 0.1f, new float[24], true, true);
+        assertEquals("Error: A stable forecast wasn't synced less often",
+                6 * HOUR, decision.intervalSeconds);
+        assertEquals(SyncScheduler.REASON_STABLE, decision.reason);
+
+        decision = SyncScheduler.decide(MORNING, 0f, new float[24], true, true);
+        assertEquals(SyncScheduler.MAX_INTERVAL, decision.intervalSeconds);
+    }
+
+    public void testBatteryAndMeteredNetwork() {
+        SyncScheduler.Decision decision =
+                SyncScheduler.decide(MORNING, 0.6f, new float[24], false, false);
+        assertEquals("Error: Syncing on battery and a metered network wasn't stretched",
+                3 * HOUR, decision.intervalSeconds);
+
+        decision = SyncScheduler.decide(MORNING, 0.6f, new float[24], false, true);
+        assertEquals("Error: Syncing on an unmetered network was stretched",
+                2 * HOUR, decision.intervalSeconds);
+
+        decision = SyncScheduler.decide(MORNING, 0f, new float[24], false, false);
+        assertEquals("Error: The stretched period went past the maximum",
+                SyncScheduler.MAX_INTERVAL, decision.intervalSeconds);
+    }
+
+    public void testPresync() {
+        float[] usage = new float[24];
+        usage[8] = 10;
+
+        // The app is usually opened at 8:00, two hours from now, inside the default period
+        SyncScheduler.Decision decision = SyncScheduler.decide(MORNING, 0.3f, usage, true, true);
+        assertEquals("Error: The sync wasn't moved to before the usual open",
+                2 * HOUR - SyncScheduler.PRESYNC_LEAD, decision.intervalSeconds);
+        assertEquals(SyncScheduler.PRESYNC_FLEX, decision.flexSeconds);
+        assertEquals(SyncScheduler.REASON_PRESYNC, decision.reason);
+
+        // At 7:30 it's too soon to sync again before then
+        decision = SyncScheduler.decide(7 * 60 + 30, 0.3f, usage, true, true);
+        assertEquals("Error: The sync was moved to sooner than the minimum period",
+                SyncScheduler.REASON_DEFAULT, decision.reason);
+
+        // Too few opens to tell a habit from chance
+        usage[8] = SyncScheduler.USAGE_MIN_WEIGHT - 1;
+        decision = SyncScheduler.decide(MORNING, 0.3f, usage, true, true);
+        assertEquals("Error: The sync followed too little usage",
+                SyncScheduler.REASON_DEFAULT, decision.reason);
+    }
+
+    public void testReplay() throws Exception {
+        long time = 1419033600000L;  // December 20th, 2014
+        String noUsage = SyncScheduler.formatUsage(new float[24]);
+        String log =
+                SyncScheduler.RECORD_SYNC + "," + time + "," + MORNING + ",0.0\n" +
+                // A decision the current policy makes differently: it picks the default
+                SyncScheduler.RECORD_DECISION + "," + time + "," + MORNING + ",0.3," + noUsage
+                        + ",1,1," + HOUR + ",1200," + SyncScheduler.REASON_VOLATILE + "\n" +
+                "decision,cut short\n" +
+                SyncScheduler.RECORD_USAGE + "," + (time + HOUR * 1000L) + "," + (MORNING + 60)
+                        + "\n";
+
+        SyncScheduleReplay.Result result =
+                SyncScheduleReplay.replay(new BufferedReader(new StringReader(log)));
+        assertEquals(1, result.syncs);
+        assertEquals("Error: A sync that changed nothing wasn't counted as wasted",
+                1, result.wastedSyncs);
+        assertEquals("Error: The line that was cut short wasn't skipped", 1, result.decisions);
+        assertEquals("Error: The replayed decision matched the recorded one",
+                1, result.changedDecisions);
+        assertEquals(HOUR, result.recordedIntervalSeconds);
+        assertEquals(SyncScheduler.DEFAULT_INTERVAL, result.replayedIntervalSeconds);
+        assertEquals(1, result.usages);
+        assertEquals(HOUR, result.recordedAgeSeconds);
+        assertEquals(HOUR, result.replayedAgeSeconds);
+    }
+}
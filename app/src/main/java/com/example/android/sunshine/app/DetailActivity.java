@@ -41,6 +41,8 @@ public class DetailActivity extends AppCompatActivity {
             Bundle arguments = new Bundle();
             arguments.putParcelable(DetailFragment.DETAIL_URI, getIntent().getData());
             arguments.putBoolean(DetailFragment.DETAIL_TRANSITION_ANIMATION, true);
+            arguments.putParcelable(DetailFragment.DETAIL_VALUES,
+                    getIntent().getParcelableExtra(DetailFragment.DETAIL_VALUES));
 
             DetailFragment fragment = new DetailFragment();
             fragment.setArguments(arguments);
@@ -15,13 +15,13 @@
  */
 package com.example.android.sunshine.app;
 
+import android.content.ContentValues;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.CardView;
@@ -50,12 +50,17 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
     private static final String LOG_TAG = DetailFragment.class.getSimpleName();
     static final String DETAIL_URI = "URI";
     static final String DETAIL_TRANSITION_ANIMATION = "DTA";
+    static final String DETAIL_VALUES = "DVALUES";
 
     private static final String FORECAST_SHARE_HASHTAG = " #SunshineApp";
 
     private String mForecast;
     private Uri mUri;
     private boolean mTransitionAnimation;
+    // The row handed over by the forecast list, if any, and whatever is currently on screen.
+    private ContentValues mHandoffValues;
+    private ContentValues mBoundValues;
+    private boolean mDetailShown;
 
     private static final int DETAIL_LOADER = 0;
 
@@ -69,10 +74,7 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
             WeatherEntry.COLUMN_PRESSURE,
             WeatherEntry.COLUMN_WIND_SPEED,
             WeatherEntry.COLUMN_DEGREES,
-            WeatherEntry.COLUMN_WEATHER_ID,
-            // This works because the WeatherProvider returns location data joined with
-            // weather data, even though they're stored in two different tables.
-            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING
+            WeatherEntry.COLUMN_WEATHER_ID
     };
 
     // These indices are tied to DETAIL_COLUMNS.  If DETAIL_COLUMNS changes, these
@@ -112,6 +114,7 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
         if (arguments != null) {
             mUri = arguments.getParcelable(DetailFragment.DETAIL_URI);
             mTransitionAnimation = arguments.getBoolean(DetailFragment.DETAIL_TRANSITION_ANIMATION, false);
+            mHandoffValues = arguments.getParcelable(DetailFragment.DETAIL_VALUES);
         }
 
         View rootView = inflater.inflate(R.layout.fragment_detail_start, container, false);
@@ -154,6 +157,12 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
+        // If the list handed us the row, draw it right away.  The loader still runs, but only
+        // to pick up anything that changed since the list read it.
+        if ( null != mHandoffValues && null != mUri ) {
+            bindDetail(mHandoffValues);
+            onDetailShown();
+        }
         getLoaderManager().initLoader(DETAIL_LOADER, null, this);
         super.onActivityCreated(savedInstanceState);
     }
@@ -172,9 +181,9 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         if ( null != mUri ) {
-            // Now create and return a CursorLoader that will take care of
-            // creating a Cursor for the data being displayed.
-            return new CursorLoader(
+            // Now create and return a loader that will take care of creating a Cursor for the
+            // data being displayed, along with its display strings.
+            return new WeatherTextLoader(
                     getActivity(),
                     mUri,
                     DETAIL_COLUMNS,
@@ -190,87 +199,129 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
         return null;
     }
 
+    /**
+     * Packs a single day's forecast into the form {@link #bindDetail(ContentValues)} uses.  The
+     * forecast list uses this to hand a clicked row to the detail view, and the detail loader
+     * uses it so the two can be compared for freshness.  Callers add the row's display strings
+     * with {@link WeatherTextCursor#putText(ContentValues)}.
+     */
+    static ContentValues buildDetailValues(long date, int weatherId, double high, double low,
+                                           float humidity, float pressure, float windSpeed,
+                                           float degrees) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_DATE, date);
+        values.put(WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, high);
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, low);
+        values.put(WeatherEntry.COLUMN_HUMIDITY, humidity);
+        values.put(WeatherEntry.COLUMN_PRESSURE, pressure);
+        values.put(WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+        values.put(WeatherEntry.COLUMN_DEGREES, degrees);
+        return values;
+    }
+
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
         if (data != null && data.moveToFirst()) {
-            ViewParent vp = getView().getParent();
-            if ( vp instanceof CardView ) {
-                ((View)vp).setVisibility(View.VISIBLE);
+            ContentValues values = buildDetailValues(
+                    data.getLong(COL_WEATHER_DATE),
+                    data.getInt(COL_WEATHER_CONDITION_ID),
+                    data.getDouble(COL_WEATHER_MAX_TEMP),
+                    data.getDouble(COL_WEATHER_MIN_TEMP),
+                    data.getFloat(COL_WEATHER_HUMIDITY),
+                    data.getFloat(COL_WEATHER_PRESSURE),
+                    data.getFloat(COL_WEATHER_WIND_SPEED),
+                    data.getFloat(COL_WEATHER_DEGREES));
+            ((WeatherTextCursor) data).putText(values);
+            // Nothing to do if the handed-over row is still current
+            if (!values.equals(mBoundValues)) {
+                bindDetail(values);
             }
+        }
+        onDetailShown();
+    }
 
-            // Read weather condition ID from cursor
-            int weatherId = data.getInt(COL_WEATHER_CONDITION_ID);
-
-            if ( Utility.usingLocalGraphics(getActivity()) ) {
-                mIconView.setImageResource(Utility.getArtResourceForWeatherCondition(weatherId));
-            } else {
-                // Use weather art image
-                Glide.with(this)
-                        .load(Utility.getArtUrlForWeatherCondition(getActivity(), weatherId))
-                        .error(Utility.getArtResourceForWeatherCondition(weatherId))
-                        .crossFade()
-                        .into(mIconView);
-            }
+    private void bindDetail(ContentValues values) {
+        mBoundValues = values;
 
-            // Read date from cursor and update views for day of week and date
-            long date = data.getLong(COL_WEATHER_DATE);
-            String dateText = Utility.getFullFriendlyDayString(getActivity(),date);
-            mDateView.setText(dateText);
-
-            // Get description from weather condition ID
-            String description = Utility.getStringForWeatherCondition(getActivity(), weatherId);
-            mDescriptionView.setText(description);
-            mDescriptionView.setContentDescription(getString(R.string.a11y_forecast, description));
-
-            // For accessibility, add a content description to the icon field. Because the ImageView
-            // is independently focusable, it's better to have a description of the image. Using
-            // null is appropriate when the image is purely decorative or when the image already
-            // has text describing it in the same UI component.
-            mIconView.setContentDescription(getString(R.string.a11y_forecast_icon, description));
-
-            // Read high temperature from cursor and update view
-            boolean isMetric = Utility.isMetric(getActivity());
-
-            double high = data.getDouble(COL_WEATHER_MAX_TEMP);
-            String highString = Utility.formatTemperature(getActivity(), high);
-            mHighTempView.setText(highString);
-            mHighTempView.setContentDescription(getString(R.string.a11y_high_temp, highString));
-
-            // Read low temperature from cursor and update view
-            double low = data.getDouble(COL_WEATHER_MIN_TEMP);
-            String lowString = Utility.formatTemperature(getActivity(), low);
-            mLowTempView.setText(lowString);
-            mLowTempView.setContentDescription(getString(R.string.a11y_low_temp, lowString));
-
-            // Read humidity from cursor and update view
-            float humidity = data.getFloat(COL_WEATHER_HUMIDITY);
-            mHumidityView.setText(getActivity().getString(R.string.format_humidity, humidity));
-            mHumidityView.setContentDescription(getString(R.string.a11y_humidity, mHumidityView.getText()));
-            mHumidityLabelView.setContentDescription(mHumidityView.getContentDescription());
-
-            // Read wind speed and direction from cursor and update view
-            float windSpeedStr = data.getFloat(COL_WEATHER_WIND_SPEED);
-            float windDirStr = data.getFloat(COL_WEATHER_DEGREES);
-            mWindView.setText(Utility.getFormattedWind(getActivity(), windSpeedStr, windDirStr));
-            mWindView.setContentDescription(getString(R.string.a11y_wind, mWindView.getText()));
-            mWindLabelView.setContentDescription(mWindView.getContentDescription());
-
-            // Read pressure from cursor and update view
-            float pressure = data.getFloat(COL_WEATHER_PRESSURE);
-            mPressureView.setText(getString(R.string.format_pressure, pressure));
-            mPressureView.setContentDescription(getString(R.string.a11y_pressure, mPressureView.getText()));
-            mPressureLabelView.setContentDescription(mPressureView.getContentDescription());
-
-            // We still need this for the share intent
-            mForecast = String.format("%s - %s - %s/%s", dateText, description, high, low);
+        ViewParent vp = getView().getParent();
+        if ( vp instanceof CardView ) {
+            ((View)vp).setVisibility(View.VISIBLE);
+        }
+
+        // Read weather condition ID
+        int weatherId = values.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID);
 
+        if ( Utility.usingLocalGraphics(getActivity()) ) {
+            mIconView.setImageResource(Utility.getArtResourceForWeatherCondition(weatherId));
+        } else {
+            // Use weather art image
+            Glide.with(this)
+                    .load(Utility.getArtUrlForWeatherCondition(getActivity(), weatherId))
+                    .error(Utility.getArtResourceForWeatherCondition(weatherId))
+                    .crossFade()
+                    .into(mIconView);
         }
+
+        // The strings were formatted off the main thread when the row was loaded; see
+        // WeatherTextCursor
+        String dateText = WeatherTextCursor.getText(values, WeatherTextCursor.TEXT_FULL_DATE);
+        mDateView.setText(dateText);
+
+        String description = WeatherTextCursor.getText(values, WeatherTextCursor.TEXT_DESCRIPTION);
+        mDescriptionView.setText(description);
+        mDescriptionView.setContentDescription(
+                WeatherTextCursor.getText(values, WeatherTextCursor.TEXT_DESCRIPTION_A11Y));
+
+        // For accessibility, add a content description to the icon field. Because the ImageView
+        // is independently focusable, it's better to have a description of the image. Using
+        // null is appropriate when the image is purely decorative or when the image already
+        // has text describing it in the same UI component.
+        mIconView.setContentDescription(
+                WeatherTextCursor.getText(values, WeatherTextCursor.TEXT_ICON_A11Y));
+
+        mHighTempView.setText(WeatherTextCursor.getText(values, WeatherTextCursor.TEXT_HIGH));
+        mHighTempView.setContentDescription(
+                WeatherTextCursor.getText(values, WeatherTextCursor.TEXT_HIGH_A11Y));
+
+        mLowTempView.setText(WeatherTextCursor.getText(values, WeatherTextCursor.TEXT_LOW));
+        mLowTempView.setContentDescription(
+                WeatherTextCursor.getText(values, WeatherTextCursor.TEXT_LOW_A11Y));
+
+        mHumidityView.setText(WeatherTextCursor.getText(values, WeatherTextCursor.TEXT_HUMIDITY));
+        mHumidityView.setContentDescription(
+                WeatherTextCursor.getText(values, WeatherTextCursor.TEXT_HUMIDITY_A11Y));
+        mHumidityLabelView.setContentDescription(mHumidityView.getContentDescription());
+
+        mWindView.setText(WeatherTextCursor.getText(values, WeatherTextCursor.TEXT_WIND));
+        mWindView.setContentDescription(
+                WeatherTextCursor.getText(values, WeatherTextCursor.TEXT_WIND_A11Y));
+        mWindLabelView.setContentDescription(mWindView.getContentDescription());
+
+        mPressureView.setText(WeatherTextCursor.getText(values, WeatherTextCursor.TEXT_PRESSURE));
+        mPressureView.setContentDescription(
+                WeatherTextCursor.getText(values, WeatherTextCursor.TEXT_PRESSURE_A11Y));
+        mPressureLabelView.setContentDescription(mPressureView.getContentDescription());
+
+        double high = values.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP);
+        double low = values.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP);
+        // We still need this for the share intent
+        mForecast = String.format("%s - %s - %s/%s", dateText, description, high, low);
+    }
+
+    /*
+        Sets up the toolbar so the share action picks up what is on screen and, the first time
+        through, starts the postponed enter transition if we're animating in.
+     */
+    private void onDetailShown() {
         AppCompatActivity activity = (AppCompatActivity)getActivity();
         Toolbar toolbarView = (Toolbar) getView().findViewById(R.id.toolbar);
 
-        // We need to start the enter transition after the data has loaded
+        // We need to start the enter transition after the data has been bound
         if ( mTransitionAnimation ) {
-            activity.supportStartPostponedEnterTransition();
+            if ( !mDetailShown ) {
+                activity.supportStartPostponedEnterTransition();
+            }
 
             if ( null != toolbarView ) {
                 activity.setSupportActionBar(toolbarView);
@@ -286,8 +337,9 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
                 finishCreatingMenu(toolbarView.getMenu());
             }
         }
+        mDetailShown = true;
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) { }
-}
\ No newline at end of file
+}
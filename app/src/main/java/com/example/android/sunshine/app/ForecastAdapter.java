@@ -15,6 +15,7 @@
  */
 package com.example.android.sunshine.app;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.os.Build;
@@ -33,6 +34,8 @@ import com.bumptech.glide.Glide;
 import com.example.android.sunshine.R;
 import com.example.android.sunshine.app.data.WeatherContract;
 
+import java.util.Arrays;
+
 /**
  * {@link ForecastAdapter} exposes a list of weather forecasts
  * from a {@link android.database.Cursor} to a {@link android.support.v7.widget.RecyclerView}.
@@ -45,7 +48,10 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
     // Flag to determine if we want to use a separate view for "today".
     private boolean mUseTodayLayout = true;
 
-    private Cursor mCursor;
+    private WeatherTextCursor mCursor;
+    // Dates of the rows in mCursor, in cursor order.  The loader sorts by date, so this is
+    // sorted too and can be binary searched.
+    private long[] mDates = new long[0];
     final private Context mContext;
     final private ForecastAdapterOnClickHandler mClickHandler;
     final private View mEmptyView;
@@ -74,9 +80,7 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         @Override
         public void onClick(View v) {
             int adapterPosition = getAdapterPosition();
-            mCursor.moveToPosition(adapterPosition);
-            int dateColumnIndex = mCursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
-            mClickHandler.onClick(mCursor.getLong(dateColumnIndex), this);
+            mClickHandler.onClick(mDates[adapterPosition], this);
             mICM.onClick(this);
         }
     }
@@ -89,6 +93,9 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         mContext = context;
         mClickHandler = dh;
         mEmptyView = emptyView;
+        // Each row is a distinct day for the current location, so the date makes a stable ID.
+        // That lets the ItemChoiceManager follow selections across data changes.
+        setHasStableIds(true);
         mICM = new ItemChoiceManager(this);
         mICM.setChoiceMode(choiceMode);
     }
@@ -154,34 +161,26 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         // the animator can use this to re-find the original view
         ViewCompat.setTransitionName(forecastAdapterViewHolder.mIconView, "iconView" + position);
 
-        // Read date from cursor
-        long dateInMillis = mCursor.getLong(ForecastFragment.COL_WEATHER_DATE);
-
-        // Find TextView and set formatted date on it
-        forecastAdapterViewHolder.mDateView.setText(Utility.getFriendlyDayString(mContext, dateInMillis, useLongToday));
+        // The strings were formatted when the cursor was loaded; see WeatherTextCursor
+        forecastAdapterViewHolder.mDateView.setText(mCursor.getText(useLongToday
+                ? WeatherTextCursor.TEXT_DAY_WITH_TODAY : WeatherTextCursor.TEXT_DAY));
 
-        // Read weather forecast from cursor
-        String description = Utility.getStringForWeatherCondition(mContext, weatherId);
-
-        // Find TextView and set weather forecast on it
-        forecastAdapterViewHolder.mDescriptionView.setText(description);
-        forecastAdapterViewHolder.mDescriptionView.setContentDescription(mContext.getString(R.string.a11y_forecast, description));
+        forecastAdapterViewHolder.mDescriptionView.setText(
+                mCursor.getText(WeatherTextCursor.TEXT_DESCRIPTION));
+        forecastAdapterViewHolder.mDescriptionView.setContentDescription(
+                mCursor.getText(WeatherTextCursor.TEXT_DESCRIPTION_A11Y));
 
         // For accessibility, we don't want a content description for the icon field
         // because the information is repeated in the description view and the icon
         // is not individually selectable
 
-        // Read high temperature from cursor
-        double high = mCursor.getDouble(ForecastFragment.COL_WEATHER_MAX_TEMP);
-        String highString = Utility.formatTemperature(mContext, high);
-        forecastAdapterViewHolder.mHighTempView.setText(highString);
-        forecastAdapterViewHolder.mHighTempView.setContentDescription(mContext.getString(R.string.a11y_high_temp, highString));
+        forecastAdapterViewHolder.mHighTempView.setText(mCursor.getText(WeatherTextCursor.TEXT_HIGH));
+        forecastAdapterViewHolder.mHighTempView.setContentDescription(
+                mCursor.getText(WeatherTextCursor.TEXT_HIGH_A11Y));
 
-        // Read low temperature from cursor
-        double low = mCursor.getDouble(ForecastFragment.COL_WEATHER_MIN_TEMP);
-        String lowString = Utility.formatTemperature(mContext, low);
-        forecastAdapterViewHolder.mLowTempView.setText(lowString);
-        forecastAdapterViewHolder.mLowTempView.setContentDescription(mContext.getString(R.string.a11y_low_temp, lowString));
+        forecastAdapterViewHolder.mLowTempView.setText(mCursor.getText(WeatherTextCursor.TEXT_LOW));
+        forecastAdapterViewHolder.mLowTempView.setContentDescription(
+                mCursor.getText(WeatherTextCursor.TEXT_LOW_A11Y));
 
         mICM.onBindViewHolder(forecastAdapterViewHolder, position);
     }
@@ -198,6 +197,26 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         mUseTodayLayout = useTodayLayout;
     }
 
+    /**
+     * Inflates enough view holders to fill the list in the background and hands them to the
+     * RecyclerView's pool, so the first scroll after launch doesn't inflate on the main thread.
+     * Call after the adapter has been set on the RecyclerView and the today layout decided.
+     *
+     * @param recyclerView the RecyclerView this adapter is set on
+     * @param visibleRows about how many rows fit on screen
+     */
+    public void prewarmViewHolders(RecyclerView recyclerView, int visibleRows) {
+        ViewHolderPrewarmer prewarmer = new ViewHolderPrewarmer(recyclerView);
+        int futureRows = visibleRows;
+        if ( mUseTodayLayout ) {
+            prewarmer.add(VIEW_TYPE_TODAY, 1);
+            futureRows--;
+        }
+        // One extra row comes on screen as soon as the list starts to move
+        prewarmer.add(VIEW_TYPE_FUTURE_DAY, futureRows + 1);
+        prewarmer.execute();
+    }
+
     public int getSelectedItemPosition() {
         return mICM.getSelectedItemPosition();
     }
@@ -207,6 +226,11 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         return (position == 0 && mUseTodayLayout) ? VIEW_TYPE_TODAY : VIEW_TYPE_FUTURE_DAY;
     }
 
+    @Override
+    public long getItemId(int position) {
+        return mDates[position];
+    }
+
     @Override
     public int getItemCount() {
         if ( null == mCursor ) return 0;
@@ -214,7 +238,13 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
     }
 
     public void swapCursor(Cursor newCursor) {
-        mCursor = newCursor;
+        if ( null == newCursor || newCursor instanceof WeatherTextCursor ) {
+            mCursor = (WeatherTextCursor) newCursor;
+        } else {
+            // Not from a WeatherTextLoader, so the strings have to be formatted here instead
+            mCursor = WeatherTextCursor.wrap(mContext, newCursor);
+        }
+        mDates = buildDateIndex(newCursor);
         notifyDataSetChanged();
         mEmptyView.setVisibility(getItemCount() == 0 ? View.VISIBLE : View.GONE);
     }
@@ -223,6 +253,55 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         return mCursor;
     }
 
+    /*
+        Reads the date column once per cursor so lookups by date (and clicks) don't have to walk
+        the cursor again.
+     */
+    private static long[] buildDateIndex(Cursor cursor) {
+        if ( null == cursor ) return new long[0];
+        long[] dates = new long[cursor.getCount()];
+        for ( int i = 0; i < dates.length; i++ ) {
+            cursor.moveToPosition(i);
+            dates[i] = cursor.getLong(ForecastFragment.COL_WEATHER_DATE);
+        }
+        return dates;
+    }
+
+    /**
+     * Finds the row for a given day.
+     *
+     * @param date a date in milliseconds; it's normalized the same way the provider stores dates
+     * @return the adapter position for that day, or RecyclerView.NO_POSITION if it isn't listed
+     */
+    public int getPositionForDate(long date) {
+        int position = Arrays.binarySearch(mDates, WeatherContract.normalizeDate(date));
+        return position >= 0 ? position : RecyclerView.NO_POSITION;
+    }
+
+    /**
+     * Copies the row at the given position into the same form the detail view binds from, so
+     * that a click can hand the detail view its data directly.
+     *
+     * @param position adapter position of the row
+     * @return the row's values, or null if there is no such row
+     */
+    public ContentValues getWeatherValues(int position) {
+        if ( null == mCursor || !mCursor.moveToPosition(position) ) {
+            return null;
+        }
+        ContentValues values = DetailFragment.buildDetailValues(
+                mCursor.getLong(ForecastFragment.COL_WEATHER_DATE),
+                mCursor.getInt(ForecastFragment.COL_WEATHER_CONDITION_ID),
+                mCursor.getDouble(ForecastFragment.COL_WEATHER_MAX_TEMP),
+                mCursor.getDouble(ForecastFragment.COL_WEATHER_MIN_TEMP),
+                mCursor.getFloat(ForecastFragment.COL_WEATHER_HUMIDITY),
+                mCursor.getFloat(ForecastFragment.COL_WEATHER_PRESSURE),
+                mCursor.getFloat(ForecastFragment.COL_WEATHER_WIND_SPEED),
+                mCursor.getFloat(ForecastFragment.COL_WEATHER_DEGREES));
+        mCursor.putText(values);
+        return values;
+    }
+
     public void selectView(RecyclerView.ViewHolder viewHolder) {
         if ( viewHolder instanceof ForecastAdapterViewHolder ) {
             ForecastAdapterViewHolder vfh = (ForecastAdapterViewHolder)viewHolder;
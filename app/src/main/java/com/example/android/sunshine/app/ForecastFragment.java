@@ -17,24 +17,26 @@ package com.example.android.sunshine.app;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.content.ContentValues;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.TypedArray;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.support.design.widget.AppBarLayout;
+import android.support.design.widget.Snackbar;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.text.format.DateUtils;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -48,11 +50,13 @@ import android.widget.TextView;
 import com.example.android.sunshine.R;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncScheduler;
+import com.example.android.sunshine.app.sync.SyncStatus;
 
 /**
  * Encapsulates fetching the forecast and displaying it as a {@link android.support.v7.widget.RecyclerView} layout.
  */
-public class ForecastFragment extends Fragment implements LoaderManager.LoaderCallbacks<Cursor>, SharedPreferences.OnSharedPreferenceChangeListener {
+public class ForecastFragment extends Fragment implements LoaderManager.LoaderCallbacks<Cursor>, SyncStatus.Observer {
     public static final String LOG_TAG = ForecastFragment.class.getSimpleName();
     private ForecastAdapter mForecastAdapter;
     private RecyclerView mRecyclerView;
@@ -60,6 +64,12 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     private int mChoiceMode;
     private boolean mHoldForTransition;
     private long mInitialSelectedDate = -1;
+    // Whether this fragment has already said the forecast is out of date
+    private boolean mStaleShown;
+
+    // Two of the longest sync intervals the scheduler uses without a successful sync means at
+    // least one was missed
+    private static final long STALE_AFTER_MILLIS = 2 * SyncScheduler.MAX_INTERVAL * 1000L;
 
     private static final String SELECTED_KEY = "selected_position";
 
@@ -81,7 +91,14 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
             WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
             WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
             WeatherContract.LocationEntry.COLUMN_COORD_LAT,
-            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            // The remaining columns aren't shown in the list, but we read them along with the
+            // rest of the row so the detail view can be handed everything it needs on a click
+            // without running its own query first.
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
     };
 
     // These indices are tied to FORECAST_COLUMNS.  If FORECAST_COLUMNS changes, these
@@ -95,6 +112,10 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     static final int COL_WEATHER_CONDITION_ID = 6;
     static final int COL_COORD_LAT = 7;
     static final int COL_COORD_LONG = 8;
+    static final int COL_WEATHER_HUMIDITY = 9;
+    static final int COL_WEATHER_PRESSURE = 10;
+    static final int COL_WEATHER_WIND_SPEED = 11;
+    static final int COL_WEATHER_DEGREES = 12;
 
     /**
      * A callback interface that all activities containing this fragment must
@@ -104,8 +125,14 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     public interface Callback {
         /**
          * DetailFragmentCallback for when an item has been selected.
+         *
+         * @param dateUri the weather/location/date uri the detail view loads from
+         * @param weatherValues the selected row, so the detail view can render before its
+         *                      own load completes
+         * @param vh the view holder that was clicked
          */
-        public void onItemSelected(Uri dateUri, ForecastAdapter.ForecastAdapterViewHolder vh);
+        public void onItemSelected(Uri dateUri, ContentValues weatherValues,
+                                   ForecastAdapter.ForecastAdapterViewHolder vh);
     }
 
     public ForecastFragment() {
@@ -120,15 +147,15 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     @Override
     public void onResume() {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(getActivity());
-        sp.registerOnSharedPreferenceChangeListener(this);
+        SyncStatus.get(getActivity()).addObserver(this);
         super.onResume();
+        // Whatever changed while we were paused
+        updateEmptyView();
     }
 
     @Override
     public void onPause() {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(getActivity());
-        sp.unregisterOnSharedPreferenceChangeListener(this);
+        SyncStatus.get(getActivity()).removeObserver(this);
         super.onPause();
     }
 
@@ -193,6 +220,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                 ((Callback) getActivity())
                         .onItemSelected(WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
                                         locationSetting, date),
+                                mForecastAdapter.getWeatherValues(vh.getAdapterPosition()),
                                 vh
                         );
             }
@@ -261,9 +289,27 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
             getActivity().supportPostponeEnterTransition();
         }
         getLoaderManager().initLoader(FORECAST_LOADER, null, this);
+        // While the loader runs, inflate the rows we're about to need off the main thread.
+        // We do it here rather than in onCreateView because the hosting activity only tells
+        // us whether to use the today layout after our view has been created.
+        mForecastAdapter.prewarmViewHolders(mRecyclerView, getEstimatedVisibleRows());
         super.onActivityCreated(savedInstanceState);
     }
 
+    /*
+        The list isn't measured yet when we start, so estimate from the screen height and the
+        minimum height of a list row.
+     */
+    private int getEstimatedVisibleRows() {
+        TypedValue value = new TypedValue();
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        float rowHeight = 64 * metrics.density;
+        if (getActivity().getTheme().resolveAttribute(android.R.attr.listPreferredItemHeight, value, true)) {
+            rowHeight = value.getDimension(metrics);
+        }
+        return (int) Math.ceil(metrics.heightPixels / rowHeight);
+    }
+
     // since we read the location when we create the loader, all we need to do is restart things
     void onLocationChanged() {
         getLoaderManager().restartLoader(FORECAST_LOADER, null, this);
@@ -317,7 +363,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
                 locationSetting, System.currentTimeMillis());
 
-        return new CursorLoader(getActivity(),
+        return new WeatherTextLoader(getActivity(),
                 weatherForLocationUri,
                 FORECAST_COLUMNS,
                 null,
@@ -342,16 +388,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                         int position = mForecastAdapter.getSelectedItemPosition();
                         if (position == RecyclerView.NO_POSITION &&
                                 -1 != mInitialSelectedDate) {
-                            Cursor data = mForecastAdapter.getCursor();
-                            int count = data.getCount();
-                            int dateColumn = data.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
-                            for ( int i = 0; i < count; i++ ) {
-                                data.moveToPosition(i);
-                                if ( data.getLong(dateColumn) == mInitialSelectedDate ) {
-                                    position = i;
-                                    break;
-                                }
-                            }
+                            position = mForecastAdapter.getPositionForDate(mInitialSelectedDate);
                         }
                         if (position == RecyclerView.NO_POSITION) position = 0;
                         // If we don't need to restart the loader, and there's a desired position to restore
@@ -404,12 +441,16 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         use to determine why they aren't seeing weather.
      */
     private void updateEmptyView() {
-        if ( mForecastAdapter.getItemCount() == 0 ) {
+        if ( null == getView() ) return;
+        SyncStatus syncStatus = SyncStatus.get(getActivity());
+        if ( mForecastAdapter.getItemCount() > 0 ) {
+            updateStaleness(syncStatus);
+        } else {
             TextView tv = (TextView) getView().findViewById(R.id.recyclerview_forecast_empty);
             if ( null != tv ) {
                 // if cursor is empty, why? do we have an invalid location
                 int message = R.string.empty_forecast_list;
-                @SunshineSyncAdapter.LocationStatus int location = Utility.getLocationStatus(getActivity());
+                @SunshineSyncAdapter.LocationStatus int location = syncStatus.getLocationStatus();
                 switch (location) {
                     case SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN:
                         message = R.string.empty_forecast_list_server_down;
@@ -423,6 +464,8 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                     default:
                         if (!Utility.isNetworkAvailable(getActivity())) {
                             message = R.string.empty_forecast_list_no_network;
+                        } else if (syncStatus.isSyncing()) {
+                            message = R.string.empty_forecast_list_syncing;
                         }
                 }
                 tv.setText(message);
@@ -430,10 +473,24 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         }
     }
 
+    /*
+        Lets the user know once if the forecast on screen hasn't been refreshed for a while, e.g.
+        because the server has been failing.  Says nothing while a sync might still fix it.
+     */
+    private void updateStaleness(SyncStatus syncStatus) {
+        long lastSuccess = syncStatus.getLastSuccessTime();
+        if ( mStaleShown || syncStatus.isSyncing() || lastSuccess < 0 ) return;
+        long now = System.currentTimeMillis();
+        if ( now - lastSuccess < STALE_AFTER_MILLIS ) return;
+        mStaleShown = true;
+        CharSequence age = DateUtils.getRelativeTimeSpanString(lastSuccess, now,
+                DateUtils.MINUTE_IN_MILLIS);
+        Snackbar.make(getView(), getString(R.string.format_forecast_stale, age),
+                Snackbar.LENGTH_LONG).show();
+    }
+
     @Override
-    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if (key.equals(getString(R.string.pref_location_status_key))) {
-            updateEmptyView();
-        }
+    public void onSyncStatusChanged(SyncStatus status) {
+        updateEmptyView();
     }
 }
\ No newline at end of file
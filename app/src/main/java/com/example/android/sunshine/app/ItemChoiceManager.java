@@ -19,17 +19,19 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.support.v4.util.LongSparseArray;
 import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
-import android.util.SparseBooleanArray;
 import android.widget.AbsListView;
 import android.widget.Checkable;
 
+import java.util.Arrays;
+
 /**
- * The ItemChoiceManager class keeps track of which positions have been selected.  Note that it
- * doesn't take advantage of new adapter features to track changes in the underlying data.
+ * The ItemChoiceManager class keeps track of which positions have been selected.  Checked items
+ * are kept both as a sorted array of positions and, when the adapter has stable IDs, as a map
+ * from ID to last known position.  Item range notifications shift those positions in place;
+ * only a full data set change falls back to re-finding the checked IDs.
  */
 public class ItemChoiceManager {
     private final String LOG_TAG = MainActivity.class.getSimpleName();
@@ -37,6 +39,7 @@ public class ItemChoiceManager {
     private int mChoiceMode;
 
     private RecyclerView.Adapter mAdapter;
+    private MultiChoiceListener mMultiChoiceListener;
     private RecyclerView.AdapterDataObserver mAdapterDataObserver = new RecyclerView.AdapterDataObserver() {
         @Override
         public void onChanged() {
@@ -44,8 +47,41 @@ public class ItemChoiceManager {
             if (mAdapter != null && mAdapter.hasStableIds())
                 confirmCheckedPositionsById(mAdapter.getItemCount());
         }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            if (mAdapter != null && mAdapter.hasStableIds())
+                confirmCheckedRangeById(positionStart, itemCount);
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            shiftCheckedPositions(positionStart, itemCount);
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            removeCheckedPositions(positionStart, itemCount);
+            shiftCheckedPositions(positionStart + itemCount, -itemCount);
+        }
+
+        @Override
+        public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            // RecyclerView only ever moves a single item
+            for (int i = 0; i < itemCount; i++) {
+                moveCheckedPosition(fromPosition + i, toPosition + i);
+            }
+        }
     };
 
+    /**
+     * Receives selection changes while in AbsListView.CHOICE_MODE_MULTIPLE_MODAL, so the host can
+     * start an action mode on the first checked item and finish it when the last one is cleared.
+     */
+    public interface MultiChoiceListener {
+        void onItemCheckedStateChanged(int position, long id, boolean checked);
+    }
+
     private ItemChoiceManager() {
     }
 
@@ -53,6 +89,7 @@ public class ItemChoiceManager {
 
     public ItemChoiceManager(RecyclerView.Adapter adapter) {
         mAdapter = adapter;
+        mAdapter.registerAdapterDataObserver(mAdapterDataObserver);
     }
 
     /**
@@ -63,22 +100,27 @@ public class ItemChoiceManager {
     private static final int CHECK_POSITION_SEARCH_DISTANCE = 20;
 
     /**
-     * Running state of which positions are currently checked
+     * Running state of which positions are currently checked, kept sorted.  Only the first
+     * mCheckedCount entries are valid.
      */
-    SparseBooleanArray mCheckStates = new SparseBooleanArray();
+    int[] mCheckedPositions = new int[4];
+    int mCheckedCount;
 
     /**
      * Running state of which IDs are currently checked.
      * If there is a value for a given key, the checked state for that ID is true
      * and the value holds the last known position in the adapter for that id.
      */
-    LongSparseArray<Integer> mCheckedIdStates = new LongSparseArray<Integer>();
+    LongIntMap mCheckedIdStates = new LongIntMap();
+
+    public void setMultiChoiceListener(MultiChoiceListener listener) {
+        mMultiChoiceListener = listener;
+    }
 
     public void onClick(RecyclerView.ViewHolder vh) {
         if (mChoiceMode == AbsListView.CHOICE_MODE_NONE)
             return;
 
-        int checkedItemCount = mCheckStates.size();
         int position = vh.getAdapterPosition();
 
         if (position == RecyclerView.NO_POSITION) {
@@ -90,15 +132,13 @@ public class ItemChoiceManager {
             case AbsListView.CHOICE_MODE_NONE:
                 break;
             case AbsListView.CHOICE_MODE_SINGLE: {
-                boolean checked = mCheckStates.get(position, false);
+                boolean checked = isItemChecked(position);
                 if (!checked) {
-                    for (int i = 0; i < checkedItemCount; i++) {
-                        mAdapter.notifyItemChanged(mCheckStates.keyAt(i));
+                    for (int i = 0; i < mCheckedCount; i++) {
+                        mAdapter.notifyItemChanged(mCheckedPositions[i]);
                     }
-                    mCheckStates.clear();
-                    mCheckStates.put(position, true);
-                    mCheckedIdStates.clear();
-                    mCheckedIdStates.put(mAdapter.getItemId(position), position);
+                    clearSelections();
+                    setChecked(position, true);
                 }
                 // We directly call onBindViewHolder here because notifying that an item has
                 // changed on an item that has the focus causes it to lose focus, which makes
@@ -106,18 +146,21 @@ public class ItemChoiceManager {
                 mAdapter.onBindViewHolder(vh, position);
                 break;
             }
-            case AbsListView.CHOICE_MODE_MULTIPLE: {
-                boolean checked = mCheckStates.get(position, false);
-                mCheckStates.put(position, !checked);
+            case AbsListView.CHOICE_MODE_MULTIPLE:
+            case AbsListView.CHOICE_MODE_MULTIPLE_MODAL: {
+                boolean checked = !isItemChecked(position);
+                setChecked(position, checked);
                 // We directly call onBindViewHolder here because notifying that an item has
                 // changed on an item that has the focus causes it to lose focus, which makes
                 // keyboard navigation a bit annoying
                 mAdapter.onBindViewHolder(vh, position);
+                if (mChoiceMode == AbsListView.CHOICE_MODE_MULTIPLE_MODAL
+                        && null != mMultiChoiceListener) {
+                    mMultiChoiceListener.onItemCheckedStateChanged(position,
+                            mAdapter.getItemId(position), checked);
+                }
                 break;
             }
-            case AbsListView.CHOICE_MODE_MULTIPLE_MODAL: {
-                throw new RuntimeException("Multiple Modal not implemented in ItemChoiceManager.");
-            }
         }
     }
 
@@ -125,9 +168,10 @@ public class ItemChoiceManager {
      * Defines the choice behavior for the RecyclerView. By default, RecyclerViewChoiceMode does
      * not have any choice behavior (AbsListView.CHOICE_MODE_NONE). By setting the choiceMode to
      * AbsListView.CHOICE_MODE_SINGLE, the RecyclerView allows up to one item to  be in a
-     * chosen state.
+     * chosen state.  The multiple choice modes allow any number of items to be chosen.
      *
-     * @param choiceMode One of AbsListView.CHOICE_MODE_NONE, AbsListView.CHOICE_MODE_SINGLE
+     * @param choiceMode One of AbsListView.CHOICE_MODE_NONE, AbsListView.CHOICE_MODE_SINGLE,
+     *                   AbsListView.CHOICE_MODE_MULTIPLE or AbsListView.CHOICE_MODE_MULTIPLE_MODAL
      */
     public void setChoiceMode(int choiceMode) {
         if (mChoiceMode != choiceMode) {
@@ -138,31 +182,170 @@ public class ItemChoiceManager {
 
     /**
      * Returns the checked state of the specified position. The result is only
-     * valid if the choice mode has been set to AbsListView.CHOICE_MODE_SINGLE,
-     * but the code does not check this.
+     * valid if the choice mode has been set to something other than
+     * AbsListView.CHOICE_MODE_NONE, but the code does not check this.
      *
      * @param position The item whose checked state to return
      * @return The item's checked state
      * @see #setChoiceMode(int)
      */
     public boolean isItemChecked(int position) {
-        return mCheckStates.get(position);
+        return indexOfPosition(position) >= 0;
+    }
+
+    public int getCheckedItemCount() {
+        return mCheckedCount;
+    }
+
+    /**
+     * @return the stable IDs of all checked items, or an empty array if the adapter doesn't have
+     * stable IDs
+     */
+    public long[] getCheckedItemIds() {
+        long[] ids = new long[mCheckedIdStates.size()];
+        int n = 0;
+        for (int slot = 0; slot < mCheckedIdStates.capacity(); slot++) {
+            if (mCheckedIdStates.isSlotUsed(slot)) ids[n++] = mCheckedIdStates.keyAtSlot(slot);
+        }
+        return ids;
     }
 
     void clearSelections() {
-        mCheckStates.clear();
+        mCheckedCount = 0;
         mCheckedIdStates.clear();
     }
 
+    private int indexOfPosition(int position) {
+        return Arrays.binarySearch(mCheckedPositions, 0, mCheckedCount, position);
+    }
+
+    private void setChecked(int position, boolean checked) {
+        int index = indexOfPosition(position);
+        if (checked && index < 0) {
+            addCheckedPosition(position);
+            if (mAdapter.hasStableIds()) {
+                mCheckedIdStates.put(mAdapter.getItemId(position), position);
+            }
+        } else if (!checked && index >= 0) {
+            removePositionAt(index);
+            if (mAdapter.hasStableIds()) {
+                mCheckedIdStates.remove(mAdapter.getItemId(position));
+            }
+        }
+    }
+
+    private void addCheckedPosition(int position) {
+        int index = indexOfPosition(position);
+        if (index < 0) insertPosition(-index - 1, position);
+    }
+
+    private void insertPosition(int index, int position) {
+        if (mCheckedCount == mCheckedPositions.length) {
+            mCheckedPositions = Arrays.copyOf(mCheckedPositions, mCheckedCount * 2);
+        }
+        System.arraycopy(mCheckedPositions, index, mCheckedPositions, index + 1,
+                mCheckedCount - index);
+        mCheckedPositions[index] = position;
+        mCheckedCount++;
+    }
+
+    private void removePositionAt(int index) {
+        System.arraycopy(mCheckedPositions, index + 1, mCheckedPositions, index,
+                mCheckedCount - index - 1);
+        mCheckedCount--;
+    }
+
+    /*
+        Moves every checked position at or after positionStart by delta.  Both structures are
+        updated in place, so this doesn't allocate.
+     */
+    void shiftCheckedPositions(int positionStart, int delta) {
+        for (int i = 0; i < mCheckedCount; i++) {
+            if (mCheckedPositions[i] >= positionStart) mCheckedPositions[i] += delta;
+        }
+        for (int slot = 0; slot < mCheckedIdStates.capacity(); slot++) {
+            if (mCheckedIdStates.isSlotUsed(slot)) {
+                int pos = mCheckedIdStates.valueAtSlot(slot);
+                if (pos >= positionStart) mCheckedIdStates.setValueAtSlot(slot, pos + delta);
+            }
+        }
+    }
+
+    /*
+        Unchecks everything in [positionStart, positionStart + itemCount).
+     */
+    void removeCheckedPositions(int positionStart, int itemCount) {
+        int end = positionStart + itemCount;
+        int write = 0;
+        for (int i = 0; i < mCheckedCount; i++) {
+            int pos = mCheckedPositions[i];
+            if (pos < positionStart || pos >= end) mCheckedPositions[write++] = pos;
+        }
+        mCheckedCount = write;
+        for (int slot = 0; slot < mCheckedIdStates.capacity(); slot++) {
+            if (mCheckedIdStates.isSlotUsed(slot)) {
+                int pos = mCheckedIdStates.valueAtSlot(slot);
+                if (pos >= positionStart && pos < end) {
+                    mCheckedIdStates.remove(mCheckedIdStates.keyAtSlot(slot));
+                    // Removal can shift a later entry into this slot, so look at it again
+                    slot--;
+                }
+            }
+        }
+    }
+
+    void moveCheckedPosition(int from, int to) {
+        boolean wasChecked = isItemChecked(from);
+        int index = indexOfPosition(from);
+        if (index >= 0) removePositionAt(index);
+        // Items between the two positions slide by one toward the vacated spot
+        for (int i = 0; i < mCheckedCount; i++) {
+            int pos = mCheckedPositions[i];
+            if (from < to && pos > from && pos <= to) mCheckedPositions[i] = pos - 1;
+            else if (from > to && pos >= to && pos < from) mCheckedPositions[i] = pos + 1;
+        }
+        for (int slot = 0; slot < mCheckedIdStates.capacity(); slot++) {
+            if (!mCheckedIdStates.isSlotUsed(slot)) continue;
+            int pos = mCheckedIdStates.valueAtSlot(slot);
+            if (pos == from) mCheckedIdStates.setValueAtSlot(slot, to);
+            else if (from < to && pos > from && pos <= to) mCheckedIdStates.setValueAtSlot(slot, pos - 1);
+            else if (from > to && pos >= to && pos < from) mCheckedIdStates.setValueAtSlot(slot, pos + 1);
+        }
+        if (wasChecked) {
+            addCheckedPosition(to);
+        }
+    }
+
+    /*
+        For a changed range, an item whose ID no longer matches has been replaced; re-find it
+        the same way a full change does, but only for the checked items inside the range.
+     */
+    void confirmCheckedRangeById(int positionStart, int itemCount) {
+        int end = positionStart + itemCount;
+        boolean stale = false;
+        for (int slot = 0; slot < mCheckedIdStates.capacity() && !stale; slot++) {
+            if (!mCheckedIdStates.isSlotUsed(slot)) continue;
+            int pos = mCheckedIdStates.valueAtSlot(slot);
+            if (pos >= positionStart && pos < end
+                    && mAdapter.getItemId(pos) != mCheckedIdStates.keyAtSlot(slot)) {
+                stale = true;
+            }
+        }
+        if (stale) {
+            confirmCheckedPositionsById(mAdapter.getItemCount());
+        }
+    }
+
     void confirmCheckedPositionsById(int oldItemCount) {
         // Clear out the positional check states, we'll rebuild it below from IDs.
-        mCheckStates.clear();
+        mCheckedCount = 0;
 
-        for (int checkedIndex = 0; checkedIndex < mCheckedIdStates.size(); checkedIndex++) {
-            final long id = mCheckedIdStates.keyAt(checkedIndex);
-            final int lastPos = mCheckedIdStates.valueAt(checkedIndex);
+        for (int slot = 0; slot < mCheckedIdStates.capacity(); slot++) {
+            if (!mCheckedIdStates.isSlotUsed(slot)) continue;
+            final long id = mCheckedIdStates.keyAtSlot(slot);
+            final int lastPos = mCheckedIdStates.valueAtSlot(slot);
 
-            final long lastPosId = mAdapter.getItemId(lastPos);
+            final long lastPosId = lastPos < oldItemCount ? mAdapter.getItemId(lastPos) : RecyclerView.NO_ID;
             if (id != lastPosId) {
                 // Look around to see if the ID is nearby. If not, uncheck it.
                 final int start = Math.max(0, lastPos - CHECK_POSITION_SEARCH_DISTANCE);
@@ -172,18 +355,19 @@ public class ItemChoiceManager {
                     final long searchId = mAdapter.getItemId(searchPos);
                     if (id == searchId) {
                         found = true;
-                        mCheckStates.put(searchPos, true);
-                        mCheckedIdStates.setValueAt(checkedIndex, searchPos);
+                        addCheckedPosition(searchPos);
+                        mCheckedIdStates.setValueAtSlot(slot, searchPos);
                         break;
                     }
                 }
 
                 if (!found) {
-                    mCheckedIdStates.delete(id);
-                    checkedIndex--;
+                    mCheckedIdStates.remove(id);
+                    // Removal can shift a later entry into this slot, so look at it again
+                    slot--;
                 }
             } else {
-                mCheckStates.put(lastPos, true);
+                addCheckedPosition(lastPos);
             }
         }
     }
@@ -202,7 +386,9 @@ public class ItemChoiceManager {
             Parcel inParcel = Parcel.obtain();
             inParcel.unmarshall(states, 0, states.length);
             inParcel.setDataPosition(0);
-            mCheckStates = inParcel.readSparseBooleanArray();
+            mCheckedPositions = inParcel.createIntArray();
+            mCheckedCount = mCheckedPositions.length;
+            if (mCheckedCount == 0) mCheckedPositions = new int[4];
             final int numStates = inParcel.readInt();
             mCheckedIdStates.clear();
             for (int i=0; i<numStates; i++) {
@@ -210,17 +396,20 @@ public class ItemChoiceManager {
                 final int value = inParcel.readInt();
                 mCheckedIdStates.put(key, value);
             }
+            inParcel.recycle();
         }
     }
 
     public void onSaveInstanceState(Bundle outState) {
         Parcel outParcel = Parcel.obtain();
-        outParcel.writeSparseBooleanArray(mCheckStates);
+        outParcel.writeIntArray(Arrays.copyOf(mCheckedPositions, mCheckedCount));
         final int numStates = mCheckedIdStates.size();
         outParcel.writeInt(numStates);
-        for (int i=0; i<numStates; i++) {
-            outParcel.writeLong(mCheckedIdStates.keyAt(i));
-            outParcel.writeInt(mCheckedIdStates.valueAt(i));
+        for (int slot = 0; slot < mCheckedIdStates.capacity(); slot++) {
+            if (mCheckedIdStates.isSlotUsed(slot)) {
+                outParcel.writeLong(mCheckedIdStates.keyAtSlot(slot));
+                outParcel.writeInt(mCheckedIdStates.valueAtSlot(slot));
+            }
         }
         byte[] states = outParcel.marshall();
         outState.putByteArray(SELECTED_ITEMS_KEY, states);
@@ -228,10 +417,10 @@ public class ItemChoiceManager {
     }
 
     public int getSelectedItemPosition() {
-        if ( mCheckStates.size() == 0 ) {
+        if ( mCheckedCount == 0 ) {
             return RecyclerView.NO_POSITION;
         } else {
-            return mCheckStates.keyAt(0);
+            return mCheckedPositions[0];
         }
     }
 }
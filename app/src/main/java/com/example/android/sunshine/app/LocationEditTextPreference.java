@@ -18,21 +18,45 @@ package com.example.android.sunshine.app;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.res.TypedArray;
+import android.database.Cursor;
 import android.os.Bundle;
 import android.preference.EditTextPreference;
+import android.support.v4.widget.SimpleCursorAdapter;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.FilterQueryProvider;
+import android.widget.ListView;
 
 import com.example.android.sunshine.R;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.LocationPrefetcher;
 
 public class LocationEditTextPreference extends EditTextPreference {
     static final private int DEFAULT_MINIMUM_LOCATION_LENGTH = 2;
     private int mMinLength;
 
+    private static final String[] SEARCH_COLUMNS = {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING
+    };
+    // these indices must match the projection
+    private static final int COL_LOCATION_SETTING = 2;
+
+    // Locations we already have weather for, matching what's been typed
+    private SimpleCursorAdapter mSuggestions;
+    // Fetches the forecast for what's been typed once the typing pauses
+    private LocationPrefetcher mPrefetcher;
+
     public LocationEditTextPreference(Context context, AttributeSet attrs) {
         super(context, attrs);
         TypedArray a = context.getTheme().obtainStyledAttributes(
@@ -47,11 +71,94 @@ public class LocationEditTextPreference extends EditTextPreference {
     }
 
 
+    /*
+        Puts a list of matching cached locations under the text field.  Picking one accepts it
+        straight away.
+     */
+    @Override
+    protected void onAddEditTextToDialogView(View dialogView, EditText editText) {
+        super.onAddEditTextToDialogView(dialogView, editText);
+        ViewGroup container = (ViewGroup) editText.getParent();
+        if (null == container) return;
+
+        final Context context = getContext();
+        mSuggestions = new SimpleCursorAdapter(context,
+                android.R.layout.simple_list_item_2,
+                null,
+                new String[]{WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                new int[]{android.R.id.text1, android.R.id.text2},
+                0) {
+            @Override
+            public void changeCursor(Cursor cursor) {
+                // A search that finishes after the dialog has closed has nowhere to go
+                if (this != mSuggestions) {
+                    if (null != cursor) cursor.close();
+                    return;
+                }
+                super.changeCursor(cursor);
+            }
+        };
+        // Filtering runs the search off the main thread
+        mSuggestions.setFilterQueryProvider(new FilterQueryProvider() {
+            @Override
+            public Cursor runQuery(CharSequence constraint) {
+                if (null == constraint || constraint.toString().trim().length() == 0) {
+                    return null;
+                }
+                return context.getContentResolver().query(
+                        WeatherContract.LocationEntry.buildLocationSearchUri(
+                                constraint.toString().trim()),
+                        SEARCH_COLUMNS, null, null, null);
+            }
+        });
+
+        ListView list = new ListView(context);
+        list.setAdapter(mSuggestions);
+        list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                Cursor cursor = mSuggestions.getCursor();
+                if (null == cursor || !cursor.moveToPosition(position)) return;
+                getEditText().setText(cursor.getString(COL_LOCATION_SETTING));
+                Dialog dialog = getDialog();
+                onClick(dialog, DialogInterface.BUTTON_POSITIVE);
+                dialog.dismiss();
+            }
+        });
+        // The dialog's content scrolls, which would leave a wrap_content list one row high, and
+        // the list has to keep its own scrolling from the ScrollView around it
+        list.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                v.getParent().requestDisallowInterceptTouchEvent(true);
+                return false;
+            }
+        });
+        container.addView(list, new ViewGroup.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT,
+                context.getResources().getDimensionPixelSize(R.dimen.location_suggestions_height)));
+    }
+
+    @Override
+    protected void onDialogClosed(boolean positiveResult) {
+        super.onDialogClosed(positiveResult);
+        if (null != mPrefetcher) {
+            mPrefetcher.cancel();
+            mPrefetcher = null;
+        }
+        if (null != mSuggestions) {
+            mSuggestions.changeCursor(null);
+            mSuggestions = null;
+        }
+    }
+
     @Override
     protected void showDialog(Bundle state) {
         super.showDialog(state);
 
         EditText et = getEditText();
+        mPrefetcher = new LocationPrefetcher(getContext(), mMinLength);
         et.addTextChangedListener(new TextWatcher() {
 
 
@@ -67,6 +174,12 @@ public class LocationEditTextPreference extends EditTextPreference {
 
             @Override
             public void afterTextChanged(Editable s) {
+                if (null != mSuggestions) {
+                    mSuggestions.getFilter().filter(s);
+                }
+                if (null != mPrefetcher) {
+                    mPrefetcher.onTextChanged(s);
+                }
                 Dialog d = getDialog();
                 if (d instanceof AlertDialog) {
                     AlertDialog dialog = (AlertDialog) d;
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import java.util.Arrays;
+
+/**
+ * A small open-addressing hash map from long keys to int values.  Unlike LongSparseArray, lookups
+ * are constant time and values are never boxed, which is what ItemChoiceManager needs to map
+ * stable IDs to positions.  Slots are iterated with {@link #capacity()}, {@link #isSlotUsed(int)},
+ * {@link #keyAtSlot(int)} and {@link #valueAtSlot(int)}.
+ */
+class LongIntMap {
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private boolean[] mUsed;
+    private int mSize;
+
+    LongIntMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mUsed = new boolean[capacity];
+        mSize = 0;
+    }
+
+    private int slotFor(long key) {
+        // Spread the bits around; stable IDs are often sequential or share their low bits.
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (mKeys.length - 1);
+    }
+
+    private int find(long key) {
+        int mask = mKeys.length - 1;
+        for (int slot = slotFor(key); mUsed[slot]; slot = (slot + 1) & mask) {
+            if (mKeys[slot] == key) return slot;
+        }
+        return -1;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    int get(long key, int valueIfMissing) {
+        int slot = find(key);
+        return slot >= 0 ? mValues[slot] : valueIfMissing;
+    }
+
+    void put(long key, int value) {
+        int slot = find(key);
+        if (slot >= 0) {
+            mValues[slot] = value;
+            return;
+        }
+        // Keep the load factor at or below one half
+        if ((mSize + 1) * 2 > mKeys.length) {
+            grow();
+        }
+        int mask = mKeys.length - 1;
+        slot = slotFor(key);
+        while (mUsed[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mUsed[slot] = true;
+        mSize++;
+    }
+
+    void remove(long key) {
+        int slot = find(key);
+        if (slot < 0) return;
+        int mask = mKeys.length - 1;
+        mUsed[slot] = false;
+        mSize--;
+        // Shift later entries of the same probe run back so lookups never stop early
+        int next = (slot + 1) & mask;
+        while (mUsed[next]) {
+            int home = slotFor(mKeys[next]);
+            boolean movable = slot <= next ? (home <= slot || home > next)
+                    : (home <= slot && home > next);
+            if (movable) {
+                mKeys[slot] = mKeys[next];
+                mValues[slot] = mValues[next];
+                mUsed[slot] = true;
+                mUsed[next] = false;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    void clear() {
+        if (mSize == 0) return;
+        Arrays.fill(mUsed, false);
+        mSize = 0;
+    }
+
+    int capacity() {
+        return mKeys.length;
+    }
+
+    boolean isSlotUsed(int slot) {
+        return mUsed[slot];
+    }
+
+    long keyAtSlot(int slot) {
+        return mKeys[slot];
+    }
+
+    int valueAtSlot(int slot) {
+        return mValues[slot];
+    }
+
+    void setValueAtSlot(int slot, int value) {
+        mValues[slot] = value;
+    }
+
+    private void grow() {
+        long[] oldKeys = mKeys;
+        int[] oldValues = mValues;
+        boolean[] oldUsed = mUsed;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) put(oldKeys[i], oldValues[i]);
+        }
+    }
+}
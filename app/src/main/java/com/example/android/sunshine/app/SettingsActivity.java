@@ -16,8 +16,10 @@
 package com.example.android.sunshine.app;
 
 import android.annotation.TargetApi;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.ListPreference;
@@ -27,7 +29,13 @@ import android.preference.PreferenceManager;
 
 import com.example.android.sunshine.R;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherSnapshots;
+import com.example.android.sunshine.app.sync.LocationPrefetcher;
+import com.example.android.sunshine.app.sync.NearbyForecast;
+import com.example.android.sunshine.app.sync.NotificationIconCache;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncStatus;
+import com.example.android.sunshine.app.sync.WeatherRetentionService;
 
 /**
  * A {@link PreferenceActivity} that presents a set of application settings.
@@ -38,7 +46,8 @@ import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
  * API Guide</a> for more information on developing a Settings UI.
  */
 public class SettingsActivity extends PreferenceActivity
-        implements Preference.OnPreferenceChangeListener, SharedPreferences.OnSharedPreferenceChangeListener {
+        implements Preference.OnPreferenceChangeListener, SharedPreferences.OnSharedPreferenceChangeListener,
+        SyncStatus.Observer {
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -51,21 +60,25 @@ public class SettingsActivity extends PreferenceActivity
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_location_key)));
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_units_key)));
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_art_pack_key)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_history_days_key)));
     }
 
-    // Registers a shared preference change listener that gets notified when preferences change
+    // Registers a shared preference change listener that gets notified when preferences change,
+    // and a sync status observer for the location status
     @Override
     protected void onResume() {
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
         sp.registerOnSharedPreferenceChangeListener(this);
+        SyncStatus.get(this).addObserver(this);
         super.onResume();
     }
 
-    // Unregisters a shared preference change listener
+    // Unregisters them again
     @Override
     protected void onPause() {
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
         sp.unregisterOnSharedPreferenceChangeListener(this);
+        SyncStatus.get(this).removeObserver(this);
         super.onPause();
     }
 
@@ -95,7 +108,17 @@ public class SettingsActivity extends PreferenceActivity
             ListPreference listPreference = (ListPreference) preference;
             int prefIndex = listPreference.findIndexOfValue(stringValue);
             if (prefIndex >= 0) {
-                preference.setSummary(listPreference.getEntries()[prefIndex]);
+                CharSequence entry = listPreference.getEntries()[prefIndex];
+                if (key.equals(getString(R.string.pref_history_days_key))) {
+                    // Say what happens to the days that are no longer shown
+                    preference.setSummary(getString(
+                            Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                                    ? R.string.pref_history_days_summary
+                                    : R.string.pref_history_days_summary_deleted,
+                            entry));
+                } else {
+                    preference.setSummary(entry);
+                }
             }
         } else if (key.equals(getString(R.string.pref_location_key))) {
             @SunshineSyncAdapter.LocationStatus int status = Utility.getLocationStatus(this);
@@ -133,23 +156,58 @@ public class SettingsActivity extends PreferenceActivity
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         if ( key.equals(getString(R.string.pref_location_key)) ) {
-            // we've changed the location
+            // we've changed the location.  If we already have weather for it from today on, or
+            // fetched it while the setting was being typed, show that and let the periodic sync
+            // refresh it; otherwise validate it with a sync now.
+            // Weather borrowed from a neighbor doesn't count: the server hasn't seen the setting.
+            // Both checks touch the database, so they run in the background.
             // first clear locationStatus
             Utility.resetLocationStatus(this);
-            SunshineSyncAdapter.syncImmediately(this);
+            final Context context = getApplicationContext();
+            final String location = Utility.getPreferredLocation(this);
+            new AsyncTask<Void, Void, Boolean>() {
+                @Override
+                protected Boolean doInBackground(Void... params) {
+                    return (null != WeatherSnapshots.getToday(context, location)
+                            && !NearbyForecast.isSeeded(context, location))
+                            || LocationPrefetcher.promote(context, location);
+                }
+
+                @Override
+                protected void onPostExecute(Boolean cached) {
+                    if (!location.equals(Utility.getPreferredLocation(context))) {
+                        // The setting changed again; its own check takes over
+                        return;
+                    }
+                    if (cached) {
+                        Utility.setLocationStatus(context, SunshineSyncAdapter.LOCATION_STATUS_OK);
+                    } else {
+                        // borrow a nearby location's forecast until the sync brings its own
+                        NearbyForecast.seedAndSync(context, location);
+                    }
+                }
+            }.execute();
         } else if ( key.equals(getString(R.string.pref_units_key)) ) {
             // units have changed. update lists of weather entries accordingly
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
-        } else if ( key.equals(getString(R.string.pref_location_status_key)) ) {
-            // our location status has changed.  Update the summary accordingly
-            Preference locationPreference = findPreference(getString(R.string.pref_location_key));
-            bindPreferenceSummaryToValue(locationPreference);
         } else if ( key.equals(getString(R.string.pref_art_pack_key)) ) {
             // art pack have changed. update lists of weather entries accordingly
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+            // and get the new pack's notification icons ready before they're needed
+            NotificationIconCache.build(this);
+        } else if ( key.equals(getString(R.string.pref_history_days_key)) ) {
+            // a shorter history should take effect now rather than at the next scheduled run
+            WeatherRetentionService.runNow(this);
         }
     }
 
+    @Override
+    public void onSyncStatusChanged(SyncStatus status) {
+        // our location status may have changed.  Update the summary accordingly
+        Preference locationPreference = findPreference(getString(R.string.pref_location_key));
+        bindPreferenceSummaryToValue(locationPreference);
+    }
+
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     @Override
     public Intent getParentActivityIntent() {
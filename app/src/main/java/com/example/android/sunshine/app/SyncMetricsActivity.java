@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.Toolbar;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.app.sync.SyncCoordinator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Debug screen that sums up the traced sync phases kept in the sync metrics table: how often
+ * each ran, its median and 95th percentile time, and the bytes it read on average.  The raw
+ * rows can be shared as CSV for a closer look.
+ */
+public class SyncMetricsActivity extends AppCompatActivity
+        implements LoaderManager.LoaderCallbacks<Cursor> {
+
+    private static final int METRICS_LOADER = 0;
+
+    private static final String[] METRICS_COLUMNS = {
+            SyncMetricsEntry.COLUMN_SYNC_START,
+            SyncMetricsEntry.COLUMN_PHASE,
+            SyncMetricsEntry.COLUMN_DURATION,
+            SyncMetricsEntry.COLUMN_BYTES
+    };
+
+    // These indices are tied to METRICS_COLUMNS.  If METRICS_COLUMNS changes, these must change.
+    static final int COL_SYNC_START = 0;
+    static final int COL_PHASE = 1;
+    static final int COL_DURATION = 2;
+    static final int COL_BYTES = 3;
+
+    private TextView mSummaryView;
+    // The rows last loaded, ready to export
+    private String mCsv;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_sync_metrics);
+        Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
+        setSupportActionBar(toolbar);
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+
+        mSummaryView = (TextView) findViewById(R.id.sync_metrics_summary);
+        getSupportLoaderManager().initLoader(METRICS_LOADER, null, this);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.sync_metrics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_export_metrics) {
+            if (null != mCsv) {
+                Intent shareIntent = new Intent(Intent.ACTION_SEND);
+                shareIntent.setType("text/csv");
+                shareIntent.putExtra(Intent.EXTRA_SUBJECT, SyncMetricsEntry.TABLE_NAME + ".csv");
+                shareIntent.putExtra(Intent.EXTRA_TEXT, mCsv);
+                startActivity(Intent.createChooser(shareIntent,
+                        getString(R.string.action_export_metrics)));
+            }
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        // Oldest first, which is also the order phases ran in
+        return new CursorLoader(this,
+                SyncMetricsEntry.CONTENT_URI,
+                METRICS_COLUMNS,
+                null,
+                null,
+                SyncMetricsEntry._ID + " ASC");
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        LinkedHashMap<String, ArrayList<Long>> durations =
+                new LinkedHashMap<String, ArrayList<Long>>();
+        LinkedHashMap<String, long[]> bytes = new LinkedHashMap<String, long[]>();
+        StringBuilder csv = new StringBuilder("sync_start,phase,duration_ms,bytes\n");
+
+        data.moveToPosition(-1);
+        while (data.moveToNext()) {
+            String phase = data.getString(COL_PHASE);
+            long duration = data.getLong(COL_DURATION);
+            long phaseBytes = data.getLong(COL_BYTES);
+            csv.append(data.getLong(COL_SYNC_START)).append(',').append(phase).append(',')
+                    .append(duration).append(',').append(phaseBytes).append('\n');
+
+            ArrayList<Long> phaseDurations = durations.get(phase);
+            if (null == phaseDurations) {
+                phaseDurations = new ArrayList<Long>();
+                durations.put(phase, phaseDurations);
+                bytes.put(phase, new long[2]);
+            }
+            phaseDurations.add(duration);
+            if (phaseBytes >= 0) {
+                // Total and count of the phase's runs that read something
+                bytes.get(phase)[0] += phaseBytes;
+                bytes.get(phase)[1]++;
+            }
+        }
+        mCsv = csv.toString();
+
+        StringBuilder summary = new StringBuilder(getString(R.string.format_sync_metrics_counts,
+                SyncCoordinator.getExecutedCount(), SyncCoordinator.getCoalescedCount()));
+        summary.append("\n\n");
+        if (durations.isEmpty()) {
+            summary.append(getString(R.string.sync_metrics_empty));
+        } else {
+            summary.append(String.format(Locale.US, "%-13s%6s%8s%8s%9s\n",
+                    "phase", "runs", "p50 ms", "p95 ms", "bytes"));
+            for (Map.Entry<String, ArrayList<Long>> entry : durations.entrySet()) {
+                ArrayList<Long> phaseDurations = entry.getValue();
+                Collections.sort(phaseDurations);
+                long[] phaseBytes = bytes.get(entry.getKey());
+                summary.append(String.format(Locale.US, "%-13s%6d%8d%8d%9s\n",
+                        entry.getKey(),
+                        phaseDurations.size(),
+                        getPercentile(phaseDurations, 50),
+                        getPercentile(phaseDurations, 95),
+                        phaseBytes[1] == 0 ? "-" : Long.toString(phaseBytes[0] / phaseBytes[1])));
+            }
+        }
+        mSummaryView.setText(summary);
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mCsv = null;
+    }
+
+    /*
+        The nearest-rank percentile of sorted values.
+     */
+    private static long getPercentile(ArrayList<Long> sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.size());
+        return sorted.get(Math.max(rank, 1) - 1);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.os.AsyncTask;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates view holders on a background thread and seeds a RecyclerView's recycled view pool with
+ * them, so that the first layout and the first fling after launch pick up already-inflated
+ * holders instead of inflating on the main thread.
+ *
+ * The adapter's onCreateViewHolder must be safe to call off the main thread; inflating plain
+ * framework and support widgets without attaching them is.
+ */
+public class ViewHolderPrewarmer extends AsyncTask<Void, Void, List<RecyclerView.ViewHolder>> {
+    private static final String LOG_TAG = ViewHolderPrewarmer.class.getSimpleName();
+
+    private final RecyclerView mRecyclerView;
+    private final RecyclerView.Adapter mAdapter;
+    // view type -> number of holders to create
+    private final SparseIntArray mCounts = new SparseIntArray();
+
+    public ViewHolderPrewarmer(RecyclerView recyclerView) {
+        mRecyclerView = recyclerView;
+        mAdapter = recyclerView.getAdapter();
+    }
+
+    /**
+     * Asks for count holders of the given view type.  Call before {@link #execute}.
+     */
+    public ViewHolderPrewarmer add(int viewType, int count) {
+        mCounts.put(viewType, mCounts.get(viewType) + count);
+        return this;
+    }
+
+    @Override
+    protected List<RecyclerView.ViewHolder> doInBackground(Void... params) {
+        List<RecyclerView.ViewHolder> holders = new ArrayList<RecyclerView.ViewHolder>();
+        if (null == mAdapter) return holders;
+        try {
+            for (int i = 0; i < mCounts.size(); i++) {
+                int viewType = mCounts.keyAt(i);
+                int count = mCounts.valueAt(i);
+                for (int j = 0; j < count && !isCancelled(); j++) {
+                    holders.add(mAdapter.createViewHolder(mRecyclerView, viewType));
+                }
+            }
+        } catch (RuntimeException e) {
+            // Pre-warming is only an optimization; whatever we didn't manage to create will be
+            // inflated on demand as before.
+            Log.w(LOG_TAG, "Unable to pre-inflate view holders", e);
+        }
+        return holders;
+    }
+
+    @Override
+    protected void onPostExecute(List<RecyclerView.ViewHolder> holders) {
+        // Only seed the pool if the list still uses the adapter we created the holders for
+        if (mRecyclerView.getAdapter() != mAdapter) return;
+        RecyclerView.RecycledViewPool pool = mRecyclerView.getRecycledViewPool();
+        for (int i = 0; i < mCounts.size(); i++) {
+            // The pool keeps 5 of each type by default; make sure it has room for all of ours
+            pool.setMaxRecycledViews(mCounts.keyAt(i), Math.max(5, mCounts.valueAt(i)));
+        }
+        for (RecyclerView.ViewHolder holder : holders) {
+            pool.putRecycledView(holder);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * A weather cursor that carries the display strings for each of its rows, formatted for the
+ * current locale and units.  {@link WeatherTextLoader} builds these on the loader's background
+ * thread, so binding a row only has to call setText with strings that already exist.
+ *
+ * Strings are only produced for the columns the cursor actually has; the others are null.
+ */
+public class WeatherTextCursor extends CursorWrapper {
+    // "Wednesday", or "Mon Jun 8" for days more than a week out
+    public static final int TEXT_DAY = 0;
+    // Same as TEXT_DAY, except today reads "Today, June 8"
+    public static final int TEXT_DAY_WITH_TODAY = 1;
+    // "Wednesday, June 10"
+    public static final int TEXT_FULL_DATE = 2;
+    public static final int TEXT_DESCRIPTION = 3;
+    public static final int TEXT_DESCRIPTION_A11Y = 4;
+    public static final int TEXT_ICON_A11Y = 5;
+    public static final int TEXT_HIGH = 6;
+    public static final int TEXT_HIGH_A11Y = 7;
+    public static final int TEXT_LOW = 8;
+    public static final int TEXT_LOW_A11Y = 9;
+    public static final int TEXT_HUMIDITY = 10;
+    public static final int TEXT_HUMIDITY_A11Y = 11;
+    public static final int TEXT_WIND = 12;
+    public static final int TEXT_WIND_A11Y = 13;
+    public static final int TEXT_PRESSURE = 14;
+    public static final int TEXT_PRESSURE_A11Y = 15;
+    private static final int TEXT_COUNT = 16;
+
+    // Row-major: the strings for row n start at n * TEXT_COUNT
+    private final String[] mText;
+
+    private WeatherTextCursor(Cursor cursor, String[] text) {
+        super(cursor);
+        mText = text;
+    }
+
+    /**
+     * Formats every row of the cursor.  This walks the whole cursor, so call it off the main
+     * thread; {@link WeatherTextLoader} does.
+     */
+    public static WeatherTextCursor wrap(Context context, Cursor cursor) {
+        int dateIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_DATE);
+        int weatherIdIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_WEATHER_ID);
+        int maxIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP);
+        int minIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_MIN_TEMP);
+        int humidityIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_HUMIDITY);
+        int pressureIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_PRESSURE);
+        int windIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_WIND_SPEED);
+        int degreesIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_DEGREES);
+
+        int count = cursor.getCount();
+        String[] text = new String[count * TEXT_COUNT];
+        for (int row = 0; row < count; row++) {
+            cursor.moveToPosition(row);
+            int base = row * TEXT_COUNT;
+
+            if (dateIndex != -1) {
+                long date = cursor.getLong(dateIndex);
+                text[base + TEXT_DAY] = Utility.getFriendlyDayString(context, date, false);
+                text[base + TEXT_DAY_WITH_TODAY] = Utility.getFriendlyDayString(context, date, true);
+                text[base + TEXT_FULL_DATE] = Utility.getFullFriendlyDayString(context, date);
+            }
+            if (weatherIdIndex != -1) {
+                String description = Utility.getStringForWeatherCondition(context,
+                        cursor.getInt(weatherIdIndex));
+                text[base + TEXT_DESCRIPTION] = description;
+                text[base + TEXT_DESCRIPTION_A11Y] = context.getString(R.string.a11y_forecast, description);
+                text[base + TEXT_ICON_A11Y] = context.getString(R.string.a11y_forecast_icon, description);
+            }
+            if (maxIndex != -1) {
+                String high = Utility.formatTemperature(context, cursor.getDouble(maxIndex));
+                text[base + TEXT_HIGH] = high;
+                text[base + TEXT_HIGH_A11Y] = context.getString(R.string.a11y_high_temp, high);
+            }
+            if (minIndex != -1) {
+                String low = Utility.formatTemperature(context, cursor.getDouble(minIndex));
+                text[base + TEXT_LOW] = low;
+                text[base + TEXT_LOW_A11Y] = context.getString(R.string.a11y_low_temp, low);
+            }
+            if (humidityIndex != -1) {
+                String humidity = context.getString(R.string.format_humidity,
+                        cursor.getFloat(humidityIndex));
+                text[base + TEXT_HUMIDITY] = humidity;
+                text[base + TEXT_HUMIDITY_A11Y] = context.getString(R.string.a11y_humidity, humidity);
+            }
+            if (windIndex != -1 && degreesIndex != -1) {
+                String wind = Utility.getFormattedWind(context, cursor.getFloat(windIndex),
+                        cursor.getFloat(degreesIndex));
+                text[base + TEXT_WIND] = wind;
+                text[base + TEXT_WIND_A11Y] = context.getString(R.string.a11y_wind, wind);
+            }
+            if (pressureIndex != -1) {
+                String pressure = context.getString(R.string.format_pressure,
+                        cursor.getFloat(pressureIndex));
+                text[base + TEXT_PRESSURE] = pressure;
+                text[base + TEXT_PRESSURE_A11Y] = context.getString(R.string.a11y_pressure, pressure);
+            }
+        }
+        cursor.moveToPosition(-1);
+        return new WeatherTextCursor(cursor, text);
+    }
+
+    /**
+     * @param field one of the TEXT_ constants
+     * @return that string for the row the cursor is on
+     */
+    public String getText(int field) {
+        return mText[getPosition() * TEXT_COUNT + field];
+    }
+
+    /**
+     * Copies the strings for the current row into values, so they can travel with a row
+     * handed to another component.  Read them back with {@link #getText(ContentValues, int)}.
+     */
+    public void putText(ContentValues values) {
+        for (int field = 0; field < TEXT_COUNT; field++) {
+            values.put(textKey(field), getText(field));
+        }
+    }
+
+    public static String getText(ContentValues values, int field) {
+        return values.getAsString(textKey(field));
+    }
+
+    private static String textKey(int field) {
+        return "text_" + field;
+    }
+}
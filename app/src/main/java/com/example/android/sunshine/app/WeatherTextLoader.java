@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.content.CursorLoader;
+
+/**
+ * A CursorLoader that also formats the display strings for every row while it's still on the
+ * background thread.  The cursor it delivers is a {@link WeatherTextCursor}.
+ *
+ * Units and art pack changes already cause a reload (SettingsActivity notifies the weather uri),
+ * and a locale change recreates the activity, so the strings never outlive their settings.
+ */
+public class WeatherTextLoader extends CursorLoader {
+
+    public WeatherTextLoader(Context context, Uri uri, String[] projection, String selection,
+                             String[] selectionArgs, String sortOrder) {
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        Cursor cursor = super.loadInBackground();
+        if (null == cursor) {
+            return null;
+        }
+        return WeatherTextCursor.wrap(getContext(), cursor);
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects what a write (or a whole transaction of writes) touched in WeatherProvider and turns
+ * it into the narrowest set of URIs to notify, so that a sync for one location doesn't requery
+ * cursors showing another.
+ *
+ * For each location, a single changed day notifies weather/[location]/[date]; more than one day
+ * notifies weather/[location].  Cursors are registered with notifyForDescendants, so a list on
+ * weather/[location] still hears about a single day, while a detail view for another day doesn't.
+ *
+ * Rows are recorded by location id; the matching location settings are looked up as they're
+ * added, since a delete may remove the location row before {@link #dispatch} runs.  Weather
+ * stored under a location is notified for each of its aliases' settings too.
+ */
+class ChangeNotificationBatch {
+    private final SQLiteDatabase mDb;
+
+    // canonical location _id -> the settings reading its weather, so each location is looked up
+    // once per batch
+    private final HashMap<Long, ArrayList<String>> mSettings =
+            new HashMap<Long, ArrayList<String>>();
+    // location setting -> days written for it.  An empty set means the whole location.
+    private final HashMap<String, HashSet<Long>> mWeatherDates =
+            new HashMap<String, HashSet<Long>>();
+    // Set when we can't tell which location changed, e.g. a weather row for an unknown location
+    private boolean mAllWeather;
+    private boolean mLocationsChanged;
+    // The hourly table is small and only read a day at a time, so it's notified as a whole
+    private boolean mHourlyChanged;
+    private boolean mMetricsChanged;
+
+    ChangeNotificationBatch(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    boolean isEmpty() {
+        return !affectsWeatherOrLocations() && !mHourlyChanged && !mMetricsChanged;
+    }
+
+    /**
+     * @return true if the batch changed anything besides the hourly forecast and sync metrics
+     */
+    boolean affectsWeatherOrLocations() {
+        return mAllWeather || mLocationsChanged || !mWeatherDates.isEmpty();
+    }
+
+    /**
+     * Records a write to the hourly forecast table.
+     */
+    void addHourlyChange() {
+        mHourlyChanged = true;
+    }
+
+    /**
+     * Records a write to the sync metrics table.
+     */
+    void addMetricsChange() {
+        mMetricsChanged = true;
+    }
+
+    /**
+     * Records a weather row about to be (or just) written.  The values must already have their
+     * date normalized.
+     */
+    void addWeatherValues(ContentValues values) {
+        Long locationId = values.getAsLong(WeatherEntry.COLUMN_LOC_KEY);
+        Long date = values.getAsLong(WeatherEntry.COLUMN_DATE);
+        if (null == locationId || null == date) {
+            mAllWeather = true;
+        } else {
+            addWeatherDay(locationId, date);
+        }
+    }
+
+    void addWeatherDay(long locationId, long date) {
+        ArrayList<String> settings = getLocationSettings(locationId);
+        if (settings.isEmpty()) {
+            mAllWeather = true;
+            return;
+        }
+        for (String setting : settings) {
+            HashSet<Long> dates = mWeatherDates.get(setting);
+            if (null == dates) {
+                dates = new HashSet<Long>();
+                dates.add(date);
+                mWeatherDates.put(setting, dates);
+            } else if (!dates.isEmpty()) {
+                dates.add(date);
+            }
+        }
+    }
+
+    /**
+     * Records the weather rows matching a selection.  Call before updating or deleting them.
+     */
+    void addWeatherSelection(String selection, String[] selectionArgs) {
+        addDaySelection(WeatherEntry.TABLE_NAME, selection, selectionArgs);
+    }
+
+    /**
+     * Records the archived days matching a selection, which range queries read along with the
+     * weather.  Call before deleting them.
+     */
+    void addArchiveSelection(String selection, String[] selectionArgs) {
+        addDaySelection(ArchiveEntry.TABLE_NAME, selection, selectionArgs);
+    }
+
+    private void addDaySelection(String table, String selection, String[] selectionArgs) {
+        Cursor cursor = mDb.query(true, table,
+                new String[]{WeatherEntry.COLUMN_LOC_KEY, WeatherEntry.COLUMN_DATE},
+                selection, selectionArgs, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                addWeatherDay(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Records the location rows matching a selection, along with all of their weather.  Call
+     * before updating or deleting them, and again after an update in case the settings changed.
+     *
+     * @return true if any row matched; if none did, nothing is recorded
+     */
+    boolean addLocationSelection(String selection, String[] selectionArgs) {
+        boolean matched = false;
+        Cursor cursor = mDb.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry.COLUMN_CANONICAL_ID},
+                selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                matched = true;
+                // Deleting a location deletes its aliases, so all of them are recorded.  Look
+                // them up again, since an update may have just changed one.
+                long canonicalId = cursor.getLong(0);
+                mSettings.remove(canonicalId);
+                for (String setting : getLocationSettings(canonicalId)) {
+                    mWeatherDates.put(setting, new HashSet<Long>());
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (matched) {
+            mLocationsChanged = true;
+        }
+        return matched;
+    }
+
+    /**
+     * Records a location row that was inserted as its own canonical location.  Nothing joins
+     * against a brand new location yet, so only the location table is notified.  Record a new
+     * alias with {@link #addLocationSelection} instead.
+     */
+    void addLocationInsert(long locationId, ContentValues values) {
+        mLocationsChanged = true;
+        ArrayList<String> settings = new ArrayList<String>();
+        settings.add(values.getAsString(LocationEntry.COLUMN_LOCATION_SETTING));
+        mSettings.put(locationId, settings);
+    }
+
+    /**
+     * @return true if the batch can't say which locations' weather changed
+     */
+    boolean affectsAllWeather() {
+        return mAllWeather;
+    }
+
+    /**
+     * @return the settings of the locations whose weather changed
+     */
+    Set<String> getChangedLocations() {
+        return mWeatherDates.keySet();
+    }
+
+    /**
+     * Sends one notification for each URI the batch covers and empties it.  Call after the
+     * transaction has committed, so observers never requery before the data is there.
+     */
+    void dispatch(ContentResolver resolver) {
+        if (mLocationsChanged) {
+            resolver.notifyChange(LocationEntry.CONTENT_URI, null);
+        }
+        if (mHourlyChanged) {
+            resolver.notifyChange(HourlyEntry.CONTENT_URI, null);
+        }
+        if (mMetricsChanged) {
+            resolver.notifyChange(SyncMetricsEntry.CONTENT_URI, null);
+        }
+        if (mAllWeather) {
+            // The table uri covers every location and day
+            resolver.notifyChange(WeatherEntry.CONTENT_URI, null);
+        } else {
+            for (Map.Entry<String, HashSet<Long>> entry : mWeatherDates.entrySet()) {
+                HashSet<Long> dates = entry.getValue();
+                Uri uri;
+                if (dates.size() == 1) {
+                    uri = WeatherEntry.buildWeatherLocationWithDate(entry.getKey(),
+                            dates.iterator().next());
+                } else {
+                    uri = WeatherEntry.buildWeatherLocation(entry.getKey());
+                }
+                resolver.notifyChange(uri, null);
+            }
+        }
+        mWeatherDates.clear();
+        mAllWeather = false;
+        mLocationsChanged = false;
+        mHourlyChanged = false;
+        mMetricsChanged = false;
+    }
+
+    /*
+        The settings of the location a weather row's location_id points at and of its aliases;
+        empty if there's no such location.
+     */
+    private ArrayList<String> getLocationSettings(long locationId) {
+        ArrayList<String> settings = mSettings.get(locationId);
+        if (null != settings) {
+            return settings;
+        }
+        settings = new ArrayList<String>();
+        Cursor cursor = mDb.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry.COLUMN_LOCATION_SETTING},
+                LocationEntry.COLUMN_CANONICAL_ID + " = ?", new String[]{Long.toString(locationId)},
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                settings.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        mSettings.put(locationId, settings);
+        return settings;
+    }
+}
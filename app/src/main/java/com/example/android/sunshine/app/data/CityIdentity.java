@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+/**
+ * Recognizes location settings that the server resolves to the same city, e.g. "94043" and
+ * "Mountain View,US", so they can share one forecast.  A city is identified by the name and
+ * coordinates the server sends back, the coordinates rounded to about a kilometer.  The key is
+ * built in SQL, both by the location table's triggers and by the lookup here, so the two always
+ * agree.
+ */
+class CityIdentity {
+    // Decimal places the coordinates are rounded to; 0.01 degrees is at most about 1.1 km
+    private static final int COORD_PLACES = 2;
+
+    /**
+     * @return the SQL for the city key of a name and coordinates, which may be columns or
+     * parameters
+     */
+    static String getCityKeySql(String cityName, String lat, String lon) {
+        return "(lower(trim(" + cityName + ")) || '|' || round(" + lat + ", " + COORD_PLACES
+                + ") || '|' || round(" + lon + ", " + COORD_PLACES + "))";
+    }
+
+    /**
+     * @return the row ID of the location holding the weather for the city, or -1 if there isn't
+     * one yet
+     */
+    static long findCanonicalId(SQLiteDatabase db, String cityName, double lat, double lon) {
+        if (null == cityName) {
+            return -1;
+        }
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry.COLUMN_CANONICAL_ID},
+                LocationEntry.COLUMN_CITY_KEY + " = " + getCityKeySql("?", "?", "?"),
+                new String[]{cityName, Double.toString(lat), Double.toString(lon)},
+                null, null, null, "1");
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
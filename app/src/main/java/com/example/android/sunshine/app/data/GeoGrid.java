@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+/**
+ * A fixed grid over the globe, 0.1 degrees on a side (about 11 km north to south), used as a
+ * spatial index on the location table.  Each location's cell is kept in its grid_cell column by
+ * triggers, and a radius search only reads the locations in the cells around the point.
+ *
+ * Cells are numbered row by row from the south pole and the antimeridian, so the cells of one
+ * row that a search covers are a single range of numbers.
+ */
+class GeoGrid {
+    private static final int CELLS_PER_DEGREE = 10;
+    private static final int ROWS = 180 * CELLS_PER_DEGREE;
+    private static final int COLUMNS = 360 * CELLS_PER_DEGREE;
+
+    private static final double EARTH_RADIUS_KM = 6371.0;
+    private static final double KM_PER_DEGREE_LAT = 110.574;
+    private static final double KM_PER_DEGREE_LONG_AT_EQUATOR = 111.320;
+
+    /**
+     * @return the SQL for the cell of the row a trigger is running for, e.g. "new"
+     */
+    static String getCellSql(String row) {
+        // CAST truncates, which is the floor here since both values are never negative
+        return "(MIN(CAST((" + row + "." + LocationEntry.COLUMN_COORD_LAT + " + 90) * "
+                + CELLS_PER_DEGREE + " AS INTEGER), " + (ROWS - 1) + ") * " + COLUMNS
+                + " + MIN(CAST((" + row + "." + LocationEntry.COLUMN_COORD_LONG + " + 180) * "
+                + CELLS_PER_DEGREE + " AS INTEGER), " + (COLUMNS - 1) + "))";
+    }
+
+    /**
+     * @return the row ID of the closest location no more than radiusKm away, or -1 if there isn't
+     * one
+     */
+    static long findNearest(SQLiteDatabase db, double lat, double lon, double radiusKm) {
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_COORD_LAT,
+                        LocationEntry.COLUMN_COORD_LONG},
+                buildCellSelection(lat, lon, radiusKm),
+                null, null, null, null);
+        long nearestId = -1;
+        double nearestKm = radiusKm;
+        try {
+            while (cursor.moveToNext()) {
+                double km = getDistanceKm(lat, lon, cursor.getDouble(1), cursor.getDouble(2));
+                if (km <= nearestKm) {
+                    nearestKm = km;
+                    nearestId = cursor.getLong(0);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return nearestId;
+    }
+
+    /*
+        Selects the locations in every cell that overlaps the box around the circle: one range
+        of cells per row, or two where the box crosses the antimeridian.
+     */
+    private static String buildCellSelection(double lat, double lon, double radiusKm) {
+        double latDegrees = radiusKm / KM_PER_DEGREE_LAT;
+        int firstRow = getRow(lat - latDegrees);
+        int lastRow = getRow(lat + latDegrees);
+
+        // Near the poles a circle can take in every longitude
+        double widestLat = Math.min(90, Math.max(Math.abs(lat - latDegrees),
+                Math.abs(lat + latDegrees)));
+        double kmPerDegreeLong = KM_PER_DEGREE_LONG_AT_EQUATOR * Math.cos(Math.toRadians(widestLat));
+        boolean allColumns = kmPerDegreeLong <= 0 || radiusKm / kmPerDegreeLong >= 180;
+        int firstColumn = 0;
+        int lastColumn = COLUMNS - 1;
+        int wrappedColumns = 0;
+        if (!allColumns) {
+            double longDegrees = radiusKm / kmPerDegreeLong;
+            firstColumn = (int) Math.floor((lon - longDegrees + 180) * CELLS_PER_DEGREE);
+            lastColumn = (int) Math.floor((lon + longDegrees + 180) * CELLS_PER_DEGREE);
+            if (firstColumn < 0) {
+                wrappedColumns = firstColumn;
+                firstColumn = 0;
+            } else if (lastColumn >= COLUMNS) {
+                wrappedColumns = lastColumn - COLUMNS + 1;
+                lastColumn = COLUMNS - 1;
+            }
+        }
+
+        StringBuilder selection = new StringBuilder();
+        for (int row = firstRow; row <= lastRow; row++) {
+            appendRange(selection, row, firstColumn, lastColumn);
+            if (wrappedColumns < 0) {
+                appendRange(selection, row, COLUMNS + wrappedColumns, COLUMNS - 1);
+            } else if (wrappedColumns > 0) {
+                appendRange(selection, row, 0, wrappedColumns - 1);
+            }
+        }
+        return selection.toString();
+    }
+
+    private static void appendRange(StringBuilder selection, int row, int firstColumn,
+                                    int lastColumn) {
+        if (selection.length() > 0) selection.append(" OR ");
+        selection.append(LocationEntry.COLUMN_GRID_CELL).append(" BETWEEN ")
+                .append((long) row * COLUMNS + firstColumn).append(" AND ")
+                .append((long) row * COLUMNS + lastColumn);
+    }
+
+    private static int getRow(double lat) {
+        int row = (int) Math.floor((lat + 90) * CELLS_PER_DEGREE);
+        return Math.max(0, Math.min(ROWS - 1, row));
+    }
+
+    /**
+     * @return the great-circle distance between two points, in kilometers
+     */
+    static double getDistanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.HashMap;
+
+/**
+ * Remembers which location row each location setting reads its weather from, so WeatherProvider
+ * can query the weather table by location_id without joining the location table.  For an alias
+ * that's the canonical location, not the setting's own row.  WeatherProvider invalidates it
+ * whenever it writes to the location table.
+ */
+class LocationIdCache {
+    private final HashMap<String, Long> mIds = new HashMap<String, Long>();
+    // Bumped by invalidate(), so a lookup that raced with a location write isn't cached
+    private int mGeneration;
+
+    /**
+     * @return the row ID the location's weather is stored under, or -1 if there is no such
+     * location
+     */
+    long getLocationId(SQLiteDatabase db, String locationSetting) {
+        int generation;
+        synchronized (this) {
+            Long id = mIds.get(locationSetting);
+            if (null != id) {
+                return id;
+            }
+            generation = mGeneration;
+        }
+
+        // Don't hold the lock while reading: a writer invalidates from inside its transaction,
+        // and would otherwise be waiting on us while we wait on it.
+        long id = -1;
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry.COLUMN_CANONICAL_ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                id = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            if (id != -1 && generation == mGeneration) {
+                mIds.put(locationSetting, id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return a number that changes whenever the cache is invalidated, so a cache of IDs kept
+     * elsewhere can tell when to drop them
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    synchronized void invalidate() {
+        mIds.clear();
+        mGeneration++;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.Locale;
+
+/**
+ * Prefix search over the cached locations, using the location_search full-text index.
+ */
+class LocationSearch {
+    // Enough to fill a suggestion list
+    private static final String MAX_RESULTS = "20";
+
+    /**
+     * @return the locations matching every word of prefix, best first: a city name starting
+     * with the first word, then a location setting starting with it, then the rest, each
+     * alphabetically by city
+     */
+    static Cursor query(SQLiteDatabase db, String prefix, String[] projection) {
+        String[] words = getWords(prefix);
+        if (words.length == 0) {
+            return new MatrixCursor(null == projection ? new String[]{LocationEntry._ID}
+                    : projection);
+        }
+
+        StringBuilder match = new StringBuilder();
+        for (String word : words) {
+            if (match.length() > 0) match.append(' ');
+            match.append(word).append('*');
+        }
+        String startsWith = DatabaseUtils.sqlEscapeString(words[0] + "%");
+        String sortOrder = "CASE WHEN " + LocationEntry.COLUMN_CITY_NAME + " LIKE " + startsWith
+                + " THEN 0 WHEN " + LocationEntry.COLUMN_LOCATION_SETTING + " LIKE " + startsWith
+                + " THEN 1 ELSE 2 END, " + LocationEntry.COLUMN_CITY_NAME + " COLLATE NOCASE";
+
+        return db.query(LocationEntry.TABLE_NAME,
+                projection,
+                LocationEntry._ID + " IN (SELECT docid FROM " + LocationEntry.SEARCH_TABLE_NAME
+                        + " WHERE " + LocationEntry.SEARCH_TABLE_NAME + " MATCH ?)",
+                new String[]{match.toString()},
+                null,
+                null,
+                sortOrder,
+                MAX_RESULTS);
+    }
+
+    /*
+        Splits what the user typed into lower case words of letters and digits.  That drops
+        anything the full-text query syntax would read as an operator, quotes included, and
+        lower case keeps words like "or" from being taken for OR.
+     */
+    private static String[] getWords(String prefix) {
+        String[] parts = prefix.toLowerCase(Locale.US).split("[^\\p{L}\\p{N}]+");
+        int count = 0;
+        for (String part : parts) {
+            if (part.length() > 0) parts[count++] = part;
+        }
+        String[] words = new String[count];
+        System.arraycopy(parts, 0, words, 0, count);
+        return words;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the results of recent location-scoped weather queries in memory, so that the list,
+ * the detail view and the widgets asking for the same thing right after a sync only hit the
+ * database once.  Each hit gets its own MatrixCursor over the stored rows.
+ *
+ * Entries are tagged with their location setting, and WeatherProvider drops just the entries for
+ * the locations a write touched.  Reading Cursor types needs Honeycomb, so on older devices
+ * WeatherProvider doesn't use the cache.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+class QueryResultCache {
+    // Bounded by the number of values held, which is what the memory goes to
+    private static final int MAX_CELLS = 8 * 1024;
+
+    private static class Result {
+        final String locationSetting;
+        final String[] columnNames;
+        final Object[][] rows;
+
+        Result(String locationSetting, String[] columnNames, Object[][] rows) {
+            this.locationSetting = locationSetting;
+            this.columnNames = columnNames;
+            this.rows = rows;
+        }
+    }
+
+    private final LruCache<String, Result> mResults = new LruCache<String, Result>(MAX_CELLS) {
+        @Override
+        protected int sizeOf(String key, Result result) {
+            return Math.max(1, result.rows.length * result.columnNames.length);
+        }
+    };
+    // Bumped by every invalidation, so a result read before a write isn't cached after it
+    private int mGeneration;
+
+    static String buildKey(String uri, String[] projection, String sortOrder) {
+        return uri + '\n' + Arrays.toString(projection) + '\n' + sortOrder;
+    }
+
+    /**
+     * @return a new cursor over the cached result, or null on a miss
+     */
+    Cursor get(String key) {
+        Result result = mResults.get(key);
+        return null == result ? null : newCursor(result);
+    }
+
+    /**
+     * @return a token to pass to {@link #put}; read it before querying the database
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Reads and closes a query's cursor and keeps its rows, unless a write has come in since
+     * generation was read.
+     *
+     * @return a cursor over the same rows, to return in place of the one that was read
+     */
+    Cursor put(String key, String locationSetting, Cursor cursor, int generation) {
+        String[] columnNames = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        try {
+            for (int i = 0; i < rows.length && cursor.moveToPosition(i); i++) {
+                Object[] row = new Object[columnNames.length];
+                for (int column = 0; column < row.length; column++) {
+                    row[column] = readValue(cursor, column);
+                }
+                rows[i] = row;
+            }
+        } finally {
+            cursor.close();
+        }
+        Result result = new Result(locationSetting, columnNames, rows);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mResults.put(key, result);
+            }
+        }
+        return newCursor(result);
+    }
+
+    /**
+     * Drops the results for the locations a write changed.
+     */
+    synchronized void invalidate(ChangeNotificationBatch changes) {
+        mGeneration++;
+        if (changes.affectsAllWeather()) {
+            mResults.evictAll();
+            return;
+        }
+        Set<String> locations = changes.getChangedLocations();
+        if (locations.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Result> entry : mResults.snapshot().entrySet()) {
+            if (locations.contains(entry.getValue().locationSetting)) {
+                mResults.remove(entry.getKey());
+            }
+        }
+    }
+
+    int getHitCount() {
+        return mResults.hitCount();
+    }
+
+    int getMissCount() {
+        return mResults.missCount();
+    }
+
+    private static Cursor newCursor(Result result) {
+        MatrixCursor cursor = new MatrixCursor(result.columnNames, result.rows.length);
+        for (Object[] row : result.rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static Object readValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return null;
+        }
+    }
+}
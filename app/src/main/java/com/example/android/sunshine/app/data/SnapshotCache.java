@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.Bundle;
+
+import java.util.HashMap;
+
+/**
+ * Holds the Bundle snapshots WeatherProvider hands out through call(), until the next write.
+ * Callers get copies, arrays included, so nobody can change what the next caller sees.
+ */
+class SnapshotCache {
+    private final HashMap<String, Bundle> mSnapshots = new HashMap<String, Bundle>();
+    // Bumped by invalidate(), so a snapshot read before a write isn't cached after it
+    private int mGeneration;
+
+    synchronized Bundle get(String key) {
+        Bundle snapshot = mSnapshots.get(key);
+        return null == snapshot ? null : copy(snapshot);
+    }
+
+    /**
+     * @return a token to pass to {@link #put}; read it before reading the database
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the snapshot unless the data changed since generation was read.
+     *
+     * @return a copy of the snapshot for the caller
+     */
+    synchronized Bundle put(String key, Bundle snapshot, int generation) {
+        if (generation == mGeneration) {
+            mSnapshots.put(key, snapshot);
+        }
+        return copy(snapshot);
+    }
+
+    /*
+        new Bundle(snapshot) alone would share the arrays, which callers in this process read
+        and could write.  The snapshots only hold primitives, strings and their arrays.
+     */
+    private static Bundle copy(Bundle snapshot) {
+        Bundle copy = new Bundle(snapshot);
+        for (String key : snapshot.keySet()) {
+            Object value = snapshot.get(key);
+            if (value instanceof long[]) {
+                copy.putLongArray(key, ((long[]) value).clone());
+            } else if (value instanceof int[]) {
+                copy.putIntArray(key, ((int[]) value).clone());
+            } else if (value instanceof double[]) {
+                copy.putDoubleArray(key, ((double[]) value).clone());
+            } else if (value instanceof String[]) {
+                copy.putStringArray(key, ((String[]) value).clone());
+            }
+        }
+        return copy;
+    }
+
+    synchronized void invalidate() {
+        mSnapshots.clear();
+        mGeneration++;
+    }
+}
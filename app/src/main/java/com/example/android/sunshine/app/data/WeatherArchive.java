@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Moves aged-out weather into the archive table and keeps the weekly and monthly rollups of the
+ * archive up to date, so a trend over a year reads a few dozen rollup rows instead of hundreds of
+ * days.  The archive is pruned on its own, longer, schedule.  WeatherProvider calls it inside
+ * its own transaction.
+ */
+class WeatherArchive {
+
+    // Every weather column, which the archive shares
+    static final String[] COLUMNS = {
+            WeatherEntry._ID,
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // The first day of a date's period, in SQL.  The epoch was a Thursday, three days after a
+    // Monday.
+    private static final String WEEK_START_SQL = WeatherEntry.COLUMN_DATE + " - (("
+            + WeatherEntry.COLUMN_DATE + " / " + DateUtils.DAY_IN_MILLIS + " + 3) % 7) * "
+            + DateUtils.DAY_IN_MILLIS;
+    private static final String MONTH_START_SQL = "CAST(strftime('%s', "
+            + WeatherEntry.COLUMN_DATE + " / 1000, 'unixepoch', 'start of month') AS INTEGER)"
+            + " * 1000";
+
+    /**
+     * Moves up to limit of the oldest weather rows dated before cutoffDate into the archive, and
+     * records the weather that went away in changes.  Must run inside a transaction.
+     *
+     * @return the number of rows moved
+     */
+    static int archive(SQLiteDatabase db, long cutoffDate, int limit,
+                       ChangeNotificationBatch changes) {
+        String batch = "SELECT " + WeatherEntry._ID + " FROM " + WeatherEntry.TABLE_NAME
+                + " WHERE " + WeatherEntry.COLUMN_DATE + " < ?"
+                + " ORDER BY " + WeatherEntry.COLUMN_DATE + " LIMIT " + limit;
+        String selection = WeatherEntry._ID + " IN (" + batch + ")";
+        String[] selectionArgs = {Long.toString(cutoffDate)};
+
+        long firstDate;
+        long lastDate;
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME,
+                new String[]{"MIN(" + WeatherEntry.COLUMN_DATE + ")",
+                        "MAX(" + WeatherEntry.COLUMN_DATE + ")"},
+                selection, selectionArgs, null, null, null);
+        try {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return 0;
+            }
+            firstDate = cursor.getLong(0);
+            lastDate = cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+
+        String columns = TextUtils.join(", ", COLUMNS);
+        db.execSQL("INSERT OR REPLACE INTO " + ArchiveEntry.TABLE_NAME + " (" + columns + ")"
+                + " SELECT " + columns + " FROM " + WeatherEntry.TABLE_NAME
+                + " WHERE " + selection, selectionArgs);
+        changes.addWeatherSelection(selection, selectionArgs);
+        int moved = db.delete(WeatherEntry.TABLE_NAME, selection, selectionArgs);
+
+        updateRollups(db, RollupEntry.PERIOD_WEEK, firstDate, lastDate);
+        updateRollups(db, RollupEntry.PERIOD_MONTH, firstDate, lastDate);
+        return moved;
+    }
+
+    /**
+     * Deletes up to limit of the oldest archived days dated before cutoffDate, and the rollups
+     * of the weeks and months that ended before it, recording the days that went away in
+     * changes.  Must run inside a transaction.
+     *
+     * @return the number of archived days deleted
+     */
+    static int prune(SQLiteDatabase db, long cutoffDate, int limit,
+                     ChangeNotificationBatch changes) {
+        String selection = ArchiveEntry._ID + " IN (SELECT " + ArchiveEntry._ID
+                + " FROM " + ArchiveEntry.TABLE_NAME
+                + " WHERE " + WeatherEntry.COLUMN_DATE + " < ?"
+                + " ORDER BY " + WeatherEntry.COLUMN_DATE + " LIMIT " + limit + ")";
+        String[] selectionArgs = {Long.toString(cutoffDate)};
+        changes.addArchiveSelection(selection, selectionArgs);
+        int pruned = db.delete(ArchiveEntry.TABLE_NAME, selection, selectionArgs);
+
+        // A period the cutoff falls in keeps its rollup, which still covers days that are kept
+        for (String period : new String[]{RollupEntry.PERIOD_WEEK, RollupEntry.PERIOD_MONTH}) {
+            db.delete(RollupEntry.TABLE_NAME,
+                    RollupEntry.COLUMN_PERIOD + " = ? AND "
+                            + RollupEntry.COLUMN_PERIOD_START + " < ?",
+                    new String[]{period, Long.toString(getPeriodStart(period, cutoffDate))});
+        }
+        return pruned;
+    }
+
+    /*
+        Recomputes, from the archive, every rollup of the given kind for the periods that
+        firstDate through lastDate fall in.
+     */
+    private static void updateRollups(SQLiteDatabase db, String period, long firstDate,
+                                      long lastDate) {
+        String periodStart = RollupEntry.PERIOD_WEEK.equals(period)
+                ? WEEK_START_SQL : MONTH_START_SQL;
+        db.execSQL("INSERT OR REPLACE INTO " + RollupEntry.TABLE_NAME + " ("
+                + RollupEntry.COLUMN_LOC_KEY + ", "
+                + RollupEntry.COLUMN_PERIOD + ", "
+                + RollupEntry.COLUMN_PERIOD_START + ", "
+                + RollupEntry.COLUMN_DAY_COUNT + ", "
+                + RollupEntry.COLUMN_MIN_TEMP + ", "
+                + RollupEntry.COLUMN_MAX_TEMP + ", "
+                + RollupEntry.COLUMN_AVG_TEMP + ", "
+                + RollupEntry.COLUMN_AVG_HUMIDITY + ", "
+                + RollupEntry.COLUMN_AVG_WIND_SPEED + ")"
+                + " SELECT " + WeatherEntry.COLUMN_LOC_KEY + ", ?, " + periodStart + " AS start, "
+                + "COUNT(*), "
+                + "MIN(" + WeatherEntry.COLUMN_MIN_TEMP + "), "
+                + "MAX(" + WeatherEntry.COLUMN_MAX_TEMP + "), "
+                + "AVG((" + WeatherEntry.COLUMN_MIN_TEMP + " + "
+                + WeatherEntry.COLUMN_MAX_TEMP + ") / 2), "
+                + "AVG(" + WeatherEntry.COLUMN_HUMIDITY + "), "
+                + "AVG(" + WeatherEntry.COLUMN_WIND_SPEED + ")"
+                + " FROM " + ArchiveEntry.TABLE_NAME
+                + " WHERE " + WeatherEntry.COLUMN_DATE + " >= ? AND "
+                + WeatherEntry.COLUMN_DATE + " < ?"
+                + " GROUP BY " + WeatherEntry.COLUMN_LOC_KEY + ", start",
+                new Object[]{period,
+                        getPeriodStart(period, firstDate),
+                        getPeriodEnd(period, lastDate)});
+    }
+
+    /**
+     * Queries one location's days from startDate through endDate, from the archive and the
+     * weather table together.  A null projection is every weather column.
+     */
+    static Cursor queryRange(SQLiteDatabase db, long locationId, long startDate, long endDate,
+                             String[] projection, String sortOrder) {
+        if (null == projection) {
+            projection = COLUMNS;
+        }
+        String selection = WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                + WeatherEntry.COLUMN_DATE + " >= ? AND " + WeatherEntry.COLUMN_DATE + " <= ?";
+        String[] args = {Long.toString(locationId), Long.toString(startDate),
+                Long.toString(endDate)};
+
+        String archived = SQLiteQueryBuilder.buildQueryString(false, ArchiveEntry.TABLE_NAME,
+                projection, selection, null, null, null, null);
+        String current = SQLiteQueryBuilder.buildQueryString(false, WeatherEntry.TABLE_NAME,
+                projection, selection, null, null, null, null);
+        String union = new SQLiteQueryBuilder().buildUnionQuery(
+                new String[]{archived, current}, sortOrder, null);
+
+        return db.rawQuery(union, new String[]{args[0], args[1], args[2],
+                args[0], args[1], args[2]});
+    }
+
+    /**
+     * Queries one location's rollups of the given kind for the periods that overlap startDate
+     * through endDate.
+     */
+    static Cursor queryRollups(SQLiteDatabase db, long locationId, String period,
+                               long startDate, long endDate, String[] projection,
+                               String sortOrder) {
+        if (!RollupEntry.PERIOD_WEEK.equals(period) && !RollupEntry.PERIOD_MONTH.equals(period)) {
+            throw new IllegalArgumentException("Unknown rollup period: " + period);
+        }
+        return db.query(RollupEntry.TABLE_NAME,
+                projection,
+                RollupEntry.COLUMN_LOC_KEY + " = ? AND " + RollupEntry.COLUMN_PERIOD + " = ? AND "
+                        + RollupEntry.COLUMN_PERIOD_START + " >= ? AND "
+                        + RollupEntry.COLUMN_PERIOD_START + " <= ?",
+                new String[]{Long.toString(locationId), period,
+                        Long.toString(getPeriodStart(period, startDate)),
+                        Long.toString(endDate)},
+                null,
+                null,
+                sortOrder);
+    }
+
+    /*
+        The first day of the period a normalized date falls in; these match the SQL above.
+     */
+    static long getPeriodStart(String period, long date) {
+        if (RollupEntry.PERIOD_WEEK.equals(period)) {
+            return date - ((date / DateUtils.DAY_IN_MILLIS + 3) % 7) * DateUtils.DAY_IN_MILLIS;
+        }
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(date);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    /*
+        The first day of the period after the one a normalized date falls in.
+     */
+    private static long getPeriodEnd(String period, long date) {
+        if (RollupEntry.PERIOD_WEEK.equals(period)) {
+            return getPeriodStart(period, date) + 7 * DateUtils.DAY_IN_MILLIS;
+        }
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(getPeriodStart(period, date));
+        calendar.add(Calendar.MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+}
@@ -19,6 +19,7 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.text.format.DateUtils;
 import android.text.format.Time;
 
 /**
@@ -43,6 +44,25 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_RANGE = "range";
+    public static final String PATH_ROLLUP = "rollup";
+    public static final String PATH_HOURLY = "hourly";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_NEAREST = "nearest";
+    public static final String PATH_SYNC_METRICS = "sync_metrics";
+    public static final String PATH_STAGING = "staging";
+
+    // Provider call() method that reports how the provider's query result cache is doing.  The
+    // result holds the number of hits and misses since the provider started.
+    public static final String METHOD_GET_QUERY_CACHE_STATS = "query_cache_stats";
+    public static final String EXTRA_CACHE_HITS = "hits";
+    public static final String EXTRA_CACHE_MISSES = "misses";
+
+    // Provider call() method that gives free pages back to the file system, a few at a time.  The
+    // first call switches the database to incremental auto-vacuum, which takes one full VACUUM.
+    public static final String METHOD_COMPACT = "compact";
+    // Extra for METHOD_COMPACT: the most pages to release
+    public static final String EXTRA_PAGES = "pages";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -81,9 +101,99 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // The location's cell in the provider's spatial grid, kept up to date by the database
+        // from the coordinates.  Don't write it.
+        public static final String COLUMN_GRID_CELL = "grid_cell";
+
+        // The city the server resolved the setting to, built by the database from the city name
+        // and coordinates.  Settings with the same key are aliases of one city.  Don't write it.
+        public static final String COLUMN_CITY_KEY = "city_key";
+
+        // The row ID of the location whose weather this setting reads: its own, or for an alias,
+        // the first location stored for the city.  Weather is only ever stored under that row.
+        public static final String COLUMN_CANONICAL_ID = "canonical_id";
+
+        // The version of the forecast stored under a canonical location, as numbered by the
+        // server that pushes forecast deltas.  Null until the first delta arrives.
+        public static final String COLUMN_FORECAST_VERSION = "forecast_version";
+
+        // 1 while a location only has what it was seeded with: a nearby location's weather and
+        // city name.  The server hasn't confirmed the setting yet; its first successful sync
+        // sets this back to 0.
+        public static final String COLUMN_SEEDED = "seeded";
+
+        // Provider call() method that returns the row ID for a location setting, adding the
+        // location first if it isn't there yet.  The arg is the location setting, and the extras
+        // hold the city name and coordinates under their column names.  The result holds the
+        // row ID under _ID, and the location generation it's valid for under EXTRA_GENERATION.
+        // Concurrent calls for the same new location all get the same row.  An existing
+        // location takes the city name and coordinates from the extras.  A new setting for a
+        // city that's already stored becomes an alias of it, and the result is the row ID that
+        // city's weather is stored under.
+        public static final String METHOD_GET_OR_INSERT = "location_get_or_insert";
+
+        // Provider call() method that returns the location generation under EXTRA_GENERATION,
+        // without touching the database.  The generation changes whenever a write could have
+        // changed a setting's row ID, so a row ID from METHOD_GET_OR_INSERT can be kept for as
+        // long as the generation stays the same.
+        public static final String METHOD_GET_GENERATION = "location_get_generation";
+        public static final String EXTRA_GENERATION = "generation";
+
+        // Provider call() method that gives a location we have no weather for a copy of the
+        // upcoming weather of the nearest cached location, to show until its own sync is done.
+        // The arg is the location setting; the extras hold its coordinates under their column
+        // names and the search radius under EXTRA_RADIUS_KM.  The result holds the new location's
+        // row ID under _ID, or is null if the location exists or nothing is close enough.
+        public static final String METHOD_SEED_FROM_NEAREST = "location_seed_from_nearest";
+        public static final String EXTRA_RADIUS_KM = "radius_km";
+
+        // Provider call() method that removes a location that's still seeded, and the weather it
+        // borrowed, for when its first sync fails.  The arg is the location setting.  The result
+        // holds the number of locations removed, 0 or 1, under WeatherEntry.EXTRA_COUNT.
+        public static final String METHOD_DROP_SEEDED = "location_drop_seeded";
+
+        // Full-text index over the location setting and city name, kept in step with the location
+        // table by triggers.  Read it through buildLocationSearchUri.
+        public static final String SEARCH_TABLE_NAME = "location_search";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        /*
+            Cached locations whose setting or city name has words starting with the words in
+            prefix, best matches first.  The rows have the location table's columns.
+         */
+        public static Uri buildLocationSearchUri(String prefix) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SEARCH).appendPath(prefix).build();
+        }
+
+        public static String getSearchPrefixFromUri(Uri uri) {
+            return uri.getPathSegments().get(2);
+        }
+
+        /*
+            The cached location closest to a point, if there is one within radiusKm.  The row
+            has the location table's columns.
+         */
+        public static Uri buildNearestLocationUri(double lat, double lon, double radiusKm) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_NEAREST)
+                    .appendQueryParameter(COLUMN_COORD_LAT, Double.toString(lat))
+                    .appendQueryParameter(COLUMN_COORD_LONG, Double.toString(lon))
+                    .appendQueryParameter(EXTRA_RADIUS_KM, Double.toString(radiusKm)).build();
+        }
+
+        public static double getLatitudeFromUri(Uri uri) {
+            return Double.parseDouble(uri.getQueryParameter(COLUMN_COORD_LAT));
+        }
+
+        public static double getLongitudeFromUri(Uri uri) {
+            return Double.parseDouble(uri.getQueryParameter(COLUMN_COORD_LONG));
+        }
+
+        public static double getRadiusKmFromUri(Uri uri) {
+            return Double.parseDouble(uri.getQueryParameter(EXTRA_RADIUS_KM));
+        }
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -126,6 +236,27 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Provider call() methods that return small Bundle snapshots of a location's weather,
+        // without a cursor.  The arg is the location setting.  See WeatherSnapshots for the
+        // layout of the results; use it rather than calling these directly.
+        public static final String METHOD_GET_TODAY = "weather_today";
+        public static final String METHOD_GET_SUMMARY = "weather_summary";
+        // Extra for METHOD_GET_SUMMARY: how many days to include
+        public static final String EXTRA_DAYS = "days";
+
+        // Provider call() method that moves weather dated before the arg (a normalized date) into
+        // the archive, oldest first, and updates the rollups for the weeks and months it touched.
+        // Moves at most EXTRA_LIMIT rows in one transaction, and returns the count in EXTRA_COUNT.
+        public static final String METHOD_ARCHIVE = "weather_archive";
+        public static final String EXTRA_LIMIT = "limit";
+        public static final String EXTRA_COUNT = "count";
+
+        // Provider call() method that deletes archived days dated before the arg (a normalized
+        // date), oldest first, and the rollups of the weeks and months that ended before it.
+        // Deletes at most EXTRA_LIMIT days in one transaction, and returns the count in
+        // EXTRA_COUNT.
+        public static final String METHOD_PRUNE_ARCHIVE = "weather_prune_archive";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -149,6 +280,26 @@ public class WeatherContract {
                     .appendPath(Long.toString(normalizeDate(date))).build();
         }
 
+        /*
+            Every day of weather from startDate through endDate, archived or not.
+         */
+        public static Uri buildWeatherLocationWithRange(
+                String locationSetting, long startDate, long endDate) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).appendPath(PATH_RANGE)
+                    .appendPath(Long.toString(normalizeDate(startDate)))
+                    .appendPath(Long.toString(normalizeDate(endDate))).build();
+        }
+
+        /*
+            The RollupEntry rows for one period (RollupEntry.PERIOD_WEEK or PERIOD_MONTH) that
+            overlap startDate through endDate.
+         */
+        public static Uri buildWeatherLocationWithRollups(
+                String locationSetting, String period, long startDate, long endDate) {
+            return buildWeatherLocationWithRange(locationSetting, startDate, endDate).buildUpon()
+                    .appendPath(period).build();
+        }
+
         public static String getLocationSettingFromUri(Uri uri) {
             return uri.getPathSegments().get(1);
         }
@@ -157,6 +308,18 @@ public class WeatherContract {
             return Long.parseLong(uri.getPathSegments().get(2));
         }
 
+        public static long getRangeStartFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(3));
+        }
+
+        public static long getRangeEndFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(4));
+        }
+
+        public static String getRollupPeriodFromUri(Uri uri) {
+            return uri.getPathSegments().get(5);
+        }
+
         public static long getStartDateFromUri(Uri uri) {
             String dateString = uri.getQueryParameter(COLUMN_DATE);
             if (null != dateString && dateString.length() > 0)
@@ -165,4 +328,147 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the 3-hour forecast table */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // The forecast's time, stored as whole hours since the epoch (UTC)
+        public static final String COLUMN_HOUR = "hour";
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Temperature at that time, in Celsius
+        public static final String COLUMN_TEMP = "temp";
+        public static final String COLUMN_HUMIDITY = "humidity";
+        public static final String COLUMN_PRESSURE = "pressure";
+        public static final String COLUMN_WIND_SPEED = "wind";
+        public static final String COLUMN_DEGREES = "degrees";
+
+        /*
+            The forecast hours that fall on one (normalized) day, in time order.
+         */
+        public static Uri buildHourlyLocationWithDate(String locationSetting, long date) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendPath(Long.toString(normalizeDate(date))).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(2));
+        }
+
+        public static long getHour(long timeInMillis) {
+            return timeInMillis / DateUtils.HOUR_IN_MILLIS;
+        }
+    }
+
+    /*
+        The archive holds weather that has aged out of the weather table, with the same columns.
+        Rows keep the _ID they had there, which is never reused, so the two can be read together.
+        It has no URI of its own; read it through WeatherEntry.buildWeatherLocationWithRange.
+     */
+    public static final class ArchiveEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "weather_archive";
+    }
+
+    /* Inner class that defines the table contents of the weekly and monthly rollups */
+    public static final class RollupEntry implements BaseColumns {
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_ROLLUP;
+
+        public static final String TABLE_NAME = "weather_rollup";
+
+        // Weeks start on Monday; both kinds of period are in UTC, like the dates they summarize
+        public static final String PERIOD_WEEK = "week";
+        public static final String PERIOD_MONTH = "month";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // PERIOD_WEEK or PERIOD_MONTH
+        public static final String COLUMN_PERIOD = "period";
+        // The date of the period's first day, stored as long in milliseconds since the epoch
+        public static final String COLUMN_PERIOD_START = "period_start";
+        // How many archived days the period's values cover
+        public static final String COLUMN_DAY_COUNT = "day_count";
+
+        // Lowest low and highest high over the period
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+        // Averages over the period's days.  A day's temperature is halfway between its min and max.
+        public static final String COLUMN_AVG_TEMP = "avg_temp";
+        public static final String COLUMN_AVG_HUMIDITY = "avg_humidity";
+        public static final String COLUMN_AVG_WIND_SPEED = "avg_wind";
+    }
+
+    /*
+        Forecasts fetched ahead of time for a location setting the user is still typing, so it
+        can be shown the moment the setting is saved.  A row has the weather table's columns,
+        less the location key, plus the location table's, since the location may not be stored
+        yet.  Write it with bulkInsert, which replaces what was staged for the same settings.
+     */
+    public static final class StagingEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_STAGING).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STAGING;
+
+        public static final String TABLE_NAME = "weather_staging";
+
+        // When the forecast was fetched, in milliseconds since the epoch
+        public static final String COLUMN_STAGED_AT = "staged_at";
+
+        // A staged forecast older than this isn't promoted
+        public static final long MAX_AGE = 10 * DateUtils.MINUTE_IN_MILLIS;
+
+        // Provider call() method that moves the forecast staged for a location setting (the arg)
+        // into the weather table, adding the location if it's new, and drops everything else
+        // staged.  The result holds the location's _ID, or is null if nothing fresh was staged.
+        // Needs Honeycomb.
+        public static final String METHOD_PROMOTE = "promote_staged";
+    }
+
+    /*
+        How long each phase of a sync took.  The table is a ring buffer: once it holds MAX_ROWS
+        rows, each new row pushes out the oldest one.
+     */
+    public static final class SyncMetricsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_METRICS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                        PATH_SYNC_METRICS;
+
+        public static final String TABLE_NAME = "sync_metrics";
+
+        // Rows kept; a sync writes about fifteen, so this covers the last sixty or so syncs
+        public static final int MAX_ROWS = 1000;
+
+        // When the sync the phase belongs to started, in milliseconds since the epoch.  All the
+        // phases of one sync share it.
+        public static final String COLUMN_SYNC_START = "sync_start";
+        // The phase's name, e.g. "download"; see SyncTrace
+        public static final String COLUMN_PHASE = "phase";
+        // How long the phase took, in milliseconds
+        public static final String COLUMN_DURATION = "duration";
+        // Bytes the phase read, or -1 where that means nothing
+        public static final String COLUMN_BYTES = "bytes";
+    }
 }
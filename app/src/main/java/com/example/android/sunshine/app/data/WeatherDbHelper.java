@@ -19,7 +19,12 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.app.data.WeatherContract.StagingEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
@@ -28,7 +33,7 @@ import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 12;
 
     static final String DATABASE_NAME = "weather.db";
 
@@ -45,7 +50,12 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_GRID_CELL + " INTEGER, " +
+                LocationEntry.COLUMN_CITY_KEY + " TEXT, " +
+                LocationEntry.COLUMN_CANONICAL_ID + " INTEGER, " +
+                LocationEntry.COLUMN_FORECAST_VERSION + " INTEGER, " +
+                LocationEntry.COLUMN_SEEDED + " INTEGER NOT NULL DEFAULT 0 " +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -79,20 +89,318 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
+        // WeatherProvider reads a location's weather straight from this table, by location_id
+        // and date, whenever it doesn't need any location columns.  The UNIQUE constraint's
+        // index starts with the date, so it can't find one location's rows on its own.
+        final String SQL_CREATE_WEATHER_LOCATION_INDEX = "CREATE INDEX weather_location_date ON " +
+                WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ");";
+
+        // The archive has the weather table's columns.  Its _ID isn't AUTOINCREMENT because rows
+        // bring their weather _ID with them.  Range queries read one location's days in date
+        // order, so the UNIQUE constraint's index leads with the location.
+        final String SQL_CREATE_ARCHIVE_TABLE = "CREATE TABLE " + ArchiveEntry.TABLE_NAME + " (" +
+                ArchiveEntry._ID + " INTEGER PRIMARY KEY," +
+                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+
+                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+
+                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+
+                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                " UNIQUE (" + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+        // One row per location, kind of period and period.  Its index serves range queries too.
+        final String SQL_CREATE_ROLLUP_TABLE = "CREATE TABLE " + RollupEntry.TABLE_NAME + " (" +
+                RollupEntry._ID + " INTEGER PRIMARY KEY," +
+                RollupEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                RollupEntry.COLUMN_PERIOD + " TEXT NOT NULL, " +
+                RollupEntry.COLUMN_PERIOD_START + " INTEGER NOT NULL, " +
+                RollupEntry.COLUMN_DAY_COUNT + " INTEGER NOT NULL, " +
+
+                RollupEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                RollupEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                RollupEntry.COLUMN_AVG_TEMP + " REAL NOT NULL, " +
+                RollupEntry.COLUMN_AVG_HUMIDITY + " REAL NOT NULL, " +
+                RollupEntry.COLUMN_AVG_WIND_SPEED + " REAL NOT NULL, " +
+
+                " FOREIGN KEY (" + RollupEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                " UNIQUE (" + RollupEntry.COLUMN_LOC_KEY + ", " + RollupEntry.COLUMN_PERIOD + ", " +
+                RollupEntry.COLUMN_PERIOD_START + ") ON CONFLICT REPLACE);";
+
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
+        createLocationGrid(sqLiteDatabase);
+        createLocationIdentity(sqLiteDatabase);
+        createLocationSearch(sqLiteDatabase);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_ARCHIVE_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_ROLLUP_TABLE);
+        createHourlyTable(sqLiteDatabase);
+        createStagingTable(sqLiteDatabase);
+        createSyncMetricsTable(sqLiteDatabase);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
         // Note that this only fires if you change the version number for your database.
         // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+        if (oldVersion < 4) {
+            // Before version 4 the database was only a cache for online data, so its upgrade
+            // policy was to simply discard the data and start over
+            dropAll(sqLiteDatabase);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+
+        // From version 4 on, the archive and its rollups hold history the server can't give
+        // back, and they refer to location rows by _ID.  So the schema is migrated one version
+        // at a time instead, keeping every table.
+        if (oldVersion < 5) {
+            createHourlyTable(sqLiteDatabase);
+        }
+        if (oldVersion < 6) {
+            createLocationSearch(sqLiteDatabase);
+            sqLiteDatabase.execSQL("INSERT INTO " + LocationEntry.SEARCH_TABLE_NAME + " (docid, " +
+                    LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                    LocationEntry.COLUMN_CITY_NAME + ") SELECT " + LocationEntry._ID + ", " +
+                    LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                    LocationEntry.COLUMN_CITY_NAME + " FROM " + LocationEntry.TABLE_NAME);
+        }
+        if (oldVersion < 7) {
+            sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME +
+                    " ADD COLUMN " + LocationEntry.COLUMN_GRID_CELL + " INTEGER");
+            createLocationGrid(sqLiteDatabase);
+            sqLiteDatabase.execSQL("UPDATE " + LocationEntry.TABLE_NAME + " SET " +
+                    LocationEntry.COLUMN_GRID_CELL + " = " +
+                    GeoGrid.getCellSql(LocationEntry.TABLE_NAME));
+        }
+        if (oldVersion < 8) {
+            sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME +
+                    " ADD COLUMN " + LocationEntry.COLUMN_CITY_KEY + " TEXT");
+            sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME +
+                    " ADD COLUMN " + LocationEntry.COLUMN_CANONICAL_ID + " INTEGER");
+            createLocationIdentity(sqLiteDatabase);
+            // Every existing location keeps its own weather; only new settings become aliases
+            sqLiteDatabase.execSQL("UPDATE " + LocationEntry.TABLE_NAME + " SET " +
+                    LocationEntry.COLUMN_CITY_KEY + " = " + CityIdentity.getCityKeySql(
+                            LocationEntry.COLUMN_CITY_NAME,
+                            LocationEntry.COLUMN_COORD_LAT,
+                            LocationEntry.COLUMN_COORD_LONG) + ", " +
+                    LocationEntry.COLUMN_CANONICAL_ID + " = " + LocationEntry._ID);
+        }
+        if (oldVersion < 9) {
+            createSyncMetricsTable(sqLiteDatabase);
+        }
+        if (oldVersion < 10) {
+            sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME +
+                    " ADD COLUMN " + LocationEntry.COLUMN_FORECAST_VERSION + " INTEGER");
+        }
+        if (oldVersion < 11) {
+            createStagingTable(sqLiteDatabase);
+        }
+        if (oldVersion < 12) {
+            sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN " +
+                    LocationEntry.COLUMN_SEEDED + " INTEGER NOT NULL DEFAULT 0");
+        }
+    }
+
+    private static void createLocationGrid(SQLiteDatabase sqLiteDatabase) {
+        // Nearest-location lookups read a handful of grid cells through this index.  Triggers
+        // set each location's cell from its coordinates; see GeoGrid.
+        final String SQL_CREATE_LOCATION_GRID_INDEX = "CREATE INDEX location_grid_cell ON " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry.COLUMN_GRID_CELL + ");";
+
+        final String SQL_CREATE_LOCATION_GRID_INSERT_TRIGGER = "CREATE TRIGGER " +
+                "location_grid_insert AFTER INSERT ON " + LocationEntry.TABLE_NAME +
+                " BEGIN UPDATE " + LocationEntry.TABLE_NAME + " SET " +
+                LocationEntry.COLUMN_GRID_CELL + " = " + GeoGrid.getCellSql("new") +
+                " WHERE " + LocationEntry._ID + " = new." + LocationEntry._ID + "; END;";
+
+        final String SQL_CREATE_LOCATION_GRID_UPDATE_TRIGGER = "CREATE TRIGGER " +
+                "location_grid_update AFTER UPDATE OF " + LocationEntry.COLUMN_COORD_LAT + ", " +
+                LocationEntry.COLUMN_COORD_LONG + " ON " + LocationEntry.TABLE_NAME +
+                " BEGIN UPDATE " + LocationEntry.TABLE_NAME + " SET " +
+                LocationEntry.COLUMN_GRID_CELL + " = " + GeoGrid.getCellSql("new") +
+                " WHERE " + LocationEntry._ID + " = new." + LocationEntry._ID + "; END;";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_GRID_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_GRID_INSERT_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_GRID_UPDATE_TRIGGER);
+    }
+
+    private static void createLocationIdentity(SQLiteDatabase sqLiteDatabase) {
+        // Finds the location already holding a city's weather when a new setting resolves to
+        // the same city; see CityIdentity.
+        final String SQL_CREATE_LOCATION_CITY_KEY_INDEX = "CREATE INDEX location_city_key ON " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry.COLUMN_CITY_KEY + ");";
+
+        // A location is its own canonical location unless it was inserted as an alias
+        final String SQL_CREATE_LOCATION_IDENTITY_INSERT_TRIGGER = "CREATE TRIGGER " +
+                "location_identity_insert AFTER INSERT ON " + LocationEntry.TABLE_NAME +
+                " BEGIN UPDATE " + LocationEntry.TABLE_NAME + " SET " +
+                LocationEntry.COLUMN_CITY_KEY + " = " + CityIdentity.getCityKeySql(
+                        "new." + LocationEntry.COLUMN_CITY_NAME,
+                        "new." + LocationEntry.COLUMN_COORD_LAT,
+                        "new." + LocationEntry.COLUMN_COORD_LONG) + ", " +
+                LocationEntry.COLUMN_CANONICAL_ID + " = IFNULL(new." +
+                LocationEntry.COLUMN_CANONICAL_ID + ", new." + LocationEntry._ID + ")" +
+                " WHERE " + LocationEntry._ID + " = new." + LocationEntry._ID + "; END;";
+
+        final String SQL_CREATE_LOCATION_IDENTITY_UPDATE_TRIGGER = "CREATE TRIGGER " +
+                "location_identity_update AFTER UPDATE OF " + LocationEntry.COLUMN_CITY_NAME +
+                ", " + LocationEntry.COLUMN_COORD_LAT + ", " + LocationEntry.COLUMN_COORD_LONG +
+                " ON " + LocationEntry.TABLE_NAME +
+                " BEGIN UPDATE " + LocationEntry.TABLE_NAME + " SET " +
+                LocationEntry.COLUMN_CITY_KEY + " = " + CityIdentity.getCityKeySql(
+                        "new." + LocationEntry.COLUMN_CITY_NAME,
+                        "new." + LocationEntry.COLUMN_COORD_LAT,
+                        "new." + LocationEntry.COLUMN_COORD_LONG) +
+                " WHERE " + LocationEntry._ID + " = new." + LocationEntry._ID + "; END;";
+
+        // Aliases have no weather of their own, so they go with the location that holds it
+        final String SQL_CREATE_LOCATION_IDENTITY_DELETE_TRIGGER = "CREATE TRIGGER " +
+                "location_identity_delete AFTER DELETE ON " + LocationEntry.TABLE_NAME +
+                " WHEN old." + LocationEntry.COLUMN_CANONICAL_ID + " = old." + LocationEntry._ID +
+                " BEGIN DELETE FROM " + LocationEntry.TABLE_NAME + " WHERE " +
+                LocationEntry.COLUMN_CANONICAL_ID + " = old." + LocationEntry._ID + "; END;";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_CITY_KEY_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_IDENTITY_INSERT_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_IDENTITY_UPDATE_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_IDENTITY_DELETE_TRIGGER);
+    }
+
+    private static void createLocationSearch(SQLiteDatabase sqLiteDatabase) {
+        // Location search is a full-text index whose docid is the location's _ID.  FTS3 is what
+        // every supported Android version ships with.  Triggers keep it matching the location
+        // table however a location is written.
+        final String SQL_CREATE_LOCATION_SEARCH_TABLE = "CREATE VIRTUAL TABLE " +
+                LocationEntry.SEARCH_TABLE_NAME + " USING fts3(" +
+                LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                LocationEntry.COLUMN_CITY_NAME + ");";
+
+        final String SQL_CREATE_LOCATION_SEARCH_INSERT_TRIGGER = "CREATE TRIGGER " +
+                LocationEntry.SEARCH_TABLE_NAME + "_insert AFTER INSERT ON " +
+                LocationEntry.TABLE_NAME + " BEGIN INSERT INTO " +
+                LocationEntry.SEARCH_TABLE_NAME + " (docid, " +
+                LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                LocationEntry.COLUMN_CITY_NAME + ") VALUES (new." + LocationEntry._ID + ", new." +
+                LocationEntry.COLUMN_LOCATION_SETTING + ", new." +
+                LocationEntry.COLUMN_CITY_NAME + "); END;";
+
+        final String SQL_CREATE_LOCATION_SEARCH_UPDATE_TRIGGER = "CREATE TRIGGER " +
+                LocationEntry.SEARCH_TABLE_NAME + "_update AFTER UPDATE OF " +
+                LocationEntry.COLUMN_LOCATION_SETTING + ", " + LocationEntry.COLUMN_CITY_NAME +
+                " ON " +
+                LocationEntry.TABLE_NAME + " BEGIN UPDATE " +
+                LocationEntry.SEARCH_TABLE_NAME + " SET " +
+                LocationEntry.COLUMN_LOCATION_SETTING + " = new." +
+                LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                LocationEntry.COLUMN_CITY_NAME + " = new." + LocationEntry.COLUMN_CITY_NAME +
+                " WHERE docid = old." + LocationEntry._ID + "; END;";
+
+        final String SQL_CREATE_LOCATION_SEARCH_DELETE_TRIGGER = "CREATE TRIGGER " +
+                LocationEntry.SEARCH_TABLE_NAME + "_delete AFTER DELETE ON " +
+                LocationEntry.TABLE_NAME + " BEGIN DELETE FROM " +
+                LocationEntry.SEARCH_TABLE_NAME + " WHERE docid = old." + LocationEntry._ID +
+                "; END;";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_SEARCH_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_SEARCH_INSERT_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_SEARCH_UPDATE_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_SEARCH_DELETE_TRIGGER);
+    }
+
+    private static void createHourlyTable(SQLiteDatabase sqLiteDatabase) {
+        // The 3-hour forecast keeps only numbers, and only the ones a chart needs, so 40 rows
+        // per location stay small.  Hours are read by location and time, so the UNIQUE
+        // constraint's index leads with the location.
+        final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY," +
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_HOUR + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TEMP + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                " UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                HourlyEntry.COLUMN_HOUR + ") ON CONFLICT REPLACE);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+    }
+
+    private static void createStagingTable(SQLiteDatabase sqLiteDatabase) {
+        // Prefetched forecasts wait here until their setting is saved.  They're looked up and
+        // replaced by setting, and there are only ever a few, so no index.
+        final String SQL_CREATE_STAGING_TABLE = "CREATE TABLE " + StagingEntry.TABLE_NAME + " (" +
+                StagingEntry._ID + " INTEGER PRIMARY KEY," +
+                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL, " +
+                LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+                LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                StagingEntry.COLUMN_STAGED_AT + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_STAGING_TABLE);
+    }
+
+    private static void createSyncMetricsTable(SQLiteDatabase sqLiteDatabase) {
+        // Sync phase timings.  _ID only ever grows (AUTOINCREMENT), so the trigger keeps the
+        // last MAX_ROWS rows by dropping every row that far behind the new one.
+        final String SQL_CREATE_SYNC_METRICS_TABLE = "CREATE TABLE " +
+                SyncMetricsEntry.TABLE_NAME + " (" +
+                SyncMetricsEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                SyncMetricsEntry.COLUMN_SYNC_START + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_PHASE + " TEXT NOT NULL, " +
+                SyncMetricsEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_BYTES + " INTEGER NOT NULL DEFAULT -1);";
+
+        final String SQL_CREATE_SYNC_METRICS_TRIM_TRIGGER = "CREATE TRIGGER " +
+                SyncMetricsEntry.TABLE_NAME + "_trim AFTER INSERT ON " +
+                SyncMetricsEntry.TABLE_NAME + " BEGIN DELETE FROM " +
+                SyncMetricsEntry.TABLE_NAME + " WHERE " + SyncMetricsEntry._ID + " <= new." +
+                SyncMetricsEntry._ID + " - " + SyncMetricsEntry.MAX_ROWS + "; END;";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_METRICS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_METRICS_TRIM_TRIGGER);
+    }
+
+    private static void dropAll(SQLiteDatabase sqLiteDatabase) {
+        // Dropping the location table drops its triggers too
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.SEARCH_TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ArchiveEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + RollupEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + StagingEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncMetricsEntry.TABLE_NAME);
     }
 }
@@ -17,23 +17,58 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
 
 public class WeatherProvider extends ContentProvider {
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // Set on the thread running applyBatch, so every operation in the batch adds to one set of
+    // notifications that goes out once the whole transaction has committed.
+    private final ThreadLocal<ChangeNotificationBatch> mAppliedBatchChanges =
+            new ThreadLocal<ChangeNotificationBatch>();
+    private final LocationIdCache mLocationIds = new LocationIdCache();
+    private final SnapshotCache mSnapshots = new SnapshotCache();
+    private final QueryResultCache mQueryResults = new QueryResultCache();
+
+    // PRAGMA auto_vacuum value for INCREMENTAL
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+    private static final int DEFAULT_COMPACT_PAGES = 64;
+    private static final int DEFAULT_ARCHIVE_LIMIT = 100;
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int WEATHER_WITH_LOCATION_AND_RANGE = 103;
+    static final int WEATHER_WITH_LOCATION_AND_ROLLUPS = 104;
     static final int LOCATION = 300;
+    static final int LOCATION_SEARCH = 301;
+    static final int LOCATION_NEAREST = 302;
+    static final int HOURLY = 400;
+    static final int HOURLY_WITH_LOCATION_AND_DATE = 401;
+    static final int SYNC_METRICS = 500;
+    static final int STAGING = 600;
 
     private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
@@ -41,14 +76,15 @@ public class WeatherProvider extends ContentProvider {
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
         
         //This is an inner join which looks like
-        //weather INNER JOIN location ON weather.location_id = location._id
+        //weather INNER JOIN location ON weather.location_id = location.canonical_id
+        //so that an alias's setting finds the weather stored under its city's location
         sWeatherByLocationSettingQueryBuilder.setTables(
                 WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
                         WeatherContract.LocationEntry.TABLE_NAME +
                         " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
                         "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
                         " = " + WeatherContract.LocationEntry.TABLE_NAME +
-                        "." + WeatherContract.LocationEntry._ID);
+                        "." + WeatherContract.LocationEntry.COLUMN_CANONICAL_ID);
     }
 
     //location.location_setting = ?
@@ -68,13 +104,103 @@ public class WeatherProvider extends ContentProvider {
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //weather.location_id = ?
+    private static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //weather.location_id = ? AND date >= ?
+    private static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    //weather.location_id = ? AND date = ?
+    private static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    // The weather columns a seeded location copies from its neighbor, and a promoted one from
+    // the staging table
+    private static final String[] SEEDED_WEATHER_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    //hourly.location_id = ? AND hour >= ? AND hour < ?
+    private static final String sLocationIdAndHoursSelection =
+            WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_HOUR + " >= ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_HOUR + " < ? ";
+
+    /*
+        Only the location setting needs the location table.  If the projection doesn't ask for
+        any location columns, and we know the setting's row ID, the weather table can answer on
+        its own using its (location_id, date) index.  Returns -1 when the join is needed.
+     */
+    private long getLocationIdForWeatherQuery(String locationSetting, String[] projection) {
+        if (projectsLocationColumns(projection)) {
+            return -1;
+        }
+        return mLocationIds.getLocationId(mOpenHelper.getReadableDatabase(), locationSetting);
+    }
+
+    private static boolean projectsLocationColumns(String[] projection) {
+        // A null projection is every column of both tables
+        if (null == projection) return true;
+        for (String column : projection) {
+            if (column.startsWith(WeatherContract.LocationEntry.TABLE_NAME + ".")
+                    || column.equals(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)
+                    || column.equals(WeatherContract.LocationEntry.COLUMN_CITY_NAME)
+                    || column.equals(WeatherContract.LocationEntry.COLUMN_COORD_LAT)
+                    || column.equals(WeatherContract.LocationEntry.COLUMN_COORD_LONG)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+        The row ID of a location-scoped uri's location, or -1 (which matches nothing) if there
+        is no such location.
+     */
+    private long getLocationId(Uri uri) {
+        return mLocationIds.getLocationId(mOpenHelper.getReadableDatabase(),
+                WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
+    }
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        long locationId = getLocationIdForWeatherQuery(locationSetting, projection);
 
         String[] selectionArgs;
         String selection;
 
+        if (locationId != -1) {
+            if (startDate == 0) {
+                selection = sLocationIdSelection;
+                selectionArgs = new String[]{Long.toString(locationId)};
+            } else {
+                selection = sLocationIdWithStartDateSelection;
+                selectionArgs = new String[]{Long.toString(locationId), Long.toString(startDate)};
+            }
+            return mOpenHelper.getReadableDatabase().query(
+                    WeatherContract.WeatherEntry.TABLE_NAME,
+                    projection,
+                    selection,
+                    selectionArgs,
+                    null,
+                    null,
+                    sortOrder
+            );
+        }
+
         if (startDate == 0) {
             selection = sLocationSettingSelection;
             selectionArgs = new String[]{locationSetting};
@@ -97,6 +223,19 @@ public class WeatherProvider extends ContentProvider {
             Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+        long locationId = getLocationIdForWeatherQuery(locationSetting, projection);
+
+        if (locationId != -1) {
+            return mOpenHelper.getReadableDatabase().query(
+                    WeatherContract.WeatherEntry.TABLE_NAME,
+                    projection,
+                    sLocationIdAndDaySelection,
+                    new String[]{Long.toString(locationId), Long.toString(date)},
+                    null,
+                    null,
+                    sortOrder
+            );
+        }
 
         return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
                 projection,
@@ -108,6 +247,26 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    private Cursor getHourlyByLocationSettingAndDate(
+            Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+        long date = WeatherContract.HourlyEntry.getDateFromUri(uri);
+        long firstHour = WeatherContract.HourlyEntry.getHour(date);
+        long locationId = mLocationIds.getLocationId(mOpenHelper.getReadableDatabase(),
+                locationSetting);
+
+        return mOpenHelper.getReadableDatabase().query(
+                WeatherContract.HourlyEntry.TABLE_NAME,
+                projection,
+                sLocationIdAndHoursSelection,
+                new String[]{Long.toString(locationId), Long.toString(firstHour),
+                        Long.toString(firstHour + 24)},
+                null,
+                null,
+                null == sortOrder ? WeatherContract.HourlyEntry.COLUMN_HOUR + " ASC" : sortOrder
+        );
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -128,8 +287,22 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER, WEATHER);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/" + WeatherContract.PATH_RANGE
+                + "/#/#", WEATHER_WITH_LOCATION_AND_RANGE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/" + WeatherContract.PATH_RANGE
+                + "/#/#/*", WEATHER_WITH_LOCATION_AND_ROLLUPS);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/" + WeatherContract.PATH_SEARCH
+                + "/*", LOCATION_SEARCH);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/" + WeatherContract.PATH_NEAREST,
+                LOCATION_NEAREST);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*/#", HOURLY_WITH_LOCATION_AND_DATE);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_METRICS, SYNC_METRICS);
+        matcher.addURI(authority, WeatherContract.PATH_STAGING, STAGING);
         return matcher;
     }
 
@@ -160,10 +333,25 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_ITEM_TYPE;
             case WEATHER_WITH_LOCATION:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case WEATHER_WITH_LOCATION_AND_RANGE:
+                return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case WEATHER_WITH_LOCATION_AND_ROLLUPS:
+                return WeatherContract.RollupEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case LOCATION_SEARCH:
+                return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case LOCATION_NEAREST:
+                return WeatherContract.LocationEntry.CONTENT_ITEM_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION_AND_DATE:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
+            case SYNC_METRICS:
+                return WeatherContract.SyncMetricsEntry.CONTENT_TYPE;
+            case STAGING:
+                return WeatherContract.StagingEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -172,10 +360,27 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        final int match = sUriMatcher.match(uri);
+
+        // Location-scoped weather queries are answered from memory when nothing has written to
+        // that location since the same query last ran.
+        String cacheKey = null;
+        int cacheGeneration = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && (match == WEATHER_WITH_LOCATION || match == WEATHER_WITH_LOCATION_AND_DATE)) {
+            cacheKey = QueryResultCache.buildKey(uri.toString(), projection, sortOrder);
+            Cursor cached = mQueryResults.get(cacheKey);
+            if (null != cached) {
+                cached.setNotificationUri(getContext().getContentResolver(), uri);
+                return cached;
+            }
+            cacheGeneration = mQueryResults.getGeneration();
+        }
+
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
@@ -187,6 +392,25 @@ public class WeatherProvider extends ContentProvider {
                 retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
                 break;
             }
+            // "weather/*/range/#/#"
+            case WEATHER_WITH_LOCATION_AND_RANGE: {
+                retCursor = WeatherArchive.queryRange(mOpenHelper.getReadableDatabase(),
+                        getLocationId(uri),
+                        WeatherContract.WeatherEntry.getRangeStartFromUri(uri),
+                        WeatherContract.WeatherEntry.getRangeEndFromUri(uri),
+                        projection, sortOrder);
+                break;
+            }
+            // "weather/*/range/#/#/*"
+            case WEATHER_WITH_LOCATION_AND_ROLLUPS: {
+                retCursor = WeatherArchive.queryRollups(mOpenHelper.getReadableDatabase(),
+                        getLocationId(uri),
+                        WeatherContract.WeatherEntry.getRollupPeriodFromUri(uri),
+                        WeatherContract.WeatherEntry.getRangeStartFromUri(uri),
+                        WeatherContract.WeatherEntry.getRangeEndFromUri(uri),
+                        projection, sortOrder);
+                break;
+            }
             // "weather"
             case WEATHER: {
                 retCursor = mOpenHelper.getReadableDatabase().query(
@@ -213,10 +437,69 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "location/search/*"
+            case LOCATION_SEARCH: {
+                retCursor = LocationSearch.query(mOpenHelper.getReadableDatabase(),
+                        WeatherContract.LocationEntry.getSearchPrefixFromUri(uri), projection);
+                break;
+            }
+            // "location/nearest"
+            case LOCATION_NEAREST: {
+                long locationId = GeoGrid.findNearest(mOpenHelper.getReadableDatabase(),
+                        WeatherContract.LocationEntry.getLatitudeFromUri(uri),
+                        WeatherContract.LocationEntry.getLongitudeFromUri(uri),
+                        WeatherContract.LocationEntry.getRadiusKmFromUri(uri));
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.LocationEntry.TABLE_NAME,
+                        projection,
+                        WeatherContract.LocationEntry._ID + " = ?",
+                        new String[]{Long.toString(locationId)},
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "hourly/*/#"
+            case HOURLY_WITH_LOCATION_AND_DATE: {
+                retCursor = getHourlyByLocationSettingAndDate(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "sync_metrics"
+            case SYNC_METRICS: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        if (null != cacheKey) {
+            retCursor = mQueryResults.put(cacheKey,
+                    WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                    retCursor, cacheGeneration);
+        }
         retCursor.setNotificationUri(getContext().getContentResolver(), uri);
         return retCursor;
     }
@@ -228,22 +511,49 @@ public class WeatherProvider extends ContentProvider {
     public Uri insert(Uri uri, ContentValues values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
+        final ChangeNotificationBatch changes = startChanges(db);
         Uri returnUri;
 
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
                 long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
-                if ( _id > 0 )
+                if ( _id > 0 ) {
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
+                    changes.addWeatherValues(values);
+                }
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
             case LOCATION: {
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
-                if ( _id > 0 )
+                if ( _id > 0 ) {
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
+                    changes.addLocationInsert(_id, values);
+                    mLocationIds.invalidate();
+                }
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
+            case HOURLY: {
+                long _id = db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, values);
+                if ( _id > 0 ) {
+                    returnUri = ContentUris.withAppendedId(WeatherContract.HourlyEntry.CONTENT_URI, _id);
+                    changes.addHourlyChange();
+                }
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
+            case SYNC_METRICS: {
+                long _id = db.insert(WeatherContract.SyncMetricsEntry.TABLE_NAME, null, values);
+                if ( _id > 0 ) {
+                    returnUri = ContentUris.withAppendedId(
+                            WeatherContract.SyncMetricsEntry.CONTENT_URI, _id);
+                    changes.addMetricsChange();
+                }
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
@@ -251,7 +561,7 @@ public class WeatherProvider extends ContentProvider {
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        finishChanges(changes);
         return returnUri;
     }
 
@@ -259,28 +569,71 @@ public class WeatherProvider extends ContentProvider {
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
+        final ChangeNotificationBatch changes = startChanges(db);
         int rowsDeleted;
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
             case WEATHER:
+                // Find out which locations and days go away before they're gone
+                changes.addWeatherSelection(selection, selectionArgs);
                 rowsDeleted = db.delete(
                         WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             case LOCATION:
+                changes.addLocationSelection(selection, selectionArgs);
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                mLocationIds.invalidate();
+                break;
+            case HOURLY:
+                changes.addHourlyChange();
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case SYNC_METRICS:
+                changes.addMetricsChange();
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            finishChanges(changes);
         }
         return rowsDeleted;
     }
 
+    /*
+        Returns the batch a write should record its changes in: the one applyBatch set up if
+        we're inside it, otherwise a new one for just this write.
+     */
+    private ChangeNotificationBatch startChanges(SQLiteDatabase db) {
+        ChangeNotificationBatch changes = mAppliedBatchChanges.get();
+        return null != changes ? changes : new ChangeNotificationBatch(db);
+    }
+
+    private void finishChanges(ChangeNotificationBatch changes) {
+        // Inside applyBatch, the notifications wait until the batch has committed
+        if (changes != mAppliedBatchChanges.get()) {
+            invalidateCaches(changes);
+            changes.dispatch(getContext().getContentResolver());
+        }
+    }
+
+    private void invalidateCaches(ChangeNotificationBatch changes) {
+        // Nothing cached comes from the hourly or sync metrics tables
+        if (!changes.affectsWeatherOrLocations()) {
+            return;
+        }
+        mSnapshots.invalidate();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            mQueryResults.invalidate(changes);
+        }
+    }
+
     private void normalizeDate(ContentValues values) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
@@ -294,23 +647,36 @@ public class WeatherProvider extends ContentProvider {
             Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
+        final ChangeNotificationBatch changes = startChanges(db);
         int rowsUpdated;
 
         switch (match) {
             case WEATHER:
                 normalizeDate(values);
+                // The rows as they were, and then as they are: an update can move a row to
+                // another day or location
+                changes.addWeatherSelection(selection, selectionArgs);
                 rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)
+                        || values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)) {
+                    changes.addWeatherSelection(selection, selectionArgs);
+                }
                 break;
             case LOCATION:
+                changes.addLocationSelection(selection, selectionArgs);
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                mLocationIds.invalidate();
+                if (values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)) {
+                    changes.addLocationSelection(selection, selectionArgs);
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            finishChanges(changes);
         }
         return rowsUpdated;
     }
@@ -321,6 +687,7 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
+                final ChangeNotificationBatch changes = startChanges(db);
                 db.beginTransaction();
                 int returnCount = 0;
                 try {
@@ -329,19 +696,545 @@ public class WeatherProvider extends ContentProvider {
                         long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
                         if (_id != -1) {
                             returnCount++;
+                            changes.addWeatherValues(value);
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                // One notification per location (or day) touched, after the commit
+                finishChanges(changes);
                 return returnCount;
+            case HOURLY:
+                final ChangeNotificationBatch hourlyChanges = startChanges(db);
+                db.beginTransaction();
+                int hourlyCount = 0;
+                try {
+                    for (ContentValues value : values) {
+                        if (db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, value) != -1) {
+                            hourlyCount++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (hourlyCount != 0) {
+                    hourlyChanges.addHourlyChange();
+                    finishChanges(hourlyChanges);
+                }
+                return hourlyCount;
+            case SYNC_METRICS:
+                // One transaction per sync's worth of phases, rather than one per phase
+                final ChangeNotificationBatch metricsChanges = startChanges(db);
+                db.beginTransaction();
+                int metricsCount = 0;
+                try {
+                    for (ContentValues value : values) {
+                        if (db.insert(WeatherContract.SyncMetricsEntry.TABLE_NAME, null, value)
+                                != -1) {
+                            metricsCount++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (metricsCount != 0) {
+                    metricsChanges.addMetricsChange();
+                    finishChanges(metricsChanges);
+                }
+                return metricsCount;
+            case STAGING:
+                // Nobody observes the staging table, so there's nothing to notify
+                db.beginTransaction();
+                int stagedCount = 0;
+                try {
+                    HashSet<String> replaced = new HashSet<String>();
+                    for (ContentValues value : values) {
+                        String locationSetting = value.getAsString(
+                                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                        if (replaced.add(locationSetting)) {
+                            db.delete(WeatherContract.StagingEntry.TABLE_NAME,
+                                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                                    new String[]{locationSetting});
+                        }
+                        normalizeDate(value);
+                        if (db.insert(WeatherContract.StagingEntry.TABLE_NAME, null, value) != -1) {
+                            stagedCount++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                return stagedCount;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    @Override
+    @TargetApi(11)
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.LocationEntry.METHOD_GET_OR_INSERT.equals(method)) {
+            return getOrInsertLocation(arg, extras);
+        }
+        if (WeatherContract.LocationEntry.METHOD_GET_GENERATION.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.LocationEntry.EXTRA_GENERATION,
+                    mLocationIds.getGeneration());
+            return result;
+        }
+        if (WeatherContract.LocationEntry.METHOD_SEED_FROM_NEAREST.equals(method)) {
+            long locationId = seedFromNearestLocation(arg, extras);
+            if (locationId == -1) {
+                return null;
+            }
+            Bundle result = new Bundle();
+            result.putLong(WeatherContract.LocationEntry._ID, locationId);
+            return result;
+        }
+        if (WeatherContract.LocationEntry.METHOD_DROP_SEEDED.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.WeatherEntry.EXTRA_COUNT, dropSeededLocation(arg));
+            return result;
+        }
+        if (WeatherContract.StagingEntry.METHOD_PROMOTE.equals(method)) {
+            long locationId = promoteStaged(arg);
+            if (locationId == -1) {
+                return null;
+            }
+            Bundle result = new Bundle();
+            result.putLong(WeatherContract.LocationEntry._ID, locationId);
+            return result;
+        }
+        if (WeatherContract.WeatherEntry.METHOD_GET_TODAY.equals(method)) {
+            return getSnapshot(method, arg, 1);
+        }
+        if (WeatherContract.METHOD_GET_QUERY_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.EXTRA_CACHE_HITS, mQueryResults.getHitCount());
+            result.putInt(WeatherContract.EXTRA_CACHE_MISSES, mQueryResults.getMissCount());
+            return result;
+        }
+        if (WeatherContract.WeatherEntry.METHOD_ARCHIVE.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.WeatherEntry.EXTRA_COUNT, archiveWeather(
+                    Long.parseLong(arg),
+                    null == extras ? DEFAULT_ARCHIVE_LIMIT
+                            : extras.getInt(WeatherContract.WeatherEntry.EXTRA_LIMIT,
+                            DEFAULT_ARCHIVE_LIMIT)));
+            return result;
+        }
+        if (WeatherContract.WeatherEntry.METHOD_PRUNE_ARCHIVE.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.WeatherEntry.EXTRA_COUNT, pruneArchive(
+                    Long.parseLong(arg),
+                    null == extras ? DEFAULT_ARCHIVE_LIMIT
+                            : extras.getInt(WeatherContract.WeatherEntry.EXTRA_LIMIT,
+                            DEFAULT_ARCHIVE_LIMIT)));
+            return result;
+        }
+        if (WeatherContract.METHOD_COMPACT.equals(method)) {
+            compact(null == extras ? DEFAULT_COMPACT_PAGES
+                    : extras.getInt(WeatherContract.EXTRA_PAGES, DEFAULT_COMPACT_PAGES));
+            return null;
+        }
+        if (WeatherContract.WeatherEntry.METHOD_GET_SUMMARY.equals(method)) {
+            int days = null == extras ? WeatherSnapshots.DEFAULT_SUMMARY_DAYS
+                    : extras.getInt(WeatherContract.WeatherEntry.EXTRA_DAYS,
+                    WeatherSnapshots.DEFAULT_SUMMARY_DAYS);
+            return getSnapshot(method, arg, days);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /*
+        Auto-vacuum can only be switched on before the first table exists, or by a full VACUUM
+        afterwards, so the first compaction pays for that once.  From then on, each call frees at
+        most pages pages, which keeps the write lock short.
+     */
+    private void compact(int pages) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        try {
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+                db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+                db.execSQL("VACUUM");
+                return;
+            }
+            // incremental_vacuum does its work as the statement is stepped
+            Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    // nothing to read
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            // VACUUM can't run while another statement is open; the next compaction will retry
+            Log.w(LOG_TAG, "Couldn't compact the database", e);
+        }
+    }
+
+    /*
+        Answers the snapshot methods from mSnapshots when it can.  A miss reads the weather table
+        directly, with no cursor crossing the provider boundary and no notification uri, and is
+        cached until the next write.  Today is part of the key, so the cache rolls over at
+        midnight on its own.
+     */
+    private Bundle getSnapshot(String method, String locationSetting, int days) {
+        if (null == locationSetting) {
+            throw new IllegalArgumentException("A location setting is required");
+        }
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        String key = method + "/" + locationSetting + "/" + today + "/" + days;
+        Bundle snapshot = mSnapshots.get(key);
+        if (null != snapshot) {
+            return snapshot;
+        }
+
+        int generation = mSnapshots.getGeneration();
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        long locationId = mLocationIds.getLocationId(db, locationSetting);
+        Cursor cursor = null;
+        if (locationId != -1) {
+            cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                    WeatherSnapshots.SNAPSHOT_COLUMNS,
+                    sLocationIdWithStartDateSelection,
+                    new String[]{Long.toString(locationId), Long.toString(today)},
+                    null,
+                    null,
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " ASC",
+                    Integer.toString(days));
+        }
+        if (WeatherContract.WeatherEntry.METHOD_GET_TODAY.equals(method)) {
+            snapshot = WeatherSnapshots.buildToday(cursor);
+        } else {
+            snapshot = WeatherSnapshots.buildSummary(cursor, days);
+        }
+        return mSnapshots.put(key, snapshot, generation);
+    }
+
+    /*
+        Moves one batch of old weather and its rollup updates in a single transaction, so a range
+        query never sees a day in both tables or in neither.
+     */
+    private int archiveWeather(long cutoffDate, int limit) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final ChangeNotificationBatch changes = startChanges(db);
+        int moved;
+        db.beginTransaction();
+        try {
+            moved = WeatherArchive.archive(db, cutoffDate, limit, changes);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (moved != 0) {
+            finishChanges(changes);
+        }
+        return moved;
+    }
+
+    /*
+        Deletes one batch of archived days, and the rollups that have aged out, in a single
+        transaction.
+     */
+    private int pruneArchive(long cutoffDate, int limit) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final ChangeNotificationBatch changes = startChanges(db);
+        int pruned;
+        db.beginTransaction();
+        try {
+            pruned = WeatherArchive.prune(db, cutoffDate, limit, changes);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (pruned != 0) {
+            finishChanges(changes);
+        }
+        return pruned;
+    }
+
+    /*
+        Looks the location up, and adds it if it's missing, inside one transaction.  SQLite
+        transactions here are exclusive, so two syncs for the same new location can't both
+        decide to insert it.  A location that's already there takes the city name and
+        coordinates from the server, which matters for one seeded from a neighbor; one that
+        already has them isn't written or notified.
+     */
+    private Bundle getOrInsertLocation(String locationSetting, Bundle extras) {
+        if (null == locationSetting || null == extras) {
+            throw new IllegalArgumentException("A location setting and its details are required");
+        }
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                extras.getString(WeatherContract.LocationEntry.COLUMN_CITY_NAME));
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                extras.getDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT));
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+                extras.getDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG));
+        // The server has vouched for the location now
+        values.put(WeatherContract.LocationEntry.COLUMN_SEEDED, 0);
+
+        final ChangeNotificationBatch changes = startChanges(db);
+        long locationId;
+        int generation;
+        db.beginTransaction();
+        try {
+            // Someone may have added it since we looked; nobody can while we're in here
+            locationId = mLocationIds.getLocationId(db, locationSetting);
+            if (locationId == -1) {
+                // The server may have resolved this setting to a city another setting already has
+                long canonicalId = CityIdentity.findCanonicalId(db,
+                        values.getAsString(WeatherContract.LocationEntry.COLUMN_CITY_NAME),
+                        values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT),
+                        values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG));
+                values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+                if (canonicalId != -1) {
+                    values.put(WeatherContract.LocationEntry.COLUMN_CANONICAL_ID, canonicalId);
+                }
+                long rowId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                if (rowId == -1) {
+                    throw new android.database.SQLException(
+                            "Failed to insert location " + locationSetting);
+                }
+                if (canonicalId == -1) {
+                    changes.addLocationInsert(rowId, values);
+                    locationId = rowId;
+                } else {
+                    // An alias has weather from the start
+                    changes.addLocationSelection(WeatherContract.LocationEntry._ID + " = ?",
+                            new String[]{Long.toString(rowId)});
+                    locationId = canonicalId;
+                }
+                mLocationIds.invalidate();
+            } else {
+                // Only writes (and notifies) when something actually changed.  This is the
+                // setting's own row, which for an alias isn't the one its weather is under.
+                String selection = WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING
+                        + " = ? AND ("
+                        + WeatherContract.LocationEntry.COLUMN_CITY_NAME + " != ? OR "
+                        + WeatherContract.LocationEntry.COLUMN_COORD_LAT + " != ? OR "
+                        + WeatherContract.LocationEntry.COLUMN_COORD_LONG + " != ? OR "
+                        + WeatherContract.LocationEntry.COLUMN_SEEDED + " != 0)";
+                String[] selectionArgs = {locationSetting,
+                        values.getAsString(WeatherContract.LocationEntry.COLUMN_CITY_NAME),
+                        values.getAsString(WeatherContract.LocationEntry.COLUMN_COORD_LAT),
+                        values.getAsString(WeatherContract.LocationEntry.COLUMN_COORD_LONG)};
+                if (changes.addLocationSelection(selection, selectionArgs)) {
+                    db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
+                            selectionArgs);
+                }
+            }
+            // Read inside the transaction, so it's the generation this ID is valid for
+            generation = mLocationIds.getGeneration();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (!changes.isEmpty()) {
+            finishChanges(changes);
+        }
+        Bundle result = new Bundle();
+        result.putLong(WeatherContract.LocationEntry._ID, locationId);
+        result.putInt(WeatherContract.LocationEntry.EXTRA_GENERATION, generation);
+        return result;
+    }
+
+    /*
+        Adds a location that has no weather yet, under its own setting and coordinates but the
+        nearest cached location's city name, and copies that location's weather from today on.
+        The location is marked seeded until the first real sync for it replaces both, or its
+        first failed sync drops it.  Returns -1, changing nothing, if
+        the location exists or nothing is within the radius.
+     */
+    private long seedFromNearestLocation(String locationSetting, Bundle extras) {
+        if (null == locationSetting || null == extras) {
+            throw new IllegalArgumentException("A location setting and its coordinates are required");
+        }
+        double lat = extras.getDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
+        double lon = extras.getDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+        double radiusKm = extras.getDouble(WeatherContract.LocationEntry.EXTRA_RADIUS_KM);
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final ChangeNotificationBatch changes = startChanges(db);
+        long locationId = -1;
+        db.beginTransaction();
+        try {
+            long nearestId = mLocationIds.getLocationId(db, locationSetting) == -1
+                    ? GeoGrid.findNearest(db, lat, lon, radiusKm) : -1;
+            if (nearestId != -1) {
+                // The city name is copied in SQL, so the row needn't be read first
+                db.execSQL("INSERT INTO " + WeatherContract.LocationEntry.TABLE_NAME + " ("
+                        + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + ", "
+                        + WeatherContract.LocationEntry.COLUMN_CITY_NAME + ", "
+                        + WeatherContract.LocationEntry.COLUMN_COORD_LAT + ", "
+                        + WeatherContract.LocationEntry.COLUMN_COORD_LONG + ", "
+                        + WeatherContract.LocationEntry.COLUMN_SEEDED + ")"
+                        + " SELECT ?, " + WeatherContract.LocationEntry.COLUMN_CITY_NAME + ", ?, ?, 1"
+                        + " FROM " + WeatherContract.LocationEntry.TABLE_NAME
+                        + " WHERE " + WeatherContract.LocationEntry._ID + " = ?",
+                        new Object[]{locationSetting, lat, lon, nearestId});
+                locationId = mLocationIds.getLocationId(db, locationSetting);
+            }
+            if (locationId != -1) {
+                // The nearest location may be an alias, whose weather is stored under its city's
+                // canonical row
+                String columns = TextUtils.join(", ", SEEDED_WEATHER_COLUMNS);
+                db.execSQL("INSERT INTO " + WeatherContract.WeatherEntry.TABLE_NAME + " ("
+                        + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", " + columns + ")"
+                        + " SELECT ?, " + columns
+                        + " FROM " + WeatherContract.WeatherEntry.TABLE_NAME
+                        + " WHERE " + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = (SELECT "
+                        + WeatherContract.LocationEntry.COLUMN_CANONICAL_ID
+                        + " FROM " + WeatherContract.LocationEntry.TABLE_NAME
+                        + " WHERE " + WeatherContract.LocationEntry._ID + " = ?)"
+                        + " AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                        new Object[]{locationId, nearestId,
+                                WeatherContract.normalizeDate(System.currentTimeMillis())});
+                changes.addLocationSelection(WeatherContract.LocationEntry._ID + " = ?",
+                        new String[]{Long.toString(locationId)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        finishChanges(changes);
+        return locationId;
+    }
+
+    /*
+        Deletes a location that's still seeded, with the weather it borrowed, in one
+        transaction.  Returns the number of locations deleted.
+     */
+    private int dropSeededLocation(String locationSetting) {
+        if (null == locationSetting) {
+            throw new IllegalArgumentException("A location setting is required");
+        }
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final ChangeNotificationBatch changes = startChanges(db);
+        String locationSelection = WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING
+                + " = ? AND " + WeatherContract.LocationEntry.COLUMN_SEEDED + " != 0";
+        String[] locationArgs = {locationSetting};
+        int dropped;
+        db.beginTransaction();
+        try {
+            // A seeded location is never an alias, so its weather is under its own row
+            String weatherSelection = WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " IN (SELECT "
+                    + WeatherContract.LocationEntry._ID + " FROM "
+                    + WeatherContract.LocationEntry.TABLE_NAME + " WHERE " + locationSelection + ")";
+            // Recording the location records all of its weather too
+            changes.addLocationSelection(locationSelection, locationArgs);
+            db.delete(WeatherContract.WeatherEntry.TABLE_NAME, weatherSelection, locationArgs);
+            dropped = db.delete(WeatherContract.LocationEntry.TABLE_NAME, locationSelection,
+                    locationArgs);
+            if (dropped > 0) {
+                mLocationIds.invalidate();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        finishChanges(changes);
+        return dropped;
+    }
+
+    /*
+        Moves the forecast staged for a location setting into the weather table, under the
+        location it resolves to, and empties the staging table.  Returns -1, and only drops
+        expired rows, if nothing fresh is staged for the setting.
+     */
+    private long promoteStaged(String locationSetting) {
+        if (null == locationSetting) {
+            throw new IllegalArgumentException("A location setting is required");
+        }
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String freshAfter = Long.toString(
+                System.currentTimeMillis() - WeatherContract.StagingEntry.MAX_AGE);
+        Bundle extras = null;
+        Cursor cursor = db.query(WeatherContract.StagingEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LONG},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND "
+                        + WeatherContract.StagingEntry.COLUMN_STAGED_AT + " >= ?",
+                new String[]{locationSetting, freshAfter}, null, null, null, "1");
+        try {
+            if (cursor.moveToFirst()) {
+                extras = new Bundle();
+                extras.putString(WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                        cursor.getString(0));
+                extras.putDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                        cursor.getDouble(1));
+                extras.putDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+                        cursor.getDouble(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (null == extras) {
+            db.delete(WeatherContract.StagingEntry.TABLE_NAME,
+                    WeatherContract.StagingEntry.COLUMN_STAGED_AT + " < ?",
+                    new String[]{freshAfter});
+            return -1;
+        }
+
+        // The same lookup a sync does, so a setting for a stored city becomes its alias
+        long locationId = getOrInsertLocation(locationSetting, extras);
+
+        final ChangeNotificationBatch changes = startChanges(db);
+        db.beginTransaction();
+        try {
+            String columns = TextUtils.join(", ", SEEDED_WEATHER_COLUMNS);
+            db.execSQL("INSERT INTO " + WeatherContract.WeatherEntry.TABLE_NAME + " ("
+                    + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", " + columns + ")"
+                    + " SELECT ?, " + columns
+                    + " FROM " + WeatherContract.StagingEntry.TABLE_NAME
+                    + " WHERE " + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                    new Object[]{locationId, locationSetting});
+            // Whatever else was staged was for text the user didn't keep
+            db.delete(WeatherContract.StagingEntry.TABLE_NAME, null, null);
+            changes.addLocationSelection(WeatherContract.LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(locationId)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        finishChanges(changes);
+        return locationId;
+    }
+
+    /**
+     * Applies all of the operations in a single transaction, so a sync's location, weather and
+     * cleanup writes either all land or none do.  Observers hear about it once, after the commit,
+     * with each affected location or day notified a single time.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final ChangeNotificationBatch changes = new ChangeNotificationBatch(db);
+        ContentProviderResult[] results;
+        mAppliedBatchChanges.set(changes);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mAppliedBatchChanges.remove();
+        }
+        invalidateCaches(changes);
+        changes.dispatch(getContext().getContentResolver());
+        return results;
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
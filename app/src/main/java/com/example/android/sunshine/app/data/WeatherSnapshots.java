@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Small, read-only snapshots of a location's upcoming weather, for the widgets, Muzei and the
+ * notification.  On Honeycomb and up they come from {@link WeatherProvider#call}, which answers
+ * from an in-memory cache without opening a cursor; on older devices they're built from a query.
+ *
+ * A today snapshot holds one day's values under the WeatherEntry column names
+ * (COLUMN_DATE, COLUMN_WEATHER_ID, COLUMN_SHORT_DESC, COLUMN_MAX_TEMP and COLUMN_MIN_TEMP).
+ * A summary holds the same keys, each mapped to an array with one element per day.
+ */
+public class WeatherSnapshots {
+    // The sync fetches two weeks of forecast
+    public static final int DEFAULT_SUMMARY_DAYS = 14;
+
+    static final String[] SNAPSHOT_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP
+    };
+    // these indices must match the projection
+    private static final int INDEX_DATE = 0;
+    private static final int INDEX_WEATHER_ID = 1;
+    private static final int INDEX_SHORT_DESC = 2;
+    private static final int INDEX_MAX_TEMP = 3;
+    private static final int INDEX_MIN_TEMP = 4;
+
+    /**
+     * @return the first day of weather from today on, or null if there isn't any
+     */
+    public static Bundle getToday(Context context, String locationSetting) {
+        Bundle today;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            today = call(context, WeatherEntry.METHOD_GET_TODAY, locationSetting, null);
+        } else {
+            today = buildToday(query(context, locationSetting));
+        }
+        return null == today || today.isEmpty() ? null : today;
+    }
+
+    /**
+     * @return up to days days of weather from today on; the arrays are empty if there isn't any
+     */
+    public static Bundle getSummary(Context context, String locationSetting, int days) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            Bundle extras = new Bundle();
+            extras.putInt(WeatherEntry.EXTRA_DAYS, days);
+            return call(context, WeatherEntry.METHOD_GET_SUMMARY, locationSetting, extras);
+        }
+        return buildSummary(query(context, locationSetting), days);
+    }
+
+    /**
+     * @return the number of days in a summary
+     */
+    public static int getDayCount(Bundle summary) {
+        long[] dates = summary.getLongArray(WeatherEntry.COLUMN_DATE);
+        return null == dates ? 0 : dates.length;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Bundle call(Context context, String method, String locationSetting,
+                               Bundle extras) {
+        return context.getContentResolver().call(WeatherEntry.CONTENT_URI, method,
+                locationSetting, extras);
+    }
+
+    private static Cursor query(Context context, String locationSetting) {
+        // The provider doesn't take a limit, so the builders only read the rows they need
+        return context.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithStartDate(locationSetting,
+                        System.currentTimeMillis()),
+                SNAPSHOT_COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+    }
+
+    /*
+        Builds a today snapshot from the first row of a cursor over SNAPSHOT_COLUMNS, and closes
+        the cursor.  Returns an empty bundle if there is no row.
+     */
+    static Bundle buildToday(Cursor cursor) {
+        Bundle today = new Bundle();
+        if (null == cursor) return today;
+        try {
+            if (cursor.moveToFirst()) {
+                today.putLong(WeatherEntry.COLUMN_DATE, cursor.getLong(INDEX_DATE));
+                today.putInt(WeatherEntry.COLUMN_WEATHER_ID, cursor.getInt(INDEX_WEATHER_ID));
+                today.putString(WeatherEntry.COLUMN_SHORT_DESC, cursor.getString(INDEX_SHORT_DESC));
+                today.putDouble(WeatherEntry.COLUMN_MAX_TEMP, cursor.getDouble(INDEX_MAX_TEMP));
+                today.putDouble(WeatherEntry.COLUMN_MIN_TEMP, cursor.getDouble(INDEX_MIN_TEMP));
+            }
+        } finally {
+            cursor.close();
+        }
+        return today;
+    }
+
+    /*
+        Builds a summary from the first days rows of a cursor over SNAPSHOT_COLUMNS, and closes
+        the cursor.
+     */
+    static Bundle buildSummary(Cursor cursor, int days) {
+        int count = null == cursor ? 0 : Math.min(cursor.getCount(), days);
+        long[] dates = new long[count];
+        int[] weatherIds = new int[count];
+        String[] descriptions = new String[count];
+        double[] highs = new double[count];
+        double[] lows = new double[count];
+        if (null != cursor) {
+            try {
+                for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+                    dates[i] = cursor.getLong(INDEX_DATE);
+                    weatherIds[i] = cursor.getInt(INDEX_WEATHER_ID);
+                    descriptions[i] = cursor.getString(INDEX_SHORT_DESC);
+                    highs[i] = cursor.getDouble(INDEX_MAX_TEMP);
+                    lows[i] = cursor.getDouble(INDEX_MIN_TEMP);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        Bundle summary = new Bundle();
+        summary.putLongArray(WeatherEntry.COLUMN_DATE, dates);
+        summary.putIntArray(WeatherEntry.COLUMN_WEATHER_ID, weatherIds);
+        summary.putStringArray(WeatherEntry.COLUMN_SHORT_DESC, descriptions);
+        summary.putDoubleArray(WeatherEntry.COLUMN_MAX_TEMP, highs);
+        summary.putDoubleArray(WeatherEntry.COLUMN_MIN_TEMP, lows);
+        return summary;
+    }
+}
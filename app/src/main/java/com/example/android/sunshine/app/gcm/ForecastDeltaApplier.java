@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.gcm;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Applies forecast deltas pushed over GCM, so a forecast the server has revised reaches the
+ * device without it fetching anything.
+ *
+ * A message holds a delta for each of the user's locations the server has news for:
+ * <pre>
+ * {"deltas": [{"loc": "94043", "base": 41, "ver": 42,
+ *              "days": [[16801, 800, 21.5, 12.0, 60, 1013.2, 3.1, 270, "Clear"], ...]}]}
+ * </pre>
+ * A day is its UTC day number since the epoch, then the weather id, high, low, humidity,
+ * pressure, wind speed, wind direction and short description, in the weather table's units.
+ * Only the days that changed need to be sent.
+ *
+ * A delta applies only on top of the version it was made from.  When the stored version is a
+ * different one, the stored version is left alone and the location needs a normal sync instead;
+ * the sync records the delta's version with {@link #buildVersionUpdate} in the batch that writes
+ * what it fetched, so the version never moves ahead of the stored forecast.  Days whose values
+ * are already stored are skipped, and the rest are written with the version in one batch, so
+ * they commit together and observers requery once.
+ */
+public class ForecastDeltaApplier {
+    private static final String LOG_TAG = ForecastDeltaApplier.class.getSimpleName();
+
+    private static final String DELTA_LIST = "deltas";
+    private static final String DELTA_LOCATION = "loc";
+    private static final String DELTA_BASE = "base";
+    private static final String DELTA_VERSION = "ver";
+    private static final String DELTA_DAYS = "days";
+
+    // Positions in a day's array
+    private static final int DAY_NUMBER = 0;
+    private static final int DAY_WEATHER_ID = 1;
+    private static final int DAY_MAX_TEMP = 2;
+    private static final int DAY_MIN_TEMP = 3;
+    private static final int DAY_HUMIDITY = 4;
+    private static final int DAY_PRESSURE = 5;
+    private static final int DAY_WIND_SPEED = 6;
+    private static final int DAY_DEGREES = 7;
+    private static final int DAY_SHORT_DESC = 8;
+
+    private static final String[] STORED_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_SHORT_DESC
+    };
+
+    // These indices are tied to STORED_COLUMNS.  If STORED_COLUMNS changes, these must change.
+    private static final int COL_DATE = 0;
+    private static final int COL_WEATHER_ID = 1;
+    private static final int COL_MAX_TEMP = 2;
+    private static final int COL_MIN_TEMP = 3;
+    private static final int COL_HUMIDITY = 4;
+    private static final int COL_PRESSURE = 5;
+    private static final int COL_WIND_SPEED = 6;
+    private static final int COL_DEGREES = 7;
+    private static final int COL_SHORT_DESC = 8;
+
+    /**
+     * What applying a message did.
+     */
+    public static class Result {
+        // Days written, and days skipped because they were already stored
+        public int written;
+        public int unchanged;
+        // Settings whose delta didn't fit the stored version, and which need a sync, with the
+        // version the server is at for each
+        public final HashMap<String, Long> stale = new HashMap<String, Long>();
+    }
+
+    /**
+     * Applies each location's delta in a message.  Locations that aren't stored on this device
+     * are ignored.
+     *
+     * @throws JSONException if the message isn't a delta message
+     */
+    public static Result apply(Context context, String message) throws JSONException {
+        Result result = new Result();
+        JSONArray deltas = new JSONObject(message).getJSONArray(DELTA_LIST);
+        for (int i = 0; i < deltas.length(); i++) {
+            applyDelta(context.getContentResolver(), deltas.getJSONObject(i), result);
+        }
+        Log.d(LOG_TAG, "Delta applied. " + result.written + " written, " + result.unchanged
+                + " unchanged, " + result.stale.size() + " stale");
+        return result;
+    }
+
+    /**
+     * Builds the update that records a location's forecast version once a sync has fetched the
+     * forecast, for the same batch as the forecast.  The version only ever moves forward, so a
+     * delta applied in the meantime isn't undone.
+     *
+     * @param locationId the row ID the location's weather is stored under
+     */
+    public static ContentProviderOperation buildVersionUpdate(long locationId, long version) {
+        return ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                .withValue(LocationEntry.COLUMN_FORECAST_VERSION, version)
+                .withSelection(LocationEntry._ID + " = ? AND ("
+                                + LocationEntry.COLUMN_FORECAST_VERSION + " IS NULL OR "
+                                + LocationEntry.COLUMN_FORECAST_VERSION + " < ?)",
+                        new String[]{Long.toString(locationId), Long.toString(version)})
+                .build();
+    }
+
+    private static void applyDelta(ContentResolver resolver, JSONObject delta, Result result)
+            throws JSONException {
+        String locationSetting = delta.getString(DELTA_LOCATION);
+        long base = delta.getLong(DELTA_BASE);
+        long version = delta.getLong(DELTA_VERSION);
+
+        // The weather, and so the version, live on the setting's canonical location
+        Cursor cursor = resolver.query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_FORECAST_VERSION},
+                LocationEntry._ID + " = (SELECT " + LocationEntry.COLUMN_CANONICAL_ID
+                        + " FROM " + LocationEntry.TABLE_NAME
+                        + " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = ?)",
+                new String[]{locationSetting}, null);
+        long locationId;
+        boolean baseMatches;
+        try {
+            if (!cursor.moveToFirst()) {
+                return;
+            }
+            locationId = cursor.getLong(0);
+            if (!cursor.isNull(1) && cursor.getLong(1) >= version) {
+                // A repeat, or a delta overtaken by a later one
+                return;
+            }
+            baseMatches = !cursor.isNull(1) && cursor.getLong(1) == base;
+        } finally {
+            cursor.close();
+        }
+
+        if (!baseMatches) {
+            // The days don't fit what's stored, and the version has to wait for the sync to
+            // bring in a forecast that's at least as new
+            Log.d(LOG_TAG, "Delta for " + locationSetting + " is from version " + base
+                    + "; syncing instead");
+            result.stale.put(locationSetting, version);
+            return;
+        }
+
+        // Only swap the version in if nothing else moved it since we looked
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                .withValue(LocationEntry.COLUMN_FORECAST_VERSION, version)
+                .withSelection(LocationEntry._ID + " = ? AND "
+                                + LocationEntry.COLUMN_FORECAST_VERSION + " = ?",
+                        new String[]{Long.toString(locationId), Long.toString(base)})
+                .withExpectedCount(1)
+                .build());
+
+        int written = 0;
+        int unchanged = 0;
+        JSONArray days = delta.getJSONArray(DELTA_DAYS);
+        HashMap<Long, ContentValues> stored = getStoredDays(resolver, locationId, days);
+        for (int i = 0; i < days.length(); i++) {
+            ContentValues values = getDayValues(locationId, days.getJSONArray(i));
+            if (isStored(values, stored.get(values.getAsLong(WeatherEntry.COLUMN_DATE)))) {
+                unchanged++;
+                continue;
+            }
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(values)
+                    .build());
+            written++;
+        }
+
+        try {
+            resolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            // Another delta or a sync got there first; the sync will sort it out
+            Log.w(LOG_TAG, "Delta for " + locationSetting + " not applied", e);
+            result.stale.put(locationSetting, version);
+            return;
+        }
+        result.written += written;
+        result.unchanged += unchanged;
+    }
+
+    /*
+        The stored days the delta covers, by normalized date.
+     */
+    private static HashMap<Long, ContentValues> getStoredDays(ContentResolver resolver,
+                                                              long locationId, JSONArray days)
+            throws JSONException {
+        HashMap<Long, ContentValues> stored = new HashMap<Long, ContentValues>();
+        if (days.length() == 0) {
+            return stored;
+        }
+        long firstDate = Long.MAX_VALUE;
+        long lastDate = Long.MIN_VALUE;
+        for (int i = 0; i < days.length(); i++) {
+            long date = getDate(days.getJSONArray(i));
+            firstDate = Math.min(firstDate, date);
+            lastDate = Math.max(lastDate, date);
+        }
+        Cursor cursor = resolver.query(WeatherEntry.CONTENT_URI, STORED_COLUMNS,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE
+                        + " BETWEEN ? AND ?",
+                new String[]{Long.toString(locationId), Long.toString(firstDate),
+                        Long.toString(lastDate)},
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                values.put(WeatherEntry.COLUMN_WEATHER_ID, cursor.getInt(COL_WEATHER_ID));
+                values.put(WeatherEntry.COLUMN_MAX_TEMP, cursor.getDouble(COL_MAX_TEMP));
+                values.put(WeatherEntry.COLUMN_MIN_TEMP, cursor.getDouble(COL_MIN_TEMP));
+                values.put(WeatherEntry.COLUMN_HUMIDITY, cursor.getDouble(COL_HUMIDITY));
+                values.put(WeatherEntry.COLUMN_PRESSURE, cursor.getDouble(COL_PRESSURE));
+                values.put(WeatherEntry.COLUMN_WIND_SPEED, cursor.getDouble(COL_WIND_SPEED));
+                values.put(WeatherEntry.COLUMN_DEGREES, cursor.getDouble(COL_DEGREES));
+                values.put(WeatherEntry.COLUMN_SHORT_DESC, cursor.getString(COL_SHORT_DESC));
+                stored.put(cursor.getLong(COL_DATE), values);
+            }
+        } finally {
+            cursor.close();
+        }
+        return stored;
+    }
+
+    private static ContentValues getDayValues(long locationId, JSONArray day)
+            throws JSONException {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+        values.put(WeatherEntry.COLUMN_DATE, getDate(day));
+        values.put(WeatherEntry.COLUMN_WEATHER_ID, day.getInt(DAY_WEATHER_ID));
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, day.getDouble(DAY_MAX_TEMP));
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, day.getDouble(DAY_MIN_TEMP));
+        values.put(WeatherEntry.COLUMN_HUMIDITY, day.getDouble(DAY_HUMIDITY));
+        values.put(WeatherEntry.COLUMN_PRESSURE, day.getDouble(DAY_PRESSURE));
+        values.put(WeatherEntry.COLUMN_WIND_SPEED, day.getDouble(DAY_WIND_SPEED));
+        values.put(WeatherEntry.COLUMN_DEGREES, day.getDouble(DAY_DEGREES));
+        values.put(WeatherEntry.COLUMN_SHORT_DESC, day.getString(DAY_SHORT_DESC));
+        return values;
+    }
+
+    /*
+        The day's date as the provider stores it.
+     */
+    private static long getDate(JSONArray day) throws JSONException {
+        return WeatherContract.normalizeDate(day.getLong(DAY_NUMBER) * DateUtils.DAY_IN_MILLIS);
+    }
+
+    private static boolean isStored(ContentValues values, ContentValues stored) {
+        if (null == stored) {
+            return false;
+        }
+        // keySet() needs Honeycomb
+        for (Map.Entry<String, Object> column : stored.valueSet()) {
+            if (!column.getValue().equals(values.get(column.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
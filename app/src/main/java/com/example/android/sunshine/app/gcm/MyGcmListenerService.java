@@ -29,6 +29,8 @@ import android.widget.Toast;
 
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 import com.google.android.gms.gcm.GcmListenerService;
 
 import org.json.JSONException;
@@ -41,6 +43,8 @@ public class MyGcmListenerService extends GcmListenerService {
     private static final String EXTRA_DATA = "data";
     private static final String EXTRA_WEATHER = "weather";
     private static final String EXTRA_LOCATION = "location";
+    // A forecast delta; see ForecastDeltaApplier
+    private static final String EXTRA_DELTA = "delta";
 
     public static final int NOTIFICATION_ID = 1;
 
@@ -61,7 +65,9 @@ public class MyGcmListenerService extends GcmListenerService {
                 Toast.makeText(this, "SenderID string needs to be set", Toast.LENGTH_LONG).show();
             }
             // Not a bad idea to check that the message is coming from your server.
-            if ((senderId).equals(from)) {
+            if ((senderId).equals(from) && data.containsKey(EXTRA_DELTA)) {
+                applyDelta(data.getString(EXTRA_DELTA));
+            } else if ((senderId).equals(from)) {
                 // Process message and then post a notification of the received message.
                 try {
                     JSONObject jsonObject = new JSONObject(data.getString(EXTRA_DATA));
@@ -79,6 +85,31 @@ public class MyGcmListenerService extends GcmListenerService {
         }
     }
 
+    /**
+     * Writes a pushed forecast delta, and falls back to a sync for any location it didn't fit.
+     * This runs on the service's own thread, so the database can be used here.
+     */
+    private void applyDelta(String delta) {
+        try {
+            ForecastDeltaApplier.Result result = ForecastDeltaApplier.apply(this, delta);
+            // Only the preferred location is synced; the sync records the version the server
+            // is at once it has stored the forecast
+            String locationSetting = Utility.getPreferredLocation(this);
+            Long version = result.stale.get(locationSetting);
+            if (null != version) {
+                SunshineSyncAdapter.syncImmediately(this, locationSetting, version);
+            }
+            if (result.written > 0) {
+                // Widgets and the like only refresh on this broadcast, not on the provider
+                sendBroadcast(new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)
+                        .setPackage(getPackageName()));
+            }
+        } catch (JSONException e) {
+            // Not a delta we understand; the next periodic sync brings the forecast anyway
+            Log.e(TAG, "Unreadable forecast delta", e);
+        }
+    }
+
     /**
      *  Put the message into a notification and post it.
      *  This is just one simple example of what you might choose to do with a GCM message.
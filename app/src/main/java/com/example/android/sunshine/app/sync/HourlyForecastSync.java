@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.example.android.sunshine.BuildConfig;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Downloads the 3-hour forecast for a location and stores it in the hourly table.
+ *
+ * The response is read with a streaming JsonReader straight off the connection, and rows are
+ * written in small batches as they're parsed, so neither the JSON text nor the whole forecast is
+ * ever held in memory.  OWM sends the city after the list, which is why the caller passes in
+ * the location's row ID from the daily sync.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+class HourlyForecastSync {
+    private static final String LOG_TAG = HourlyForecastSync.class.getSimpleName();
+
+    // Rows held before they're written; a full forecast is 40 timesteps
+    private static final int BATCH_SIZE = 16;
+
+    /**
+     * Fetches and stores the forecast.  Failures are logged and leave the stored hours as they
+     * were; they don't change the location status the daily sync set.
+     */
+    static void sync(Context context, String locationQuery, long locationId) {
+        final String FORECAST_BASE_URL =
+                "http://api.openweathermap.org/data/2.5/forecast?";
+        final String QUERY_PARAM = "q";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String APPID_PARAM = "APPID";
+
+        Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationQuery)
+                .appendQueryParameter(FORMAT_PARAM, "json")
+                .appendQueryParameter(UNITS_PARAM, "metric")
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        HttpURLConnection urlConnection = null;
+        JsonReader reader = null;
+        try {
+            URL url = new URL(builtUri.toString());
+            urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection.setRequestMethod("GET");
+            urlConnection.connect();
+            if (urlConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                Log.w(LOG_TAG, "Hourly forecast request failed: " + urlConnection.getResponseCode());
+                return;
+            }
+
+            reader = new JsonReader(new InputStreamReader(urlConnection.getInputStream(), "UTF-8"));
+            int stored = readForecast(reader, locationId, context.getContentResolver());
+            Log.d(LOG_TAG, "Hourly Sync Complete. " + stored + " Inserted");
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            // JsonReader reports unexpected structure with IllegalStateException
+            Log.e(LOG_TAG, "Error reading the hourly forecast", e);
+        } finally {
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+        }
+    }
+
+    /*
+        Reads the top-level response object, writing the "list" array's timesteps as it goes,
+        and returns how many were stored.
+     */
+    private static int readForecast(JsonReader reader, long locationId, ContentResolver resolver)
+            throws IOException {
+        final String OWM_LIST = "list";
+
+        ContentValues[] batch = new ContentValues[BATCH_SIZE];
+        int batched = 0;
+        int stored = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!OWM_LIST.equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                batch[batched++] = readTimestep(reader, locationId);
+                if (batched == BATCH_SIZE) {
+                    stored += resolver.bulkInsert(HourlyEntry.CONTENT_URI, batch);
+                    batched = 0;
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+
+        if (batched > 0) {
+            ContentValues[] rest = new ContentValues[batched];
+            System.arraycopy(batch, 0, rest, 0, batched);
+            stored += resolver.bulkInsert(HourlyEntry.CONTENT_URI, rest);
+        }
+        return stored;
+    }
+
+    /*
+        Reads one timestep object, keeping only the values the hourly table holds.
+     */
+    private static ContentValues readTimestep(JsonReader reader, long locationId)
+            throws IOException {
+        final String OWM_TIME = "dt";
+        final String OWM_MAIN = "main";
+        final String OWM_TEMPERATURE = "temp";
+        final String OWM_PRESSURE = "pressure";
+        final String OWM_HUMIDITY = "humidity";
+        final String OWM_WEATHER = "weather";
+        final String OWM_WEATHER_ID = "id";
+        final String OWM_WIND = "wind";
+        final String OWM_WINDSPEED = "speed";
+        final String OWM_WIND_DIRECTION = "deg";
+
+        ContentValues values = new ContentValues();
+        values.put(HourlyEntry.COLUMN_LOC_KEY, locationId);
+        // OWM leaves out the direction, or the whole wind object, when there's no wind
+        values.put(HourlyEntry.COLUMN_WIND_SPEED, 0.0);
+        values.put(HourlyEntry.COLUMN_DEGREES, 0.0);
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_TIME.equals(name)) {
+                // Seconds since the epoch
+                values.put(HourlyEntry.COLUMN_HOUR, reader.nextLong() / 3600);
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if (OWM_TEMPERATURE.equals(field)) {
+                        values.put(HourlyEntry.COLUMN_TEMP, reader.nextDouble());
+                    } else if (OWM_PRESSURE.equals(field)) {
+                        values.put(HourlyEntry.COLUMN_PRESSURE, reader.nextDouble());
+                    } else if (OWM_HUMIDITY.equals(field)) {
+                        values.put(HourlyEntry.COLUMN_HUMIDITY, reader.nextDouble());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // A one-element array, like in the daily forecast
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (OWM_WEATHER_ID.equals(reader.nextName())
+                                && !values.containsKey(HourlyEntry.COLUMN_WEATHER_ID)) {
+                            values.put(HourlyEntry.COLUMN_WEATHER_ID, reader.nextInt());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else if (OWM_WIND.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if (OWM_WINDSPEED.equals(field)) {
+                        values.put(HourlyEntry.COLUMN_WIND_SPEED, reader.nextDouble());
+                    } else if (OWM_WIND_DIRECTION.equals(field)) {
+                        values.put(HourlyEntry.COLUMN_DEGREES, reader.nextDouble());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return values;
+    }
+}
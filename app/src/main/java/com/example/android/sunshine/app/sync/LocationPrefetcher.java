@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.StagingEntry;
+import com.example.android.sunshine.app.data.WeatherSnapshots;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Fetches the forecast for a location setting while it's still being typed, so it can be shown
+ * as soon as the setting is saved instead of after a sync.
+ *
+ * The text has to stay the same for a moment before anything happens, and a setting that
+ * already has today's weather in the database, or was fetched a moment ago, isn't fetched
+ * again.  Nothing is fetched while the sync's circuit is open or a sync is fetching the same
+ * setting, and the request is the sync's own.  The forecast is staged rather than stored: it
+ * only becomes weather when the setting is saved and {@link #promote} is called, so text the
+ * user moves on from leaves no location behind.  Promoting goes through
+ * ContentResolver.call(), so this needs Honeycomb.
+ */
+public class LocationPrefetcher {
+    private static final String LOG_TAG = LocationPrefetcher.class.getSimpleName();
+
+    // How long the text has to stay unchanged before it's fetched
+    private static final long DEBOUNCE_MILLIS = 800;
+    // Don't fetch a setting again for this long after it was staged
+    private static final long REFETCH_MILLIS = 2 * 60 * 1000;
+
+    private static String sLastStaged;
+    private static long sLastStagedAt;
+
+    private final Context mContext;
+    private final int mMinLength;
+    private final Handler mHandler = new Handler();
+    private String mPendingSetting;
+
+    private final Runnable mPrefetch = new Runnable() {
+        @Override
+        public void run() {
+            final String locationSetting = mPendingSetting;
+            new AsyncTask<Void, Void, Void>() {
+                @Override
+                protected Void doInBackground(Void... params) {
+                    prefetch(mContext, locationSetting);
+                    return null;
+                }
+            }.execute();
+        }
+    };
+
+    /**
+     * @param minLength the shortest text worth fetching, as for the preference itself
+     */
+    public LocationPrefetcher(Context context, int minLength) {
+        mContext = context.getApplicationContext();
+        mMinLength = minLength;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Call whenever the text changes; the fetch waits until it stops changing.
+     */
+    public void onTextChanged(CharSequence text) {
+        mHandler.removeCallbacks(mPrefetch);
+        String locationSetting = text.toString().trim();
+        if (!isSupported() || locationSetting.length() < mMinLength) {
+            return;
+        }
+        mPendingSetting = locationSetting;
+        mHandler.postDelayed(mPrefetch, DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Call when the text is no longer being edited.  A fetch that's already running finishes.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mPrefetch);
+    }
+
+    /**
+     * Moves the forecast staged for the setting into the weather table, if a fresh one was.
+     *
+     * @return true if the setting now has the prefetched forecast
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static boolean promote(Context context, String locationSetting) {
+        if (!isSupported()) {
+            return false;
+        }
+        Bundle result = context.getContentResolver().call(StagingEntry.CONTENT_URI,
+                StagingEntry.METHOD_PROMOTE, locationSetting, null);
+        if (null == result) {
+            return false;
+        }
+        Log.d(LOG_TAG, "Promoted the prefetched forecast for " + locationSetting);
+        return true;
+    }
+
+    private static void prefetch(Context context, String locationSetting) {
+        // Nothing to gain for the current setting, or one whose weather is already here.  A
+        // seeded location's weather is only borrowed, so that's worth fetching.
+        if (locationSetting.equals(Utility.getPreferredLocation(context))
+                || (null != WeatherSnapshots.getToday(context, locationSetting)
+                        && !NearbyForecast.isSeeded(context, locationSetting))) {
+            return;
+        }
+        // Leave a failing server alone, and don't race a sync that's fetching the same thing
+        if (!SyncFailurePolicy.isClosed(context) || SyncCoordinator.isCovered(locationSetting)) {
+            return;
+        }
+        synchronized (LocationPrefetcher.class) {
+            if (locationSetting.equals(sLastStaged)
+                    && SystemClock.elapsedRealtime() - sLastStagedAt < REFETCH_MILLIS) {
+                return;
+            }
+        }
+
+        String forecastJsonStr = fetch(locationSetting);
+        if (null == forecastJsonStr) {
+            return;
+        }
+        try {
+            ContentValues[] staged = parse(forecastJsonStr, locationSetting);
+            if (null == staged) {
+                return;
+            }
+            context.getContentResolver().bulkInsert(StagingEntry.CONTENT_URI, staged);
+            synchronized (LocationPrefetcher.class) {
+                sLastStaged = locationSetting;
+                sLastStagedAt = SystemClock.elapsedRealtime();
+            }
+            Log.d(LOG_TAG, "Staged " + staged.length + " days for " + locationSetting);
+        } catch (JSONException e) {
+            // The sync after the setting is saved gets a proper go at it
+            Log.w(LOG_TAG, "Couldn't read the forecast for " + locationSetting, e);
+        }
+    }
+
+    /*
+        Downloads the daily forecast with the sync's own request, or returns null if that fails.
+        A prefetch is only a head start, so its failures don't count against the server the way
+        the sync's do.
+     */
+    private static String fetch(String locationSetting) {
+        try {
+            String forecastJsonStr =
+                    SunshineSyncAdapter.fetchForecast(locationSetting, new SyncTrace());
+            return forecastJsonStr.length() == 0 ? null : forecastJsonStr;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't prefetch " + locationSetting, e);
+            return null;
+        }
+    }
+
+    /*
+        Turns the response into staging rows, or returns null if the server didn't know the
+        location.
+     */
+    private static ContentValues[] parse(String forecastJsonStr, String locationSetting)
+            throws JSONException {
+        final String OWM_CITY = "city";
+        final String OWM_CITY_NAME = "name";
+        final String OWM_COORD = "coord";
+        final String OWM_LATITUDE = "lat";
+        final String OWM_LONGITUDE = "lon";
+        final String OWM_LIST = "list";
+        final String OWM_MESSAGE_CODE = "cod";
+
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+        if (forecastJson.has(OWM_MESSAGE_CODE)
+                && forecastJson.getInt(OWM_MESSAGE_CODE) != HttpURLConnection.HTTP_OK) {
+            return null;
+        }
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        String cityName = cityJson.getString(OWM_CITY_NAME);
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
+        double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+        // Dates are worked out as in the sync: day 0 is today where the user is, in UTC
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        dayTime = new Time();
+
+        long stagedAt = System.currentTimeMillis();
+        ContentValues[] staged = new ContentValues[weatherArray.length()];
+        for (int i = 0; i < weatherArray.length(); i++) {
+            ContentValues values = SunshineSyncAdapter.getDayValues(
+                    weatherArray.getJSONObject(i), dayTime.setJulianDay(julianStartDay + i));
+            values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            values.put(LocationEntry.COLUMN_CITY_NAME, cityName);
+            values.put(LocationEntry.COLUMN_COORD_LAT, cityLatitude);
+            values.put(LocationEntry.COLUMN_COORD_LONG, cityLongitude);
+            values.put(StagingEntry.COLUMN_STAGED_AT, stagedAt);
+            staged[i] = values;
+        }
+        return staged;
+    }
+}
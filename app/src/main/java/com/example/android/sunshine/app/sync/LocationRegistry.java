@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.HashMap;
+
+/**
+ * Maps location settings to their row IDs in the weather database with the provider's atomic
+ * {@link LocationEntry#METHOD_GET_OR_INSERT}, which is safe to race.
+ *
+ * The IDs are cached here along with the city name and coordinates they were stored with, so
+ * a steady-state sync resolves its location without touching the database.  Each lookup first
+ * asks the provider for its location generation, which it keeps in memory; when that has moved
+ * on, a location may have been deleted or made an alias, and the whole cache is dropped.  A
+ * changed city name or position misses the cache, so the provider gets to store it.  Before
+ * Honeycomb there's no call() to ask with, so nothing is cached.
+ */
+public class LocationRegistry {
+
+    private static class CachedLocation {
+        final long id;
+        final String cityName;
+        final double lat;
+        final double lon;
+
+        CachedLocation(long id, String cityName, double lat, double lon) {
+            this.id = id;
+            this.cityName = cityName;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        boolean matches(String cityName, double lat, double lon) {
+            return this.cityName.equals(cityName) && this.lat == lat && this.lon == lon;
+        }
+    }
+
+    private static final HashMap<String, CachedLocation> sLocations =
+            new HashMap<String, CachedLocation>();
+    // The provider's location generation the cached IDs are valid for
+    private static int sGeneration = -1;
+
+    /**
+     * @param locationSetting The location string used to request updates from the server.
+     * @param cityName A human-readable city name, e.g "Mountain View"
+     * @param lat the latitude of the city
+     * @param lon the longitude of the city
+     * @return the row ID the location's weather is stored under, which for a setting the server
+     * resolved to an already stored city is that city's row.  The location is added to the
+     * database if it's new.
+     */
+    public static long getLocationId(Context context, String locationSetting, String cityName,
+                                     double lat, double lon) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return getOrInsertWithCall(context, locationSetting, cityName, lat, lon);
+        }
+        return getOrInsertWithQuery(context, locationSetting, cityName, lat, lon);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static long getOrInsertWithCall(Context context, String locationSetting,
+                                            String cityName, double lat, double lon) {
+        ContentResolver resolver = context.getContentResolver();
+        Bundle generation = resolver.call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_GET_GENERATION, null, null);
+        synchronized (LocationRegistry.class) {
+            setGeneration(generation.getInt(LocationEntry.EXTRA_GENERATION));
+            CachedLocation cached = sLocations.get(locationSetting);
+            if (null != cached && cached.matches(cityName, lat, lon)) {
+                return cached.id;
+            }
+        }
+
+        Bundle extras = new Bundle();
+        extras.putString(LocationEntry.COLUMN_CITY_NAME, cityName);
+        extras.putDouble(LocationEntry.COLUMN_COORD_LAT, lat);
+        extras.putDouble(LocationEntry.COLUMN_COORD_LONG, lon);
+        Bundle result = resolver.call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_GET_OR_INSERT, locationSetting, extras);
+        long locationId = result.getLong(LocationEntry._ID);
+        synchronized (LocationRegistry.class) {
+            // The result's generation is the one the ID is valid for, which our own insert may
+            // have moved on.  An older one means another lookup has already seen a later write.
+            int resultGeneration = result.getInt(LocationEntry.EXTRA_GENERATION);
+            if (resultGeneration >= sGeneration) {
+                setGeneration(resultGeneration);
+                sLocations.put(locationSetting,
+                        new CachedLocation(locationId, cityName, lat, lon));
+            }
+        }
+        return locationId;
+    }
+
+    private static void setGeneration(int generation) {
+        if (generation != sGeneration) {
+            sLocations.clear();
+            sGeneration = generation;
+        }
+    }
+
+    /*
+        ContentResolver.call() needs Honeycomb.  Before that, look the location up and insert it
+        if it's missing; if another sync got there first, the insert fails on the unique location
+        setting and the second lookup finds its row.  Settings added this way are never made
+        aliases of one another.
+     */
+    private static long getOrInsertWithQuery(Context context, String locationSetting,
+                                             String cityName, double lat, double lon) {
+        ContentResolver resolver = context.getContentResolver();
+        long locationId = queryLocationId(resolver, locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(LocationEntry.COLUMN_COORD_LONG, lon);
+        try {
+            Uri insertedUri = resolver.insert(LocationEntry.CONTENT_URI, locationValues);
+            return ContentUris.parseId(insertedUri);
+        } catch (SQLException e) {
+            locationId = queryLocationId(resolver, locationSetting);
+            if (locationId == -1) {
+                throw e;
+            }
+            return locationId;
+        }
+    }
+
+    private static long queryLocationId(ContentResolver resolver, String locationSetting) {
+        Cursor locationCursor = resolver.query(
+                LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_CANONICAL_ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        try {
+            return locationCursor.moveToFirst() ? locationCursor.getLong(0) : -1;
+        } finally {
+            locationCursor.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.location.Address;
+import android.location.Geocoder;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Shows a new location the forecast of the nearest location already in the database while its
+ * own sync runs, so picking a neighboring town doesn't start from an empty list.  The setting is
+ * placed with the platform Geocoder, which needs Honeycomb's ContentResolver.call() here as well
+ * as a geocoding backend on the device; without either this does nothing and the sync fills the
+ * list in as before.
+ *
+ * A seeded location is marked as such until its first successful sync.  It doesn't count as
+ * weather we already have for the setting, and a failed sync removes it along with the weather
+ * it borrowed, so a setting the server doesn't know never looks valid.
+ */
+public class NearbyForecast {
+    private static final String LOG_TAG = NearbyForecast.class.getSimpleName();
+
+    // Far enough to cover the next town over, close enough that its weather is a fair guess
+    private static final double RADIUS_KM = 25;
+
+    /**
+     * Seeds the location in the background, unless it's already in the database, and then
+     * syncs it.  Seeding first means a failed sync can't be followed by a seed it won't remove.
+     */
+    public static void seedAndSync(Context context, final String locationSetting) {
+        final Context appContext = context.getApplicationContext();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || !Geocoder.isPresent()) {
+            SunshineSyncAdapter.syncImmediately(appContext);
+            return;
+        }
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                try {
+                    seedFromGeocoder(appContext, locationSetting);
+                } finally {
+                    SunshineSyncAdapter.syncImmediately(appContext);
+                }
+                return null;
+            }
+        }.execute();
+    }
+
+    /**
+     * @return true if the location only has the weather it was seeded with
+     */
+    public static boolean isSeeded(Context context, String locationSetting) {
+        Cursor cursor = context.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_SEEDED},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        if (null == cursor) return false;
+        try {
+            return cursor.moveToFirst() && cursor.getInt(0) != 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Removes the location and its borrowed weather if it's still seeded, for when the server
+     * couldn't confirm it.  Seeding needs Honeycomb, so before that there's never anything to
+     * remove.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static void dropSeeded(Context context, String locationSetting) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        Bundle result = context.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_DROP_SEEDED, locationSetting, null);
+        if (null != result && result.getInt(WeatherEntry.EXTRA_COUNT) > 0) {
+            Log.d(LOG_TAG, "Dropped the seeded forecast for " + locationSetting);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void seedFromGeocoder(Context context, String locationSetting) {
+        List<Address> addresses;
+        try {
+            addresses = new Geocoder(context).getFromLocationName(locationSetting, 1);
+        } catch (IOException e) {
+            // The geocoder is a network service too
+            Log.w(LOG_TAG, "Couldn't place " + locationSetting, e);
+            return;
+        }
+        if (null == addresses || addresses.isEmpty()
+                || !addresses.get(0).hasLatitude() || !addresses.get(0).hasLongitude()) {
+            return;
+        }
+
+        // The geocoder is slow; a sync may have settled the location in the meantime
+        if (Utility.getLocationStatus(context) != SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN) {
+            return;
+        }
+
+        Bundle extras = new Bundle();
+        extras.putDouble(LocationEntry.COLUMN_COORD_LAT, addresses.get(0).getLatitude());
+        extras.putDouble(LocationEntry.COLUMN_COORD_LONG, addresses.get(0).getLongitude());
+        extras.putDouble(LocationEntry.EXTRA_RADIUS_KM, RADIUS_KM);
+        Bundle result = context.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_SEED_FROM_NEAREST, locationSetting, extras);
+        if (null != result) {
+            Log.d(LOG_TAG, "Seeded " + locationSetting + " from a location nearby");
+        }
+    }
+}
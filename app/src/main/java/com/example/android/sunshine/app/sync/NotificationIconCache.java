@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.SuppressLint;
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.app.Utility;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Keeps the notification's large icon for each kind of weather, already scaled to size, in a
+ * small directory in the cache, so showing the notification reads one file instead of waiting
+ * on the art server in the middle of a sync.
+ *
+ * The icons are built by this service at background priority, off the sync thread: when the art
+ * pack changes, and whenever a notification finds its icon missing.  Until then the notification
+ * uses the bundled art; an icon the art server couldn't provide is left missing, not filled in
+ * with the bundled art, so it's fetched again next time.  Each art pack and icon size gets its
+ * own directory, and building one removes the others.
+ */
+public class NotificationIconCache extends IntentService {
+    private static final String LOG_TAG = NotificationIconCache.class.getSimpleName();
+
+    private static final String CACHE_DIR = "notification_icons";
+
+    // One weather id for each picture in an art pack
+    private static final int[] ART_WEATHER_IDS = {
+            200,    // storm
+            300,    // light_rain
+            500,    // rain
+            600,    // snow
+            701,    // fog
+            800,    // clear
+            801,    // light_clouds
+            802     // clouds
+    };
+
+    public NotificationIconCache() {
+        super("NotificationIconCache");
+    }
+
+    /**
+     * Builds whatever icons the current art pack is missing.
+     */
+    public static void build(Context context) {
+        context.startService(new Intent(context, NotificationIconCache.class));
+    }
+
+    /**
+     * Returns the large icon for the weather, from the cache if it's been built, or from the
+     * bundled art otherwise.  Never touches the network, so it's fine on the sync thread.
+     */
+    public static Bitmap getLargeIcon(Context context, int weatherId) {
+        File file = getIconFile(context, weatherId);
+        if (null != file && file.exists()) {
+            Bitmap largeIcon = BitmapFactory.decodeFile(file.getPath());
+            if (null != largeIcon) {
+                return largeIcon;
+            }
+        }
+        build(context);
+        int[] size = getLargeIconSize(context);
+        return getBundledIcon(context.getResources(),
+                Utility.getArtResourceForWeatherCondition(weatherId), size[0], size[1]);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        File dir = getPackDir(this);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(LOG_TAG, "Couldn't create " + dir);
+            return;
+        }
+        // Icons for other art packs or sizes won't be asked for again
+        File[] packDirs = dir.getParentFile().listFiles();
+        if (null != packDirs) {
+            for (File packDir : packDirs) {
+                if (!packDir.equals(dir)) {
+                    deleteDir(packDir);
+                }
+            }
+        }
+
+        int[] size = getLargeIconSize(this);
+        int built = 0;
+        for (int weatherId : ART_WEATHER_IDS) {
+            File file = getIconFile(this, weatherId);
+            if (file.exists()) {
+                continue;
+            }
+            Bitmap largeIcon = loadIcon(weatherId, size[0], size[1]);
+            if (null != largeIcon && writeIcon(largeIcon, file)) {
+                built++;
+            }
+        }
+        Log.d(LOG_TAG, "Built " + built + " notification icons in " + dir);
+    }
+
+    /*
+        Fetches the art pack's picture for the weather, or uses the bundled art for the local
+        pack.  Returns null if the picture couldn't be fetched, so nothing is written and the
+        next build tries again rather than keeping the bundled art for good.
+     */
+    private Bitmap loadIcon(int weatherId, int width, int height) {
+        if (Utility.usingLocalGraphics(this)) {
+            return getBundledIcon(getResources(),
+                    Utility.getArtResourceForWeatherCondition(weatherId), width, height);
+        }
+        String artUrl = Utility.getArtUrlForWeatherCondition(this, weatherId);
+        try {
+            return Glide.with(this)
+                    .load(artUrl)
+                    .asBitmap()
+                    .fitCenter()
+                    .into(width, height).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
+            return null;
+        }
+    }
+
+    /*
+        Writes the icon to a temporary file and renames it into place, so a notification never
+        reads half an icon.
+     */
+    private static boolean writeIcon(Bitmap largeIcon, File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            if (!largeIcon.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+                return false;
+            }
+            out.close();
+            out = null;
+            return tmp.renameTo(file);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error writing " + file, e);
+            return false;
+        } finally {
+            if (null != out) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    private static Bitmap getBundledIcon(Resources resources, int artResourceId,
+                                         int width, int height) {
+        if (artResourceId == -1) {
+            return null;
+        }
+        Bitmap art = BitmapFactory.decodeResource(resources, artResourceId);
+        if (null == art) {
+            return null;
+        }
+        // Fit it inside the large icon, as fitCenter does
+        float scale = Math.min((float) width / art.getWidth(), (float) height / art.getHeight());
+        int scaledWidth = Math.max(1, Math.round(art.getWidth() * scale));
+        int scaledHeight = Math.max(1, Math.round(art.getHeight() * scale));
+        if (scaledWidth == art.getWidth() && scaledHeight == art.getHeight()) {
+            return art;
+        }
+        return Bitmap.createScaledBitmap(art, scaledWidth, scaledHeight, true);
+    }
+
+    private static File getIconFile(Context context, int weatherId) {
+        int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
+        if (artResourceId == -1) {
+            return null;
+        }
+        // The bundled art's names match the art packs', e.g. art_light_rain
+        return new File(getPackDir(context),
+                context.getResources().getResourceEntryName(artResourceId) + ".png");
+    }
+
+    private static File getPackDir(Context context) {
+        String artPack = PreferenceManager.getDefaultSharedPreferences(context).getString(
+                context.getString(R.string.pref_art_pack_key),
+                context.getString(R.string.pref_art_pack_sunshine));
+        int[] size = getLargeIconSize(context);
+        return new File(new File(context.getCacheDir(), CACHE_DIR),
+                Integer.toHexString(artPack.hashCode()) + "_" + size[0] + "x" + size[1]);
+    }
+
+    /*
+        On Honeycomb and higher devices, we can retrieve the size of the large icon.  Prior to
+        that, we use a fixed size.
+     */
+    @SuppressLint("InlinedApi")
+    private static int[] getLargeIconSize(Context context) {
+        Resources resources = context.getResources();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return new int[]{
+                    resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width),
+                    resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
+            };
+        }
+        int size = resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+        return new int[]{size, size};
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
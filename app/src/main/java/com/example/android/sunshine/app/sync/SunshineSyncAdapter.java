@@ -2,26 +2,25 @@ package com.example.android.sunshine.app.sync;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.annotation.SuppressLint;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.v4.app.NotificationCompat;
@@ -29,12 +28,13 @@ import android.support.v4.app.TaskStackBuilder;
 import android.text.format.Time;
 import android.util.Log;
 
-import com.bumptech.glide.Glide;
 import com.example.android.sunshine.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.R;
 import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherSnapshots;
+import com.example.android.sunshine.app.gcm.ForecastDeltaApplier;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 
 import com.google.android.gms.common.ConnectionResult;
@@ -58,12 +58,11 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.Vector;
-import java.util.concurrent.ExecutionException;
+import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
-    public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
+    public static final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
     // Interval at which to sync with the weather, in seconds.
@@ -72,21 +71,12 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
+    // A forecast version to record once the sync has stored the forecast, and the location
+    // it's for
+    private static final String EXTRA_LOCATION = "location";
+    private static final String EXTRA_FORECAST_VERSION = "forecast_version";
 
 
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
-
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
     public @interface LocationStatus {}
@@ -112,16 +102,112 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
+        if (!SyncFailurePolicy.allowSync(getContext(), syncResult)) {
+            Log.d(LOG_TAG, "Skipping sync while the server is failing");
+            return;
+        }
         String locationQuery = Utility.getPreferredLocation(getContext());
+        SyncCoordinator.onSyncStarted(locationQuery);
+        SyncStatus.get(getContext()).onSyncStarted();
+        SyncTrace trace = new SyncTrace();
+        try {
+            long forecastVersion = locationQuery.equals(extras.getString(EXTRA_LOCATION))
+                    ? extras.getLong(EXTRA_FORECAST_VERSION, -1) : -1;
+            syncLocation(locationQuery, forecastVersion, syncResult, trace);
+            if (Utility.getLocationStatus(getContext()) != LOCATION_STATUS_OK) {
+                // The server hasn't confirmed the location, so stop showing a neighbor's
+                // weather for it
+                NearbyForecast.dropSeeded(getContext(), locationQuery);
+            }
+        } finally {
+            SyncStatus.get(getContext()).onSyncFinished(!syncResult.hasError()
+                    && Utility.getLocationStatus(getContext()) == LOCATION_STATUS_OK);
+            SyncCoordinator.onSyncFinished(locationQuery, !syncResult.hasError());
+            trace.save(getContext());
+        }
+    }
+
+    /*
+        Fetches and stores the forecast for a location, recording any failure in syncResult and
+        the time each phase took in trace.  A forecastVersion other than -1 is recorded for the
+        location along with the forecast.
+     */
+    private void syncLocation(String locationQuery, long forecastVersion, SyncResult syncResult,
+                              SyncTrace trace) {
+        try {
+            String forecastJsonStr = fetchForecast(locationQuery, trace);
+            if (forecastJsonStr.length() == 0) {
+                // Stream was empty.  No point in parsing.
+                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+                SyncFailurePolicy.onFailure(getContext(), syncResult,
+                        SyncFailurePolicy.FAILURE_SERVER);
+                return;
+            }
+            long locationId = getWeatherDataFromJson(forecastJsonStr, locationQuery,
+                    forecastVersion, syncResult, trace);
+
+            // The 3-hour forecast is a second, independent download.  It's streamed with
+            // JsonReader, which needs Honeycomb.
+            if (locationId != -1 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                trace.begin(SyncTrace.PHASE_HOURLY);
+                HourlyForecastSync.sync(getContext(), locationQuery, locationId);
+                trace.end();
+            }
+        } catch (ResponseCodeException e) {
+            if (e.responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                // The server is fine; it's the location that's wrong
+                SyncFailurePolicy.onSuccess(getContext());
+                setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
+                return;
+            }
+            Log.w(LOG_TAG, "Server answered " + e.responseCode);
+            int failure = SyncFailurePolicy.getFailure(e.responseCode);
+            setLocationStatus(getContext(), failure == SyncFailurePolicy.FAILURE_SERVER
+                    ? LOCATION_STATUS_SERVER_DOWN : LOCATION_STATUS_SERVER_INVALID);
+            SyncFailurePolicy.onFailure(getContext(), syncResult, failure);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            SyncFailurePolicy.onFailure(getContext(), syncResult,
+                    SyncFailurePolicy.FAILURE_NETWORK);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            e.printStackTrace();
+            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            SyncFailurePolicy.onFailure(getContext(), syncResult, SyncFailurePolicy.FAILURE_PARSE);
+        }
+    }
+
+    /**
+     * Thrown by {@link #fetchForecast} when the server answers with an error status, which
+     * getInputStream would otherwise turn into an IOException that looks like the network's
+     * fault.
+     */
+    static class ResponseCodeException extends IOException {
+        final int responseCode;
+
+        ResponseCodeException(int responseCode) {
+            super("HTTP " + responseCode);
+            this.responseCode = responseCode;
+        }
+    }
+
+    /**
+     * Downloads the daily forecast for a location, timing each phase in trace.  Used by the
+     * sync and by {@link LocationPrefetcher}, so both ask the server the same question.
+     *
+     * @return the response, which may be empty
+     * @throws ResponseCodeException if the server answered with an error status
+     */
+    static String fetchForecast(String locationQuery, SyncTrace trace) throws IOException {
 
         // These two need to be declared outside the try/catch
         // so that they can be closed in the finally block.
         HttpURLConnection urlConnection = null;
         BufferedReader reader = null;
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
-
         String format = "json";
         String units = "metric";
         int numDays = 14;
@@ -149,18 +235,29 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             URL url = new URL(builtUri.toString());
 
             // Create the request to OpenWeatherMap, and open the connection
+            trace.begin(SyncTrace.PHASE_CONNECT);
             urlConnection = (HttpURLConnection) url.openConnection();
             urlConnection.setRequestMethod("GET");
             urlConnection.connect();
+            trace.begin(SyncTrace.PHASE_FIRST_BYTE);
+            int responseCode = urlConnection.getResponseCode();
+            trace.end();
+            if (responseCode < HttpURLConnection.HTTP_OK
+                    || responseCode >= HttpURLConnection.HTTP_MULT_CHOICE) {
+                throw new ResponseCodeException(responseCode);
+            }
 
             // Read the input stream into a String
+            trace.begin(SyncTrace.PHASE_DOWNLOAD);
             InputStream inputStream = urlConnection.getInputStream();
             StringBuffer buffer = new StringBuffer();
             if (inputStream == null) {
                 // Nothing to do.
-                return;
+                return "";
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
+            SyncTrace.CountingInputStream countingStream =
+                    new SyncTrace.CountingInputStream(inputStream);
+            reader = new BufferedReader(new InputStreamReader(countingStream));
 
             String line;
             while ((line = reader.readLine()) != null) {
@@ -169,23 +266,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 // buffer for debugging.
                 buffer.append(line + "\n");
             }
-
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
-            }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            trace.end(countingStream.getCount());
+            return buffer.toString();
         } finally {
             if (urlConnection != null) {
                 urlConnection.disconnect();
@@ -198,7 +280,6 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 }
             }
         }
-        return;
     }
 
     /**
@@ -207,9 +288,17 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      *
      * Fortunately parsing is easy:  constructor takes the JSON string and converts it
      * into an Object hierarchy for us.
+     *
+     * Failures are recorded in syncResult, and the time each phase took in trace.  A
+     * forecastVersion other than -1 is written in the same batch as the forecast.
+     *
+     * @return the row ID of the location the weather was stored for, or -1 if none was stored
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
+    private long getWeatherDataFromJson(String forecastJsonStr,
+                                        String locationSetting,
+                                        long forecastVersion,
+                                        SyncResult syncResult,
+                                        SyncTrace trace)
             throws JSONException {
 
         // Now we have a String representing the complete forecast in JSON Format.
@@ -230,23 +319,10 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         // Weather information.  Each day's forecast info is an element of the "list" array.
         final String OWM_LIST = "list";
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
-
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
-
         final String OWM_MESSAGE_CODE = "cod";
 
         try {
+            trace.begin(SyncTrace.PHASE_PARSE);
             JSONObject forecastJson = new JSONObject(forecastJsonStr);
 
             // do we have an error?
@@ -257,11 +333,15 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                     case HttpURLConnection.HTTP_OK:
                         break;
                     case HttpURLConnection.HTTP_NOT_FOUND:
+                        // The server is fine; it's the location that's wrong
+                        SyncFailurePolicy.onSuccess(getContext());
                         setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
+                        return -1;
                     default:
                         setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+                        SyncFailurePolicy.onFailure(getContext(), syncResult,
+                                SyncFailurePolicy.FAILURE_SERVER);
+                        return -1;
                 }
             }
 
@@ -274,10 +354,17 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
             double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
 
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
+            trace.begin(SyncTrace.PHASE_LOCATION);
+            long locationId = LocationRegistry.getLocationId(getContext(), locationSetting,
+                    cityName, cityLatitude, cityLongitude);
+            trace.begin(SyncTrace.PHASE_PARSE);
 
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+            // The whole sync is written with one applyBatch, so it commits in one transaction
+            // and observers only requery once.
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>(weatherArray.length());
+            // Kept to compare with what's stored, for the scheduler
+            ContentValues[] forecast = new ContentValues[weatherArray.length()];
 
             // OWM returns daily forecasts based upon the local time of the city that is being
             // asked for, which means that we need to know the GMT offset to translate this data
@@ -297,88 +384,134 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             dayTime = new Time();
 
             for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
                 // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
+                long dateTime = dayTime.setJulianDay(julianStartDay+i);
 
+                ContentValues weatherValues =
+                        getDayValues(weatherArray.getJSONObject(i), dateTime);
                 weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
 
                 // Assuming day 0 is today's date.
                 if (i == 0) {
-                    updateWatchFace(weatherId, high, low);
+                    trace.begin(SyncTrace.PHASE_WATCH);
+                    updateWatchFace(
+                            weatherValues.getAsInteger(
+                                    WeatherContract.WeatherEntry.COLUMN_WEATHER_ID),
+                            weatherValues.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP),
+                            weatherValues.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP));
+                    trace.begin(SyncTrace.PHASE_PARSE);
                 }
-                cVVector.add(weatherValues);
+                operations.add(ContentProviderOperation
+                        .newInsert(WeatherContract.WeatherEntry.CONTENT_URI)
+                        .withValues(weatherValues)
+                        .build());
+                forecast[i] = weatherValues;
             }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
+            // A pushed delta that didn't fit asked for this sync; the forecast is now at least
+            // as new as its version
+            if (forecastVersion != -1) {
+                operations.add(
+                        ForecastDeltaApplier.buildVersionUpdate(locationId, forecastVersion));
+            }
 
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
+            // How much of the forecast moved since the last sync decides when the next one runs
+            trace.begin(SyncTrace.PHASE_SCHEDULER);
+            float changedFraction = SyncScheduler.getChangedFraction(
+                    WeatherSnapshots.getSummary(getContext(), locationSetting,
+                            WeatherSnapshots.DEFAULT_SUMMARY_DAYS),
+                    forecast);
 
+            // Old rows are pruned by WeatherRetentionService, so the sync only writes new ones
+            int inserted = weatherArray.length();
+
+            // add to database
+            trace.begin(SyncTrace.PHASE_INSERT);
+            getContext().getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    operations);
+
+            if ( inserted > 0 ) {
+                trace.begin(SyncTrace.PHASE_WIDGETS);
                 updateWidgets();
+                trace.begin(SyncTrace.PHASE_MUZEI);
                 updateMuzei();
+                trace.begin(SyncTrace.PHASE_NOTIFICATION);
                 notifyWeather();
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
+            trace.end();
+            Log.d(LOG_TAG, "Sync Complete. " + inserted + " Inserted");
             setLocationStatus(getContext(), LOCATION_STATUS_OK);
+            SyncFailurePolicy.onSuccess(getContext());
+            syncResult.stats.numInserts += inserted;
+            trace.begin(SyncTrace.PHASE_SCHEDULER);
+            SyncScheduler.onSyncComplete(getContext(), changedFraction);
+            trace.end();
+            return locationId;
 
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
             e.printStackTrace();
             setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            SyncFailurePolicy.onFailure(getContext(), syncResult, SyncFailurePolicy.FAILURE_PARSE);
+        } catch (RemoteException | OperationApplicationException e) {
+            // Nothing was written; the data we had before this sync is still there
+            Log.e(LOG_TAG, "Error writing weather data", e);
+            syncResult.databaseError = true;
         }
+        return -1;
+    }
+    /**
+     * Reads one day of the daily forecast into weather table values, without the location.
+     * The prefetch for a location that's still being typed stores days the same way.
+     */
+    static ContentValues getDayValues(JSONObject dayForecast, long dateTime)
+            throws JSONException {
+        final String OWM_PRESSURE = "pressure";
+        final String OWM_HUMIDITY = "humidity";
+        final String OWM_WINDSPEED = "speed";
+        final String OWM_WIND_DIRECTION = "deg";
+
+        // All temperatures are children of the "temp" object.
+        final String OWM_TEMPERATURE = "temp";
+        final String OWM_MAX = "max";
+        final String OWM_MIN = "min";
+
+        final String OWM_WEATHER = "weather";
+        final String OWM_DESCRIPTION = "main";
+        final String OWM_WEATHER_ID = "id";
+
+        double pressure = dayForecast.getDouble(OWM_PRESSURE);
+        int humidity = dayForecast.getInt(OWM_HUMIDITY);
+        double windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
+        double windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+
+        // Description is in a child array called "weather", which is 1 element long.
+        // That element also contains a weather code.
+        JSONObject weatherObject =
+                dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+        String description = weatherObject.getString(OWM_DESCRIPTION);
+        int weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+
+        // Temperatures are in a child object called "temp".  Try not to name variables
+        // "temp" when working with temperature.  It confuses everybody.
+        JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+        double high = temperatureObject.getDouble(OWM_MAX);
+        double low = temperatureObject.getDouble(OWM_MIN);
+
+        ContentValues weatherValues = new ContentValues();
+
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        return weatherValues;
     }
+
     private void updateWatchFace(int weatherId, double high, double low) {
 
         PutDataMapRequest putDataMapReq = PutDataMapRequest.create("/weather-info").setUrgent();
@@ -443,46 +576,21 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
                 String locationQuery = Utility.getPreferredLocation(context);
 
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+                // we'll ask our contentProvider for today's snapshot
+                Bundle today = WeatherSnapshots.getToday(context, locationQuery);
 
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
+                if (today != null) {
+                    int weatherId = today.getInt(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+                    double high = today.getDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+                    double low = today.getDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+                    String desc = today.getString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
 
                     int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
                     Resources resources = context.getResources();
-                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
-
-                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
-                    // Prior to that, we use a fixed size
-                    @SuppressLint("InlinedApi")
-                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-                    @SuppressLint("InlinedApi")
-                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-
-                    // Retrieve the large icon
-                    Bitmap largeIcon;
-                    try {
-                        largeIcon = Glide.with(context)
-                                .load(artUrl)
-                                .asBitmap()
-                                .error(artResourceId)
-                                .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
-                    }
+
+                    // Retrieve the large icon, prepared ahead of time so we don't wait on the
+                    // art server here
+                    Bitmap largeIcon = NotificationIconCache.getLargeIcon(context, weatherId);
                     String title = context.getString(R.string.app_name);
 
                     // Define the text of the forecast.
@@ -528,61 +636,10 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                     editor.putLong(lastNotificationKey, System.currentTimeMillis());
                     editor.commit();
                 }
-                cursor.close();
             }
         }
     }
 
-    /**
-     * Helper method to handle insertion of a new location in the weather database.
-     *
-     * @param locationSetting The location string used to request updates from the server.
-     * @param cityName A human-readable city name, e.g "Mountain View"
-     * @param lat the latitude of the city
-     * @param lon the longitude of the city
-     * @return the row ID of the added location.
-     */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
-        }
-
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
-    }
-
     /**
      * Helper method to schedule the sync adapter periodic execution
      */
@@ -607,7 +664,34 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        syncImmediately(context, new Bundle());
+    }
+
+    /**
+     * Has the sync adapter sync immediately, and record the server's forecast version for the
+     * location once the forecast it fetches is stored.
+     * @param locationSetting the location the version is for; if it's no longer the preferred
+     *                        one when the sync runs, the version isn't recorded
+     */
+    public static void syncImmediately(Context context, String locationSetting,
+                                       long forecastVersion) {
         Bundle bundle = new Bundle();
+        bundle.putString(EXTRA_LOCATION, locationSetting);
+        bundle.putLong(EXTRA_FORECAST_VERSION, forecastVersion);
+        // Only a sync started with this version records it, so no other sync covers this one
+        SyncCoordinator.onSyncRequested(Utility.getPreferredLocation(context));
+        requestSync(context, bundle);
+    }
+
+    private static void syncImmediately(Context context, Bundle bundle) {
+        // Callers come in bursts; a sync that's running or just finished answers them all
+        if (!SyncCoordinator.shouldRequestSync(Utility.getPreferredLocation(context))) {
+            return;
+        }
+        requestSync(context, bundle);
+    }
+
+    private static void requestSync(Context context, Bundle bundle) {
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
         ContentResolver.requestSync(getSyncAccount(context),
@@ -672,18 +756,16 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
     public static void initializeSyncAdapter(Context context) {
         getSyncAccount(context);
+        WeatherRetentionService.schedule(context);
     }
 
     /**
-     * Sets the location status into shared preference.  This function should not be called from
-     * the UI thread because it uses commit to write to the shared preferences.
-     * @param c Context to get the PreferenceManager from.
+     * Reports the location status through SyncStatus, which saves it to shared preferences
+     * without making the sync wait for the disk.
+     * @param c Context to get the SyncStatus from.
      * @param locationStatus The IntDef value to set
      */
     static private void setLocationStatus(Context c, @LocationStatus int locationStatus){
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
-        SharedPreferences.Editor spe = sp.edit();
-        spe.putInt(c.getString(R.string.pref_location_status_key), locationStatus);
-        spe.commit();
+        SyncStatus.get(c).setLocationStatus(locationStatus);
     }
 }
\ No newline at end of file
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Keeps to one fetch per location when immediate syncs are asked for in a burst, e.g. by the UI,
+ * the settings and the watch all at once when the app opens.
+ *
+ * A request for a location whose sync has been asked for or is running joins that sync, and one
+ * that arrives shortly after a sync for the location succeeded is answered by the data it just
+ * stored.  Either way the requester sees the result through the provider's change notifications,
+ * like it would have from its own sync.  The sync adapter runs in the app's process, so this
+ * state is shared with it.
+ */
+public class SyncCoordinator {
+    private static final String LOG_TAG = SyncCoordinator.class.getSimpleName();
+
+    // How long after a successful sync its data counts as fresh, in milliseconds
+    static final long FRESH_WINDOW = 60 * 1000;
+    // A requested sync that hasn't started by then (no network, say) stops holding others back
+    static final long PENDING_TIMEOUT = 2 * 60 * 1000;
+
+    private static class LocationSync {
+        // When a sync was last asked for, if it hasn't started yet
+        long requestedAt = -1;
+        boolean running;
+        // When the last successful sync finished
+        long succeededAt = -1;
+    }
+
+    private static final HashMap<String, LocationSync> sSyncs = new HashMap<String, LocationSync>();
+    private static int sExecuted;
+    private static int sCoalesced;
+
+    /**
+     * Decides whether an immediate sync for the location needs to be requested, or is covered
+     * by one that's pending, running or just done.
+     */
+    static synchronized boolean shouldRequestSync(String locationSetting) {
+        if (isCovered(locationSetting)) {
+            sCoalesced++;
+            Log.d(LOG_TAG, "Joined the sync for " + locationSetting);
+            return false;
+        }
+        getSync(locationSetting).requestedAt = SystemClock.elapsedRealtime();
+        return true;
+    }
+
+    /**
+     * Records a sync request that carries extras the syncs already pending, running or done
+     * can't have acted on, so it's requested whatever they cover.  Later requests join it.
+     */
+    static synchronized void onSyncRequested(String locationSetting) {
+        getSync(locationSetting).requestedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return true if a sync for the location is pending, running or just done, so fetching it
+     * separately would only repeat that sync's work
+     */
+    static synchronized boolean isCovered(String locationSetting) {
+        long now = SystemClock.elapsedRealtime();
+        LocationSync sync = getSync(locationSetting);
+        return sync.running
+                || (sync.requestedAt != -1 && now - sync.requestedAt < PENDING_TIMEOUT)
+                || (sync.succeededAt != -1 && now - sync.succeededAt < FRESH_WINDOW);
+    }
+
+    /**
+     * Call when the sync adapter starts syncing a location, whoever asked for it.
+     */
+    static synchronized void onSyncStarted(String locationSetting) {
+        LocationSync sync = getSync(locationSetting);
+        sync.running = true;
+        sync.requestedAt = -1;
+        sExecuted++;
+    }
+
+    /**
+     * Call when the sync adapter is done with a location.  Only a successful sync answers the
+     * requests that come after it.
+     */
+    static synchronized void onSyncFinished(String locationSetting, boolean succeeded) {
+        LocationSync sync = getSync(locationSetting);
+        sync.running = false;
+        if (succeeded) {
+            sync.succeededAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * @return the number of syncs that have run since the process started
+     */
+    public static synchronized int getExecutedCount() {
+        return sExecuted;
+    }
+
+    /**
+     * @return the number of immediate sync requests answered by another sync
+     */
+    public static synchronized int getCoalescedCount() {
+        return sCoalesced;
+    }
+
+    private static LocationSync getSync(String locationSetting) {
+        LocationSync sync = sSyncs.get(locationSetting);
+        if (null == sync) {
+            sync = new LocationSync();
+            sSyncs.put(locationSetting, sync);
+        }
+        return sync;
+    }
+}
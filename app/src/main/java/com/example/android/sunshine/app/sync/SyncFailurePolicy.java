@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.preference.PreferenceManager;
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.net.HttpURLConnection;
+import java.util.Random;
+
+/**
+ * Decides what a failed sync means for the next one, and tells the sync framework through the
+ * SyncResult.
+ *
+ * Each consecutive failure doubles the wait before the next sync, from one minute up to six
+ * hours, and the wait is jittered so devices that failed together don't all retry together.
+ * After enough consecutive server errors the circuit opens: syncs are skipped without touching
+ * the network until the open period is over, and then a single probe sync is let through.  If
+ * the probe works the circuit closes, and if it fails the circuit opens again.  Network errors
+ * on the device's side back off but never open the circuit, since they say nothing about the
+ * server.
+ */
+public class SyncFailurePolicy {
+    private static final String LOG_TAG = SyncFailurePolicy.class.getSimpleName();
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({FAILURE_NETWORK, FAILURE_SERVER, FAILURE_PARSE})
+    public @interface Failure {}
+
+    // The request didn't get an answer
+    public static final int FAILURE_NETWORK = 0;
+    // The server answered with an error, or with nothing
+    public static final int FAILURE_SERVER = 1;
+    // The server answered with something we can't read, or refused the request itself;
+    // retrying won't fix it soon
+    public static final int FAILURE_PARSE = 2;
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    // Backoff bounds, in seconds
+    private static final long MIN_BACKOFF = 60;
+    private static final long MAX_BACKOFF = 6 * 60 * 60;
+    // Consecutive server errors that open the circuit, and how long it stays open, in seconds
+    private static final int OPEN_AFTER_FAILURES = 5;
+    private static final long OPEN_PERIOD = 60 * 60;
+    // A probe that never reported back (the process died) stops blocking others after this long
+    private static final long PROBE_TIMEOUT = 10 * 60;
+
+    private static final String PREF_FAILURES = "sync_failures";
+    private static final String PREF_SERVER_FAILURES = "sync_server_failures";
+    private static final String PREF_STATE = "sync_circuit_state";
+    static final String PREF_OPEN_UNTIL = "sync_circuit_open_until";
+    private static final String PREF_PROBE_STARTED = "sync_circuit_probe_started";
+
+    // HttpURLConnection has no constant for it
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final Random sRandom = new Random();
+
+    /**
+     * Call before a sync does anything.  Returns false, and sets delayUntil, if the circuit is
+     * open or another sync is already probing it; the sync should stop there.
+     */
+    public static synchronized boolean allowSync(Context context, SyncResult syncResult) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        long now = System.currentTimeMillis() / 1000;
+        int state = prefs.getInt(PREF_STATE, STATE_CLOSED);
+        if (state == STATE_OPEN) {
+            long openUntil = prefs.getLong(PREF_OPEN_UNTIL, 0);
+            if (now < openUntil) {
+                syncResult.delayUntil = openUntil;
+                return false;
+            }
+            // Let this one sync through to see whether the server is back
+            prefs.edit()
+                    .putInt(PREF_STATE, STATE_HALF_OPEN)
+                    .putLong(PREF_PROBE_STARTED, now)
+                    .apply();
+            Log.d(LOG_TAG, "Circuit half-open; probing");
+            return true;
+        }
+        if (state == STATE_HALF_OPEN) {
+            long probeStarted = prefs.getLong(PREF_PROBE_STARTED, 0);
+            if (now - probeStarted < PROBE_TIMEOUT) {
+                syncResult.delayUntil = probeStarted + PROBE_TIMEOUT;
+                return false;
+            }
+            prefs.edit().putLong(PREF_PROBE_STARTED, now).apply();
+        }
+        return true;
+    }
+
+    /**
+     * Says whether the circuit is closed, without letting a probe through the way
+     * {@link #allowSync} does.  For fetches other than the sync, which shouldn't add to the load
+     * on a failing server or use up the sync's probe.
+     */
+    public static synchronized boolean isClosed(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getInt(PREF_STATE, STATE_CLOSED) == STATE_CLOSED;
+    }
+
+    /**
+     * Call when the server answered a sync properly, even if only to say the location is
+     * unknown.  Closes the circuit and forgets earlier failures.
+     */
+    public static synchronized void onSuccess(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (prefs.getInt(PREF_FAILURES, 0) == 0 && prefs.getInt(PREF_STATE, STATE_CLOSED)
+                == STATE_CLOSED) {
+            return;
+        }
+        prefs.edit()
+                .putInt(PREF_FAILURES, 0)
+                .putInt(PREF_SERVER_FAILURES, 0)
+                .putInt(PREF_STATE, STATE_CLOSED)
+                .apply();
+    }
+
+    /**
+     * Call when a sync failed.  Records the failure in the SyncResult stats, so the framework
+     * knows whether to retry, and sets delayUntil to the end of the backoff.
+     */
+    public static synchronized void onFailure(Context context, SyncResult syncResult,
+                                              @Failure int failure) {
+        switch (failure) {
+            case FAILURE_NETWORK:
+            case FAILURE_SERVER:
+                // Soft errors; the framework retries
+                syncResult.stats.numIoExceptions++;
+                break;
+            case FAILURE_PARSE:
+                // A hard error; the framework waits for the next periodic sync
+                syncResult.stats.numParseExceptions++;
+                break;
+        }
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int failures = prefs.getInt(PREF_FAILURES, 0) + 1;
+        int serverFailures = failure == FAILURE_SERVER
+                ? prefs.getInt(PREF_SERVER_FAILURES, 0) + 1 : 0;
+        int state = prefs.getInt(PREF_STATE, STATE_CLOSED);
+        long now = System.currentTimeMillis() / 1000;
+        SharedPreferences.Editor editor = prefs.edit()
+                .putInt(PREF_FAILURES, failures)
+                .putInt(PREF_SERVER_FAILURES, serverFailures);
+
+        if (failure == FAILURE_SERVER
+                && (state == STATE_HALF_OPEN || serverFailures >= OPEN_AFTER_FAILURES)) {
+            long openUntil = now + jitter(OPEN_PERIOD);
+            editor.putInt(PREF_STATE, STATE_OPEN).putLong(PREF_OPEN_UNTIL, openUntil);
+            syncResult.delayUntil = openUntil;
+            Log.w(LOG_TAG, "Circuit open for " + (openUntil - now) + "s after "
+                    + serverFailures + " server errors");
+        } else {
+            if (state == STATE_HALF_OPEN) {
+                // The probe didn't reach the server, so it says nothing; let the next one try
+                editor.putLong(PREF_PROBE_STARTED, 0);
+            }
+            syncResult.delayUntil = now + jitter(getBackoff(failures));
+        }
+        editor.apply();
+    }
+
+    /**
+     * @return the kind of failure an HTTP error status means.  Not for 404, which says the
+     * location is unknown rather than that the sync failed.
+     */
+    static @Failure int getFailure(int responseCode) {
+        // Too many requests, like a 5xx, is the server asking to be left alone for a while
+        if (responseCode == HTTP_TOO_MANY_REQUESTS
+                || responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+            return FAILURE_SERVER;
+        }
+        // Any other 4xx, such as a rejected API key, will be refused again however often it's
+        // retried
+        if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            return FAILURE_PARSE;
+        }
+        return FAILURE_SERVER;
+    }
+
+    /*
+        The backoff after a number of consecutive failures, before jitter.
+     */
+    static long getBackoff(int failures) {
+        // Past 2^16 minutes the cap applies anyway; don't overflow the shift
+        int doublings = Math.min(failures - 1, 16);
+        return Math.min(MAX_BACKOFF, MIN_BACKOFF << doublings);
+    }
+
+    /*
+        Somewhere from half the period to all of it, so retries spread out instead of lining up.
+     */
+    private static long jitter(long period) {
+        return period / 2 + (long) (sRandom.nextDouble() * (period / 2));
+    }
+}
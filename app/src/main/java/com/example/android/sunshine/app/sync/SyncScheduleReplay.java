@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Replays a {@link SyncScheduler} log against the current {@link SyncScheduler#decide}, to see
+ * what a policy change would have done with a real device's history before shipping it.
+ *
+ * Every recorded decision is decided again from its recorded inputs.  The data's age whenever
+ * the app was opened is then worked out both for the syncs that really happened and for the
+ * replayed schedule, where the sync after each decision comes at the end of its period.  That's
+ * an approximation: the replayed schedule's own decisions would have seen other inputs.
+ */
+public class SyncScheduleReplay {
+    private static final int INDEX_TYPE = 0;
+    private static final int INDEX_TIME = 1;
+    // sync: fraction changed
+    private static final int INDEX_CHANGED_FRACTION = 3;
+    // decision: the inputs, then the decision
+    private static final int INDEX_MINUTE_OF_DAY = 2;
+    private static final int INDEX_CHANGE_RATE = 3;
+    private static final int INDEX_USAGE = 4;
+    private static final int INDEX_CHARGING = 5;
+    private static final int INDEX_UNMETERED = 6;
+    private static final int INDEX_INTERVAL = 7;
+
+    /**
+     * What the replay found.
+     */
+    public static class Result {
+        public int decisions;
+        // Decisions the current policy makes differently
+        public int changedDecisions;
+        public int syncs;
+        // Syncs that found nothing in the forecast had changed
+        public int wastedSyncs;
+        public long recordedIntervalSeconds;
+        public long replayedIntervalSeconds;
+        public int usages;
+        public long recordedAgeSeconds;
+        public long replayedAgeSeconds;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d decisions, %d changed; %d syncs, %d wasted; mean period %d min recorded,"
+                            + " %d min replayed; mean age at %d opens %d min recorded,"
+                            + " %d min replayed",
+                    decisions, changedDecisions, syncs, wastedSyncs,
+                    mean(recordedIntervalSeconds, decisions) / 60,
+                    mean(replayedIntervalSeconds, decisions) / 60,
+                    usages, mean(recordedAgeSeconds, usages) / 60,
+                    mean(replayedAgeSeconds, usages) / 60);
+        }
+
+        private static long mean(long total, int count) {
+            return count == 0 ? 0 : total / count;
+        }
+    }
+
+    /**
+     * Replays a log, oldest record first.  Lines that can't be read are skipped.
+     */
+    public static Result replay(BufferedReader log) throws IOException {
+        Result result = new Result();
+        long lastSync = -1;
+        long lastDecision = -1;
+        int lastReplayedInterval = 0;
+
+        String line;
+        while ((line = log.readLine()) != null) {
+            String[] fields = line.split(",");
+            try {
+                String type = fields[INDEX_TYPE];
+                long time = Long.parseLong(fields[INDEX_TIME]);
+                if (SyncScheduler.RECORD_SYNC.equals(type)) {
+                    float changedFraction = Float.parseFloat(fields[INDEX_CHANGED_FRACTION]);
+                    result.syncs++;
+                    if (changedFraction == 0) {
+                        result.wastedSyncs++;
+                    }
+                    lastSync = time;
+                } else if (SyncScheduler.RECORD_DECISION.equals(type)) {
+                    int recordedInterval = Integer.parseInt(fields[INDEX_INTERVAL]);
+                    SyncScheduler.Decision decision = SyncScheduler.decide(
+                            Integer.parseInt(fields[INDEX_MINUTE_OF_DAY]),
+                            Float.parseFloat(fields[INDEX_CHANGE_RATE]),
+                            SyncScheduler.parseUsage(fields[INDEX_USAGE]),
+                            "1".equals(fields[INDEX_CHARGING]),
+                            "1".equals(fields[INDEX_UNMETERED]));
+                    result.decisions++;
+                    if (decision.intervalSeconds != recordedInterval) {
+                        result.changedDecisions++;
+                    }
+                    result.recordedIntervalSeconds += recordedInterval;
+                    result.replayedIntervalSeconds += decision.intervalSeconds;
+                    lastDecision = time;
+                    lastReplayedInterval = decision.intervalSeconds;
+                } else if (SyncScheduler.RECORD_USAGE.equals(type) && lastSync != -1
+                        && lastDecision != -1) {
+                    result.usages++;
+                    result.recordedAgeSeconds += (time - lastSync) / 1000;
+                    // The replayed sync after the last decision, if it's come yet
+                    long sinceDecision = (time - lastDecision) / 1000;
+                    result.replayedAgeSeconds += sinceDecision >= lastReplayedInterval
+                            ? sinceDecision - lastReplayedInterval : sinceDecision;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                // A line cut short when the log rolled over, or from an older format
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.os.AsyncTask;
+import android.os.BatteryManager;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * Picks the period of the next periodic sync, instead of syncing every three hours for everyone.
+ *
+ * After each sync it looks at how much of the forecast changed since the last one, at what times
+ * of day the app gets opened, and at whether the device is charging or on an unmetered network.
+ * A forecast that keeps changing is synced more often and a stable one less; when the app is
+ * usually opened within the next period, the sync is moved to just before that.
+ *
+ * {@link #decide} is a pure function of those inputs, and every decision is appended, with its
+ * inputs, to a CSV file along with app opens and sync outcomes, so a change to the policy can
+ * be replayed against what really happened with {@link SyncScheduleReplay}.
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    // Bounds on the period, in seconds.  The default is the old fixed schedule.
+    static final int MIN_INTERVAL = 60 * 60;
+    static final int DEFAULT_INTERVAL = SunshineSyncAdapter.SYNC_INTERVAL;
+    public static final int MAX_INTERVAL = 12 * 60 * 60;
+    // How long before a likely app open to sync, and how much slack to give that sync
+    static final int PRESYNC_LEAD = 30 * 60;
+    static final int PRESYNC_FLEX = 15 * 60;
+
+    // An hour counts as a usual time to open the app once it has this share of the opens...
+    static final float USAGE_PEAK_SHARE = 0.1f;
+    // ...and there have been enough opens to tell
+    static final float USAGE_MIN_WEIGHT = 5f;
+    // Each open counts this much less than the one after it, so old habits fade
+    private static final float USAGE_DECAY = 0.97f;
+    // Weight of the latest sync in the average share of the forecast that changes
+    private static final float CHANGE_RATE_WEIGHT = 0.3f;
+    // A day counts as changed when a temperature moves at least this much, in Celsius
+    private static final double CHANGED_TEMPERATURE = 1.0;
+
+    static final String LOG_FILE = "sync_schedule.csv";
+    // The log starts over once it's this big, keeping one old file
+    private static final long MAX_LOG_BYTES = 64 * 1024;
+
+    static final String RECORD_DECISION = "decision";
+    static final String RECORD_USAGE = "usage";
+    static final String RECORD_SYNC = "sync";
+
+    static final String REASON_PRESYNC = "presync";
+    static final String REASON_VOLATILE = "volatile";
+    static final String REASON_STABLE = "stable";
+    static final String REASON_DEFAULT = "default";
+
+    private static final String PREF_USAGE = "sync_scheduler_usage";
+    private static final String PREF_CHANGE_RATE = "sync_scheduler_change_rate";
+
+    /**
+     * The period chosen for the next periodic sync.
+     */
+    public static class Decision {
+        public final int intervalSeconds;
+        public final int flexSeconds;
+        public final String reason;
+
+        Decision(int intervalSeconds, int flexSeconds, String reason) {
+            this.intervalSeconds = intervalSeconds;
+            this.flexSeconds = flexSeconds;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * Records that the app was opened now, for the usage times.  Call from an activity's onResume;
+     * the preferences and the log are written in the background.
+     */
+    public static void recordUsage(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final Calendar now = Calendar.getInstance();
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                addUsage(appContext, now);
+                return null;
+            }
+        }.execute();
+    }
+
+    // Before Honeycomb tasks run in parallel, so updates to the usage take turns
+    private static synchronized void addUsage(Context context, Calendar time) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        float[] usage = parseUsage(prefs.getString(PREF_USAGE, null));
+        for (int i = 0; i < usage.length; i++) {
+            usage[i] *= USAGE_DECAY;
+        }
+        usage[time.get(Calendar.HOUR_OF_DAY)] += 1;
+        prefs.edit().putString(PREF_USAGE, formatUsage(usage)).apply();
+        appendToLog(context, RECORD_USAGE, time.getTimeInMillis(), getMinuteOfDay(time));
+    }
+
+    /**
+     * Folds the result of a sync into the change rate, then reschedules the periodic sync.
+     *
+     * @param changedFraction the share of the stored days the sync changed, or -1 if there were
+     *                        none to compare with
+     */
+    public static void onSyncComplete(Context context, float changedFraction) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        // Until there's a history, assume the forecast changes about as often as the old fixed
+        // schedule was built for
+        float changeRate = prefs.getFloat(PREF_CHANGE_RATE, 0.3f);
+        if (changedFraction >= 0) {
+            changeRate += CHANGE_RATE_WEIGHT * (changedFraction - changeRate);
+            prefs.edit().putFloat(PREF_CHANGE_RATE, changeRate).apply();
+        }
+
+        Calendar now = Calendar.getInstance();
+        int minuteOfDay = getMinuteOfDay(now);
+        float[] usage = parseUsage(prefs.getString(PREF_USAGE, null));
+        boolean charging = isCharging(context);
+        boolean unmetered = isUnmetered(context);
+        Decision decision = decide(minuteOfDay, changeRate, usage, charging, unmetered);
+
+        appendToLog(context, RECORD_SYNC, now.getTimeInMillis(), minuteOfDay, changedFraction);
+        appendToLog(context, RECORD_DECISION, now.getTimeInMillis(), minuteOfDay, changeRate,
+                formatUsage(usage), charging ? 1 : 0, unmetered ? 1 : 0,
+                decision.intervalSeconds, decision.flexSeconds, decision.reason);
+        Log.d(LOG_TAG, "Next sync in " + decision.intervalSeconds / 60 + " minutes ("
+                + decision.reason + ")");
+
+        SunshineSyncAdapter.configurePeriodicSync(context, decision.intervalSeconds,
+                decision.flexSeconds);
+    }
+
+    /**
+     * Picks the next sync period.  This must stay a function of its arguments alone, so recorded
+     * decisions can be replayed.
+     *
+     * @param minuteOfDay the local time, in minutes since midnight
+     * @param changeRate  the average share of the forecast that changes between syncs, 0 to 1
+     * @param usage       the weight of app opens in each local hour of the day
+     */
+    public static Decision decide(int minuteOfDay, float changeRate, float[] usage,
+                                  boolean charging, boolean unmetered) {
+        // A forecast that changes a lot is worth fetching more often, and one that doesn't, less
+        int interval;
+        String reason;
+        if (changeRate >= 0.5f) {
+            interval = 2 * 60 * 60;
+            reason = REASON_VOLATILE;
+        } else if (changeRate < 0.05f) {
+            interval = MAX_INTERVAL;
+            reason = REASON_STABLE;
+        } else if (changeRate < 0.2f) {
+            interval = 6 * 60 * 60;
+            reason = REASON_STABLE;
+        } else {
+            interval = DEFAULT_INTERVAL;
+            reason = REASON_DEFAULT;
+        }
+        // Syncing costs more on battery and a metered network
+        if (!charging && !unmetered) {
+            interval = Math.min(MAX_INTERVAL, interval * 3 / 2);
+        }
+
+        // If the app is usually opened before then, be fresh for that instead
+        int untilUsage = getSecondsUntilUsage(minuteOfDay, usage, interval);
+        if (untilUsage >= 0 && untilUsage - PRESYNC_LEAD >= MIN_INTERVAL
+                && untilUsage - PRESYNC_LEAD < interval) {
+            return new Decision(untilUsage - PRESYNC_LEAD, PRESYNC_FLEX, REASON_PRESYNC);
+        }
+        return new Decision(interval, interval / 3, reason);
+    }
+
+    /*
+        Seconds from now to the start of the next usual hour for opening the app that begins
+        within the horizon, or -1 if there isn't one.
+     */
+    private static int getSecondsUntilUsage(int minuteOfDay, float[] usage, int horizonSeconds) {
+        float total = 0;
+        for (float weight : usage) {
+            total += weight;
+        }
+        if (total < USAGE_MIN_WEIGHT) {
+            return -1;
+        }
+        int hour = minuteOfDay / 60;
+        for (int ahead = 1; ahead <= 24; ahead++) {
+            int seconds = (ahead * 60 - minuteOfDay % 60) * 60;
+            if (seconds > horizonSeconds) {
+                break;
+            }
+            if (usage[(hour + ahead) % 24] >= USAGE_PEAK_SHARE * total) {
+                return seconds;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the share of the days in the stored summary whose forecast the new values change,
+     * or -1 if none of them are stored
+     */
+    public static float getChangedFraction(Bundle summary, ContentValues[] forecast) {
+        long[] dates = summary.getLongArray(WeatherEntry.COLUMN_DATE);
+        int[] weatherIds = summary.getIntArray(WeatherEntry.COLUMN_WEATHER_ID);
+        double[] highs = summary.getDoubleArray(WeatherEntry.COLUMN_MAX_TEMP);
+        double[] lows = summary.getDoubleArray(WeatherEntry.COLUMN_MIN_TEMP);
+        if (null == dates) {
+            return -1;
+        }
+        int compared = 0;
+        int changed = 0;
+        for (ContentValues values : forecast) {
+            long date = WeatherContract.normalizeDate(values.getAsLong(WeatherEntry.COLUMN_DATE));
+            for (int i = 0; i < dates.length; i++) {
+                if (dates[i] != date) continue;
+                compared++;
+                if (weatherIds[i] != values.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID)
+                        || Math.abs(highs[i] - values.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP))
+                                >= CHANGED_TEMPERATURE
+                        || Math.abs(lows[i] - values.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP))
+                                >= CHANGED_TEMPERATURE) {
+                    changed++;
+                }
+                break;
+            }
+        }
+        return compared == 0 ? -1 : (float) changed / compared;
+    }
+
+    private static int getMinuteOfDay(Calendar calendar) {
+        return calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+    }
+
+    private static boolean isCharging(Context context) {
+        // A null receiver just reads the sticky broadcast
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return null != battery && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private static boolean isUnmetered(Context context) {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return null != cm.getActiveNetworkInfo()
+                && !ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+    }
+
+    static float[] parseUsage(String usage) {
+        float[] weights = new float[24];
+        if (null != usage) {
+            String[] parts = usage.split(";");
+            for (int i = 0; i < parts.length && i < weights.length; i++) {
+                try {
+                    weights[i] = Float.parseFloat(parts[i]);
+                } catch (NumberFormatException e) {
+                    weights[i] = 0;
+                }
+            }
+        }
+        return weights;
+    }
+
+    static String formatUsage(float[] usage) {
+        String[] parts = new String[usage.length];
+        for (int i = 0; i < usage.length; i++) {
+            parts[i] = String.format(Locale.US, "%.3f", usage[i]);
+        }
+        return TextUtils.join(";", parts);
+    }
+
+    /*
+        Appends one record to the log: its type, the time, and then its fields.  Logging is best
+        effort; a failure never gets in the way of the sync.
+     */
+    private static synchronized void appendToLog(Context context, String type, long time,
+                                                 Object... fields) {
+        File file = new File(context.getFilesDir(), LOG_FILE);
+        if (file.length() > MAX_LOG_BYTES) {
+            File old = new File(context.getFilesDir(), LOG_FILE + ".old");
+            if (!file.renameTo(old)) {
+                Log.w(LOG_TAG, "Couldn't roll over the schedule log");
+            }
+        }
+        StringBuilder line = new StringBuilder(type).append(',').append(time);
+        for (Object field : fields) {
+            line.append(',').append(field);
+        }
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(file, true);
+            writer.write(line.append('\n').toString());
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't write the schedule log", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+        }
+    }
+}
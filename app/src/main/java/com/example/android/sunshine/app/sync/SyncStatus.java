@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+
+import com.example.android.sunshine.R;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Where the sync stands: the location status it last reported, whether one is running, and
+ * when it last succeeded and failed.
+ *
+ * The state lives in memory and observers hear about changes straight away, on the main thread,
+ * so the sync never waits on the disk to report progress and the UI doesn't go through
+ * preferences to find out.  A change is written back to the preferences a moment later, with
+ * any others made in the meantime, so the next process starts where this one left off; a
+ * running sync isn't, since it dies with the process.
+ */
+public class SyncStatus {
+    /**
+     * Told about every change, on the main thread.  Changes made in quick succession may be
+     * reported once.
+     */
+    public interface Observer {
+        void onSyncStatusChanged(SyncStatus status);
+    }
+
+    // Changes this close together reach the disk in one write
+    private static final long PERSIST_DELAY_MILLIS = 1000;
+
+    private static final String PREF_LAST_SUCCESS = "sync_last_success";
+    private static final String PREF_LAST_ERROR = "sync_last_error";
+    private static final String PREF_LAST_ERROR_TIME = "sync_last_error_time";
+
+    private static SyncStatus sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final String mLocationStatusKey;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<Observer> mObservers =
+            new CopyOnWriteArrayList<Observer>();
+
+    private @SunshineSyncAdapter.LocationStatus int mLocationStatus;
+    private boolean mSyncing;
+    private long mLastSuccess;
+    private @SunshineSyncAdapter.LocationStatus int mLastError;
+    private long mLastErrorTime;
+    private boolean mPersistPending;
+    private boolean mDispatchPending;
+
+    private final Runnable mPersist = new Runnable() {
+        @Override
+        public void run() {
+            SharedPreferences.Editor editor = mPrefs.edit();
+            synchronized (SyncStatus.this) {
+                mPersistPending = false;
+                editor.putInt(mLocationStatusKey, mLocationStatus)
+                        .putLong(PREF_LAST_SUCCESS, mLastSuccess)
+                        .putInt(PREF_LAST_ERROR, mLastError)
+                        .putLong(PREF_LAST_ERROR_TIME, mLastErrorTime);
+            }
+            editor.apply();
+        }
+    };
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SyncStatus.this) {
+                mDispatchPending = false;
+            }
+            for (Observer observer : mObservers) {
+                observer.onSyncStatusChanged(SyncStatus.this);
+            }
+        }
+    };
+
+    @SuppressWarnings("ResourceType")
+    private SyncStatus(Context context) {
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        mLocationStatusKey = context.getString(R.string.pref_location_status_key);
+        mLocationStatus = mPrefs.getInt(mLocationStatusKey,
+                SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
+        mLastSuccess = mPrefs.getLong(PREF_LAST_SUCCESS, -1);
+        mLastError = mPrefs.getInt(PREF_LAST_ERROR, SunshineSyncAdapter.LOCATION_STATUS_OK);
+        mLastErrorTime = mPrefs.getLong(PREF_LAST_ERROR_TIME, -1);
+    }
+
+    public static synchronized SyncStatus get(Context context) {
+        if (null == sInstance) {
+            sInstance = new SyncStatus(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public void addObserver(Observer observer) {
+        mObservers.addIfAbsent(observer);
+    }
+
+    public void removeObserver(Observer observer) {
+        mObservers.remove(observer);
+    }
+
+    public synchronized @SunshineSyncAdapter.LocationStatus int getLocationStatus() {
+        return mLocationStatus;
+    }
+
+    public synchronized boolean isSyncing() {
+        return mSyncing;
+    }
+
+    /**
+     * @return when a sync last stored a forecast, in milliseconds since the epoch, or -1
+     */
+    public synchronized long getLastSuccessTime() {
+        return mLastSuccess;
+    }
+
+    /**
+     * @return how the last failure since the last success went wrong, or LOCATION_STATUS_OK
+     * if none has
+     */
+    public synchronized @SunshineSyncAdapter.LocationStatus int getLastError() {
+        return mLastError;
+    }
+
+    /**
+     * @return when the sync last failed, in milliseconds since the epoch, or -1
+     */
+    public synchronized long getLastErrorTime() {
+        return mLastErrorTime;
+    }
+
+    void onSyncStarted() {
+        synchronized (this) {
+            if (mSyncing) {
+                return;
+            }
+            mSyncing = true;
+        }
+        onChanged(false);
+    }
+
+    /**
+     * Only the sync adapter reports its outcome, so the last success is always a forecast that
+     * was really fetched and stored.
+     *
+     * @param succeeded whether the sync stored a forecast
+     */
+    void onSyncFinished(boolean succeeded) {
+        synchronized (this) {
+            if (!mSyncing) {
+                return;
+            }
+            mSyncing = false;
+            if (succeeded) {
+                mLastSuccess = System.currentTimeMillis();
+                mLastError = SunshineSyncAdapter.LOCATION_STATUS_OK;
+            }
+        }
+        onChanged(succeeded);
+    }
+
+    /**
+     * Records what a sync, or a change of location, says about the location.  UNKNOWN only
+     * means it hasn't been checked yet, and OK doesn't count as a success by itself: the
+     * settings set it for weather that's already stored.  Only {@link #onSyncFinished} does.
+     */
+    public void setLocationStatus(@SunshineSyncAdapter.LocationStatus int locationStatus) {
+        synchronized (this) {
+            if (locationStatus != SunshineSyncAdapter.LOCATION_STATUS_OK
+                    && locationStatus != SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN) {
+                mLastError = locationStatus;
+                mLastErrorTime = System.currentTimeMillis();
+            } else if (mLocationStatus == locationStatus) {
+                return;
+            }
+            mLocationStatus = locationStatus;
+        }
+        onChanged(true);
+    }
+
+    private void onChanged(boolean persist) {
+        boolean postPersist = false;
+        boolean postDispatch = false;
+        synchronized (this) {
+            if (persist && !mPersistPending) {
+                mPersistPending = postPersist = true;
+            }
+            if (!mDispatchPending) {
+                mDispatchPending = postDispatch = true;
+            }
+        }
+        if (postPersist) {
+            mHandler.postDelayed(mPersist, PERSIST_DELAY_MILLIS);
+        }
+        if (postDispatch) {
+            mHandler.post(mDispatch);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Times the phases of one sync and stores them in the sync metrics table, where the debug screen
+ * reads them.  Phases run one after another: begin one, end it, begin the next.  A phase that's
+ * begun again later in the same sync, like parsing around the location lookup, adds to the time
+ * it already has.  Nothing is written until {@link #save}, so tracing costs the sync one insert.
+ */
+public class SyncTrace {
+    private static final String LOG_TAG = SyncTrace.class.getSimpleName();
+
+    // Opening the connection, which includes the DNS lookup
+    public static final String PHASE_CONNECT = "connect";
+    // Sending the request until the response headers are in
+    public static final String PHASE_FIRST_BYTE = "first_byte";
+    public static final String PHASE_DOWNLOAD = "download";
+    public static final String PHASE_PARSE = "parse";
+    public static final String PHASE_LOCATION = "location";
+    public static final String PHASE_INSERT = "insert";
+    // The 3-hour forecast, which is its own download
+    public static final String PHASE_HOURLY = "hourly";
+    // What the sync hands its result to
+    public static final String PHASE_WATCH = "watch";
+    public static final String PHASE_WIDGETS = "widgets";
+    public static final String PHASE_MUZEI = "muzei";
+    public static final String PHASE_NOTIFICATION = "notification";
+    public static final String PHASE_SCHEDULER = "scheduler";
+    // WeatherRetentionService, which is traced on its own
+    public static final String PHASE_RETENTION = "retention";
+    public static final String PHASE_COMPACT = "compact";
+    // The whole sync, start to save
+    public static final String PHASE_TOTAL = "total";
+
+    private final long mStartTime = System.currentTimeMillis();
+    private final long mStartRealtime = SystemClock.elapsedRealtime();
+    // Duration and bytes of each phase, in the order they first ran
+    private final LinkedHashMap<String, long[]> mPhases = new LinkedHashMap<String, long[]>();
+    private String mPhase;
+    private long mPhaseStart;
+
+    /**
+     * Starts timing a phase, ending the one before it if it's still open.
+     */
+    public void begin(String phase) {
+        if (null != mPhase) {
+            end();
+        }
+        mPhase = phase;
+        mPhaseStart = SystemClock.elapsedRealtime();
+    }
+
+    public void end() {
+        end(-1);
+    }
+
+    /**
+     * Ends the open phase, recording the bytes it read.
+     */
+    public void end(long bytes) {
+        if (null == mPhase) {
+            return;
+        }
+        long[] phase = mPhases.get(mPhase);
+        if (null == phase) {
+            phase = new long[]{0, -1};
+            mPhases.put(mPhase, phase);
+        }
+        phase[0] += SystemClock.elapsedRealtime() - mPhaseStart;
+        if (bytes >= 0) {
+            phase[1] = Math.max(phase[1], 0) + bytes;
+        }
+        mPhase = null;
+    }
+
+    /**
+     * Writes the phases, and the total, to the sync metrics table.  Does nothing if no phase
+     * ran, e.g. when the sync was skipped.
+     */
+    public void save(Context context) {
+        end();
+        if (mPhases.isEmpty()) {
+            return;
+        }
+        long total = SystemClock.elapsedRealtime() - mStartRealtime;
+        ContentValues[] values = new ContentValues[mPhases.size() + 1];
+        int i = 0;
+        for (Map.Entry<String, long[]> entry : mPhases.entrySet()) {
+            values[i++] = getValues(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        }
+        values[i] = getValues(PHASE_TOTAL, total, -1);
+        context.getContentResolver().bulkInsert(SyncMetricsEntry.CONTENT_URI, values);
+        Log.d(LOG_TAG, "Traced " + mPhases.size() + " phases in " + total + " ms");
+    }
+
+    private ContentValues getValues(String phase, long duration, long bytes) {
+        ContentValues values = new ContentValues();
+        values.put(SyncMetricsEntry.COLUMN_SYNC_START, mStartTime);
+        values.put(SyncMetricsEntry.COLUMN_PHASE, phase);
+        values.put(SyncMetricsEntry.COLUMN_DURATION, duration);
+        values.put(SyncMetricsEntry.COLUMN_BYTES, bytes);
+        return values;
+    }
+
+    /**
+     * Counts the bytes read through it, before any decoding.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Moves weather older than the history the user wants to see into the archive, deletes archived
+ * days once they're a year old, and then gives the freed space back.  It runs about once a day
+ * on an inexact alarm, rather than as part of every sync, and handles a bounded batch of rows per
+ * transaction so it never holds the write lock for long.  Archiving goes through
+ * ContentResolver.call(), which needs Honeycomb; older devices just delete the old rows.
+ */
+public class WeatherRetentionService extends IntentService {
+    private static final String LOG_TAG = WeatherRetentionService.class.getSimpleName();
+
+    // Rows archived or deleted per transaction
+    private static final int BATCH_SIZE = 100;
+    // Pages freed per compaction call
+    private static final int COMPACT_PAGES = 64;
+    // How long archived days are kept: a year, for the trends the rollups show
+    private static final int ARCHIVE_DAYS = 366;
+
+    public WeatherRetentionService() {
+        super("WeatherRetentionService");
+    }
+
+    /**
+     * Sets up the daily alarm, unless it's already set.  The alarm doesn't wake the device; the
+     * job runs the next time it's awake anyway.
+     */
+    public static void schedule(Context context) {
+        Intent intent = new Intent(context, WeatherRetentionService.class);
+        if (null != PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE)) {
+            return;
+        }
+        PendingIntent pendingIntent = PendingIntent.getService(context, 0, intent, 0);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HALF_DAY,
+                AlarmManager.INTERVAL_DAY, pendingIntent);
+    }
+
+    /**
+     * Runs the job now, e.g. after the user shortened the history to keep.
+     */
+    public static void runNow(Context context) {
+        context.startService(new Intent(context, WeatherRetentionService.class));
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        // Dates are normalized to UTC midnight, so whole days can be subtracted
+        long cutoffDate = WeatherContract.normalizeDate(System.currentTimeMillis())
+                - Utility.getHistoryDays(this) * DateUtils.DAY_IN_MILLIS;
+        ContentResolver resolver = getContentResolver();
+        SyncTrace trace = new SyncTrace();
+        trace.begin(SyncTrace.PHASE_RETENTION);
+        // Archived rows only change tables, so only deleted ones free space
+        int archived = 0;
+        int deleted = 0;
+        int batch;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            do {
+                batch = archiveBatch(resolver, cutoffDate, BATCH_SIZE);
+                archived += batch;
+            } while (batch == BATCH_SIZE);
+            long archiveCutoffDate = WeatherContract.normalizeDate(System.currentTimeMillis())
+                    - ARCHIVE_DAYS * DateUtils.DAY_IN_MILLIS;
+            do {
+                batch = pruneArchiveBatch(resolver, archiveCutoffDate, BATCH_SIZE);
+                deleted += batch;
+            } while (batch == BATCH_SIZE);
+        } else {
+            do {
+                batch = pruneBatch(resolver, cutoffDate, BATCH_SIZE);
+                deleted += batch;
+            } while (batch == BATCH_SIZE);
+        }
+        // Past hours are only kept as long as past days; they aren't archived
+        deleted += resolver.delete(HourlyEntry.CONTENT_URI, HourlyEntry.COLUMN_HOUR + " < ?",
+                new String[]{Long.toString(HourlyEntry.getHour(cutoffDate))});
+        Log.d(LOG_TAG, "Retention complete. " + archived + " Archived, " + deleted + " Deleted");
+
+        if (deleted > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            trace.begin(SyncTrace.PHASE_COMPACT);
+            compact(resolver);
+        }
+        trace.save(this);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static int archiveBatch(ContentResolver resolver, long cutoffDate, int limit) {
+        Bundle extras = new Bundle();
+        extras.putInt(WeatherEntry.EXTRA_LIMIT, limit);
+        Bundle result = resolver.call(WeatherEntry.CONTENT_URI, WeatherEntry.METHOD_ARCHIVE,
+                Long.toString(cutoffDate), extras);
+        return result.getInt(WeatherEntry.EXTRA_COUNT);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static int pruneArchiveBatch(ContentResolver resolver, long cutoffDate, int limit) {
+        Bundle extras = new Bundle();
+        extras.putInt(WeatherEntry.EXTRA_LIMIT, limit);
+        Bundle result = resolver.call(WeatherEntry.CONTENT_URI, WeatherEntry.METHOD_PRUNE_ARCHIVE,
+                Long.toString(cutoffDate), extras);
+        return result.getInt(WeatherEntry.EXTRA_COUNT);
+    }
+
+    /*
+        Deletes up to limit of the oldest rows dated before cutoffDate, in one transaction.
+     */
+    private static int pruneBatch(ContentResolver resolver, long cutoffDate, int limit) {
+        String selection = WeatherEntry._ID + " IN (SELECT " + WeatherEntry._ID
+                + " FROM " + WeatherEntry.TABLE_NAME
+                + " WHERE " + WeatherEntry.COLUMN_DATE + " < ?"
+                + " ORDER BY " + WeatherEntry.COLUMN_DATE + " LIMIT " + limit + ")";
+        return resolver.delete(WeatherEntry.CONTENT_URI, selection,
+                new String[]{Long.toString(cutoffDate)});
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void compact(ContentResolver resolver) {
+        Bundle extras = new Bundle();
+        extras.putInt(WeatherContract.EXTRA_PAGES, COMPACT_PAGES);
+        resolver.call(WeatherEntry.CONTENT_URI, WeatherContract.METHOD_COMPACT, null, extras);
+    }
+}